@@ -0,0 +1,289 @@
+/** AsyncFileSystem.java
+*
+* Asynchronous facade over FileTable and Inode: open, read, write, seek and
+* close return CompletableFutures and run on an executor, by default one
+* virtual thread per request (a fixed pool of ioThreads daemon threads on
+* JVMs without virtual threads).
+*
+* Requests on one open file run one at a time in the order they were made:
+* each entry keeps the future of its last request and the next one is
+* chained after it. That is what orders the seek pointer, so no request
+* holds a monitor on the entry while it waits for the disk; the Inode is
+* guarded by its read/write lock, which does not pin a virtual thread.
+*
+* Small reads that fall in one block are coalesced: while one request is
+* loading a block of a file, every other request for that block waits for
+* the same load instead of reading it again. A load only serves requests
+* made before the file next changes, however it is changed (the Inode's
+* version is bumped by every write, truncation, clone split or relocation).
+*
+* Whole blocks written are left to the FileStreams flusher (write-behind).
+*
+* @version 10/18/2026
+*/
+
+import java.lang.reflect.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+
+public class AsyncFileSystem {
+    public final static int SEEK_SET = 0;   // from the start of the file
+    public final static int SEEK_CUR = 1;   // from the seek pointer
+    public final static int SEEK_END = 2;   // from the end of the file
+    private final static int ioThreads = 16; // pool size without virtual threads
+
+    private FileTable filetable;
+    private SuperBlock superblock;
+    private ExecutorService executor;
+    private boolean ownExecutor;        // created here, shut down by shutdown()
+
+    // last request queued on each open file
+    private final ConcurrentHashMap<FileTableEntry, CompletableFuture<?>> tails =
+        new ConcurrentHashMap<FileTableEntry, CompletableFuture<?>>( );
+    // block loads in flight, for coalescing
+    private final ConcurrentHashMap<BlockKey, Load> loads =
+        new ConcurrentHashMap<BlockKey, Load>( );
+
+    // statistics
+    private final AtomicLong requests = new AtomicLong( );
+    private final AtomicLong coalesced = new AtomicLong( );
+
+    // a logical block of a file
+    private static final class BlockKey {
+        final Inode inode;
+        final int block;
+
+        BlockKey( Inode inode, int block ) {
+            this.inode = inode;
+            this.block = block;
+        }
+
+        public boolean equals( Object other ) {
+            if ( !( other instanceof BlockKey ) ) {
+                return false;
+            }
+            BlockKey k = (BlockKey) other;
+            return inode == k.inode && block == k.block;
+        }
+
+        public int hashCode( ) {
+            return System.identityHashCode( inode ) * 31 + block;
+        }
+    }
+
+    // a block being loaded and the version of its Inode it started at
+    private static final class Load {
+        final long version;
+        final CompletableFuture<byte[]> data = new CompletableFuture<byte[]>( );
+
+        Load( long version ) {
+            this.version = version;
+        }
+    }
+
+    // constructor
+    // runs the requests on virtual threads where the JVM has them
+    public AsyncFileSystem( FileTable fileTable, SuperBlock superBlock ) {
+        this( fileTable, superBlock, defaultExecutor( ) );
+        ownExecutor = true;
+    }
+
+    // runs the requests on the specified executor
+    public AsyncFileSystem( FileTable fileTable, SuperBlock superBlock,
+                            ExecutorService requestExecutor ) {
+        filetable = fileTable;
+        superblock = superBlock;
+        executor = requestExecutor;
+    }
+
+    // a virtual thread per task, or a bounded pool before Java 21
+    private static ExecutorService defaultExecutor( ) {
+        try {
+            Method virtual = Executors.class.getMethod( "newVirtualThreadPerTaskExecutor" );
+            return (ExecutorService) virtual.invoke( null );
+        } catch ( ReflectiveOperationException e ) {
+            return Executors.newFixedThreadPool( ioThreads, new ThreadFactory( ) {
+                public Thread newThread( Runnable r ) {
+                    Thread t = new Thread( r, "AsyncFileSystem-io" );
+                    t.setDaemon( true );
+                    return t;
+                }
+            } );
+        }
+    }
+
+    // opens fname in mode ("r", "w", "w+" or "a"). "w" empties the file and
+    // "a" starts at its end. Completes with the entry, or null on failure
+    public CompletableFuture<FileTableEntry> open( final String fname, final String mode ) {
+        requests.incrementAndGet( );
+        return CompletableFuture.supplyAsync( new Supplier<FileTableEntry>( ) {
+            public FileTableEntry get( ) {
+                FileTableEntry ftEnt = filetable.falloc( fname, mode );
+                if ( ftEnt == null ) {
+                    return null;
+                }
+                if ( mode.equals( "w" ) ) {
+                    ftEnt.inode.truncate( superblock, 0 );
+                } else if ( mode.equals( "a" ) ) {
+                    ftEnt.seekPtr = ftEnt.inode.length;
+                }
+                return ftEnt;
+            }
+        }, executor );
+    }
+
+    // reads up to buffer.length bytes at the seek pointer and advances it.
+    // Completes with the number of bytes read, 0 at end of file, -1 if the
+    // entry cannot be read
+    public CompletableFuture<Integer> read( final FileTableEntry ftEnt,
+                                            final byte[] buffer ) {
+        return enqueue( ftEnt, new Callable<Integer>( ) {
+            public Integer call( ) {
+                if ( ftEnt.mode.equals( "w" ) || ftEnt.mode.equals( "a" ) ) {
+                    return -1;
+                }
+                int read = readAt( ftEnt.inode, ftEnt.seekPtr, buffer );
+                if ( read > 0 ) {
+                    ftEnt.seekPtr += read;
+                }
+                return read;
+            }
+        } );
+    }
+
+    // writes buffer at the seek pointer and advances it. Completes with
+    // the number of bytes written, -1 if the entry cannot be written
+    public CompletableFuture<Integer> write( final FileTableEntry ftEnt,
+                                             final byte[] buffer ) {
+        return enqueue( ftEnt, new Callable<Integer>( ) {
+            public Integer call( ) {
+                if ( ftEnt.mode.equals( "r" ) ) {
+                    return -1;
+                }
+                FileStreams.startFlusher( );
+                int written = ftEnt.inode.write( superblock, ftEnt.seekPtr,
+                                                 buffer, 0, buffer.length, true );
+                ftEnt.seekPtr += written;
+                return written;
+            }
+        } );
+    }
+
+    // moves the seek pointer by offset from whence (SEEK_SET, SEEK_CUR or
+    // SEEK_END), kept within the file. Completes with the new pointer
+    public CompletableFuture<Integer> seek( final FileTableEntry ftEnt,
+                                            final int offset, final int whence ) {
+        return enqueue( ftEnt, new Callable<Integer>( ) {
+            public Integer call( ) {
+                int base = ( whence == SEEK_CUR ) ? ftEnt.seekPtr :
+                    ( whence == SEEK_END ) ? ftEnt.inode.length : 0;
+                ftEnt.seekPtr = Math.max( 0, Math.min( base + offset, ftEnt.inode.length ) );
+                return ftEnt.seekPtr;
+            }
+        } );
+    }
+
+    // closes the entry after the requests queued on it. Completes with
+    // true if the entry was open
+    public CompletableFuture<Boolean> close( final FileTableEntry ftEnt ) {
+        final CompletableFuture<Boolean> closed = enqueue( ftEnt, new Callable<Boolean>( ) {
+            public Boolean call( ) {
+                return filetable.ffree( ftEnt );
+            }
+        } );
+        // forget the chain unless more requests were queued behind close
+        closed.whenComplete( new BiConsumer<Boolean, Throwable>( ) {
+            public void accept( Boolean result, Throwable failure ) {
+                tails.remove( ftEnt, closed );
+            }
+        } );
+        return closed;
+    }
+
+    // runs op after the requests already queued on ftEnt
+    private <T> CompletableFuture<T> enqueue( FileTableEntry ftEnt, final Callable<T> op ) {
+        requests.incrementAndGet( );
+        final CompletableFuture<T> result = new CompletableFuture<T>( );
+        if ( ftEnt == null ) {
+            result.completeExceptionally( new IllegalArgumentException( "no file" ) );
+            return result;
+        }
+        CompletableFuture<?> previous = tails.put( ftEnt, result );
+        if ( previous == null ) {
+            previous = CompletableFuture.completedFuture( null );
+        }
+        // a failed request does not stop the ones behind it
+        previous.whenCompleteAsync( new BiConsumer<Object, Throwable>( ) {
+            public void accept( Object ignored, Throwable failure ) {
+                try {
+                    result.complete( op.call( ) );
+                } catch ( Throwable t ) {
+                    result.completeExceptionally( t );
+                }
+            }
+        }, executor );
+        return result;
+    }
+
+    // reads into buffer from offset of inode; a read within one block goes
+    // through the coalesced block load
+    private int readAt( Inode inode, int offset, byte[] buffer ) {
+        int len = Math.min( buffer.length, inode.length - offset );
+        if ( len <= 0 ) {
+            return 0;
+        }
+        int block = offset / Disk.blockSize;
+        if ( ( offset + len - 1 ) / Disk.blockSize != block ) {
+            return inode.read( offset, buffer, 0, len );
+        }
+        byte[] data = loadBlock( inode, block );
+        int from = offset % Disk.blockSize;
+        len = Math.max( 0, Math.min( len, data.length - from ) );
+        System.arraycopy( data, from, buffer, 0, len );
+        return len;
+    }
+
+    // returns the bytes of a logical block of inode (fewer at the end of
+    // the file), joining a load of it that is still current
+    private byte[] loadBlock( Inode inode, int block ) {
+        BlockKey key = new BlockKey( inode, block );
+        long current = inode.version.get( );
+        Load mine = new Load( current );
+        Load running = loads.putIfAbsent( key, mine );
+        if ( running != null ) {
+            if ( running.version == current ) {
+                coalesced.incrementAndGet( );
+                return running.data.join( );
+            }
+            // stale: load again, taking its place if it is still there
+            if ( !loads.replace( key, running, mine ) ) {
+                mine = new Load( current ); // not shared
+            }
+        }
+        try {
+            byte[] data = new byte[Disk.blockSize];
+            int read = inode.read( block * Disk.blockSize, data, 0, Disk.blockSize );
+            mine.data.complete( Arrays.copyOf( data, Math.max( read, 0 ) ) );
+        } catch ( RuntimeException e ) {
+            mine.data.completeExceptionally( e );
+            throw e;
+        } finally {
+            loads.remove( key, mine );
+        }
+        return mine.data.join( );
+    }
+
+    // stops the executor if this facade created it
+    public void shutdown( ) {
+        if ( ownExecutor ) {
+            executor.shutdown( );
+        }
+    }
+
+    public String toString( ) {
+        return "AsyncFileSystem: requests=" + requests.get( ) +
+            " coalesced=" + coalesced.get( ) + " open=" + tails.size( );
+    }
+}
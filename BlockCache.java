@@ -0,0 +1,716 @@
+/** BlockCache.java
+*
+* Write-back cache of disk blocks shared by SuperBlock, Inode and Directory.
+* Every metadata read and write goes through this cache instead of going
+* to the disk directly, so a block that is patched over and over
+* (the inode blocks in particular) stays in memory and is only written back
+* when it is evicted or when SuperBlock.sync() flushes the cache.
+*
+* Victims are chosen with the second-chance (CLOCK) algorithm: every frame
+* has a reference bit that is set on access and cleared as the clock hand
+* passes over it. The first frame found with a clear bit is replaced, and
+* written back first if it is dirty.
+*
+* File data moved with readRun/writeRun bypasses the frames so a large
+* sequential transfer does not flush the metadata out of the cache; any
+* cached copy of those blocks is kept coherent.
+*
+* FileStreams uses two more paths for file data: prefetch() loads blocks
+* read ahead of a sequential reader into frames (without a reference bit,
+* so they are the first to go if nobody reads them), and writeBehind()
+* leaves whole data blocks dirty in frames for a background flusher.
+* writeBack() writes dirty frames of consecutive blocks as one run.
+*
+* Blocks changed inside a Journal transaction are pinned: they are not
+* evicted or written back until the transaction commits. A pinned frame
+* keeps a shadow copy of its committed contents, which is what the journal
+* logs (with the changes being committed applied) and what is written back
+* in its place; the frame itself may hold changes of several transactions
+* that have not committed yet. Changes made outside any transaction count
+* as committed and go to both. A miss finding every frame pinned waits for
+* a transaction to commit; if none does in time (the transactions may be
+* waiting on each other), the cache grows by a frame rather than fail.
+*
+* The blocks come from a BlockDevice: the ThreadOS disk by default, or any
+* other device (such as a MappedDisk image) given to setup(). A device that
+* exposes its storage as ByteBuffer views (slice()) serves read misses
+* straight from the view: a block that is not cached is current on the
+* device, so it is copied once, into the caller's buffer, without taking
+* (and perhaps evicting) a frame.
+*
+* @version 10/18/2026
+*/
+
+import java.nio.*;
+import java.util.*;
+
+public class BlockCache {
+    private static final int defaultFrames = 64;  // frames if never configured
+    private static final long pinWait = 100;      // ms to wait for a frame to be unpinned
+    private static BlockCache cache;              // the shared cache
+
+    private BlockDevice device;   // where blocks are read from and written to
+    private int frames;           // number of frames
+    private int blockIds[];       // block held by each frame, -1 if empty
+    private boolean reference[];  // second chance bit of each frame
+    private boolean dirty[];      // frame differs from the disk copy
+    private byte data[][];        // contents of each frame
+    private int pinned[];         // uncommitted transactions using each frame
+    private byte shadow[][];      // committed contents of a pinned frame, or null
+    private boolean shadowDirty[]; // shadow differs from the disk copy
+    private int buckets[];        // hash bucket -> first frame, -1 if none
+    private int chain[];          // frame -> next frame in the same bucket
+    private int hand;             // clock hand (next frame to examine)
+
+    // statistics
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long writeBacks;
+    private long prefetched;
+    private long pinWaits;        // misses that waited for a frame to be unpinned
+    private long grown;           // frames added when none was unpinned in time
+
+    // constructor
+    // creates a cache with the specified number of frames over a device
+    public BlockCache( BlockDevice disk, int numFrames ) {
+        device = Metrics.timed( disk ); // transfers count as raw reads/writes
+        if ( numFrames < 1 ) {
+            numFrames = 1;
+        }
+        frames = numFrames;
+        blockIds = new int[frames];
+        reference = new boolean[frames];
+        dirty = new boolean[frames];
+        data = new byte[frames][Disk.blockSize];
+        chain = new int[frames];
+        pinned = new int[frames];
+        shadow = new byte[frames][];
+        shadowDirty = new boolean[frames];
+
+        // bucket count is a power of two at least twice the frame count
+        int size = 1;
+        while ( size < frames * 2 ) {
+            size <<= 1;
+        }
+        buckets = new int[size];
+        Arrays.fill( buckets, -1 );
+        Arrays.fill( blockIds, -1 );
+        Arrays.fill( chain, -1 );
+        hand = 0;
+    }
+
+    // replaces the shared cache with one of the specified number of frames
+    // over the ThreadOS disk (or the device already in use).
+    // Dirty blocks of the previous cache are written back first.
+    public static synchronized void setup( int numFrames ) {
+        BlockDevice disk = ( cache != null ) ? cache.device : new ThreadOSDisk( 0 );
+        setup( disk, numFrames );
+    }
+
+    // replaces the shared cache with one of the specified number of frames
+    // over the specified device.
+    // Dirty blocks of the previous cache are written back first.
+    public static synchronized void setup( BlockDevice disk, int numFrames ) {
+        if ( cache != null ) {
+            cache.writeBack( );
+        }
+        cache = new BlockCache( disk, numFrames );
+    }
+
+    // returns the shared cache, creating a default one if needed
+    public static synchronized BlockCache getCache( ) {
+        if ( cache == null ) {
+            cache = new BlockCache( new ThreadOSDisk( 0 ), defaultFrames );
+        }
+        return cache;
+    }
+
+    // returns the device under the cache
+    public BlockDevice getDevice( ) {
+        return device;
+    }
+
+    // reads a block through the shared cache
+    public static boolean read( int blockId, byte buffer[] ) {
+        return getCache( ).readBlock( blockId, buffer );
+    }
+
+    // writes a block through the shared cache
+    public static boolean write( int blockId, byte buffer[] ) {
+        return getCache( ).writeBlock( blockId, buffer );
+    }
+
+    // writes all dirty blocks of the shared cache back to disk and makes
+    // them durable on the device
+    public static void flush( ) {
+        BlockCache shared = getCache( );
+        shared.writeBack( );
+        shared.device.sync( );
+    }
+
+    // reads count consecutive blocks starting at blockId into buffer at
+    // offset. Blocks already cached are copied from their frames; each
+    // stretch of uncached blocks is read from the device in one transfer,
+    // without being added to the cache
+    public synchronized void readRun( int blockId, int count, byte buffer[],
+                                      int offset ) {
+        int i = 0;
+        while ( i < count ) {
+            int frame = lookup( blockId + i );
+            if ( frame >= 0 ) {
+                hits++;
+                System.arraycopy( data[frame], 0, buffer,
+                                  offset + i * Disk.blockSize, Disk.blockSize );
+                i++;
+                continue;
+            }
+            int j = i + 1;
+            while ( j < count && lookup( blockId + j ) < 0 ) {
+                j++;
+            }
+            misses += j - i;
+            device.readRun( blockId + i, j - i, buffer, offset + i * Disk.blockSize );
+            i = j;
+        }
+    }
+
+    // writes count consecutive blocks starting at blockId from buffer at
+    // offset straight to the device in one transfer. A cached copy of any
+    // of them is updated and marked clean
+    public synchronized void writeRun( int blockId, int count, byte buffer[],
+                                       int offset ) {
+        for ( int i = 0; i < count; i++ ) {
+            int frame = lookup( blockId + i );
+            if ( frame >= 0 ) {
+                System.arraycopy( buffer, offset + i * Disk.blockSize, data[frame],
+                                  0, Disk.blockSize );
+                dirty[frame] = false;
+                if ( pinned[frame] > 0 ) {
+                    System.arraycopy( buffer, offset + i * Disk.blockSize, shadow[frame],
+                                      0, Disk.blockSize );
+                    shadowDirty[frame] = false;
+                }
+            }
+        }
+        device.writeRun( blockId, count, buffer, offset );
+    }
+
+    // loads count consecutive blocks starting at blockId into frames if they
+    // are not cached yet, reading each uncached stretch in one transfer.
+    // Stops early rather than evict dirty or pinned frames; returns the
+    // number of blocks loaded
+    public synchronized int prefetch( int blockId, int count ) {
+        count = Math.min( count, frames / 2 );
+        int loaded = 0;
+        int i = 0;
+        while ( i < count ) {
+            if ( lookup( blockId + i ) >= 0 ) {
+                i++;
+                continue;
+            }
+            int j = i + 1;
+            while ( j < count && lookup( blockId + j ) < 0 ) {
+                j++;
+            }
+            byte[] run = new byte[( j - i ) * Disk.blockSize];
+            device.readRun( blockId + i, j - i, run, 0 );
+            for ( int k = i; k < j; k++ ) {
+                int frame = replaceClean( blockId + k );
+                if ( frame < 0 ) {
+                    return loaded;
+                }
+                System.arraycopy( run, ( k - i ) * Disk.blockSize, data[frame], 0,
+                                  Disk.blockSize );
+                loaded++;
+                prefetched++;
+            }
+            i = j;
+        }
+        return loaded;
+    }
+
+    // stores count whole data blocks starting at blockId in frames and marks
+    // them dirty, to be written by writeBack(). They never join a journal
+    // transaction. Returns false, storing nothing, if that would leave more
+    // than half the frames dirty; the caller then writes the blocks itself
+    public synchronized boolean writeBehind( int blockId, int count,
+                                             byte buffer[], int offset ) {
+        int dirtyFrames = 0;
+        for ( int i = 0; i < frames; i++ ) {
+            if ( dirty[i] ) {
+                dirtyFrames++;
+            }
+        }
+        if ( dirtyFrames + count > frames / 2 ) {
+            return false;
+        }
+        for ( int i = 0; i < count; i++ ) {
+            int frame = lookup( blockId + i );
+            if ( frame < 0 ) {
+                frame = replace( blockId + i, false );
+            }
+            System.arraycopy( buffer, offset + i * Disk.blockSize, data[frame], 0,
+                              Disk.blockSize );
+            dirty[frame] = true;
+            if ( pinned[frame] > 0 ) {
+                System.arraycopy( buffer, offset + i * Disk.blockSize, shadow[frame],
+                                  0, Disk.blockSize );
+                shadowDirty[frame] = true;
+            }
+        }
+        return true;
+    }
+
+    // copies the specified block into buffer, reading it from disk on a miss
+    // (straight out of the device's view of it, without taking a frame, if
+    // the device has views). Returns false if the block number is invalid
+    public synchronized boolean readBlock( int blockId, byte buffer[] ) {
+        if ( blockId < 0 ) {
+            return false;
+        }
+        int frame = lookup( blockId );
+        if ( frame >= 0 ) {
+            hits++;
+        } else {
+            misses++;
+            ByteBuffer view = device.slice( blockId );
+            if ( view != null ) {
+                view.get( buffer, 0, Disk.blockSize );
+                return true;
+            }
+            frame = replace( blockId, true );
+        }
+        reference[frame] = true;
+        System.arraycopy( data[frame], 0, buffer, 0, Disk.blockSize );
+        return true;
+    }
+
+    // copies buffer into the cached copy of the specified block and marks it
+    // dirty. The disk is not touched until the frame is evicted or flushed.
+    // Returns false if the block number is invalid
+    public synchronized boolean writeBlock( int blockId, byte buffer[] ) {
+        if ( blockId < 0 ) {
+            return false;
+        }
+        int frame = lookup( blockId );
+        if ( frame >= 0 ) {
+            hits++;
+        } else {
+            // whole block is overwritten, so there is no need to read it
+            misses++;
+            frame = replace( blockId, false );
+        }
+        change( frame, Journal.OVERWRITE, 0, buffer, 0, Disk.blockSize );
+        return true;
+    }
+
+    // copies len bytes of the specified block, from blockOffset, into
+    // buffer at offset, reading the block on a miss (only those bytes,
+    // from the device's view, if it has views)
+    public synchronized void readBytes( int blockId, int blockOffset, byte buffer[],
+                                        int offset, int len ) {
+        int frame = lookup( blockId );
+        if ( frame >= 0 ) {
+            hits++;
+        } else {
+            misses++;
+            ByteBuffer view = device.slice( blockId );
+            if ( view != null ) {
+                view.position( blockOffset );
+                view.get( buffer, offset, len );
+                return;
+            }
+            frame = replace( blockId, true );
+        }
+        reference[frame] = true;
+        System.arraycopy( data[frame], blockOffset, buffer, offset, len );
+    }
+
+    // overwrites len bytes of the specified block, from blockOffset, with
+    // buffer at offset and marks it dirty. Like writeBlock, but the rest of
+    // the block is kept (read on a miss), and the read-modify-write is
+    // atomic, so writers of different parts of one block need no other lock
+    public synchronized void patch( int blockId, int blockOffset, byte buffer[],
+                                    int offset, int len ) {
+        int frame = lookup( blockId );
+        if ( frame >= 0 ) {
+            hits++;
+        } else {
+            misses++;
+            frame = replace( blockId, len < Disk.blockSize );
+        }
+        change( frame, Journal.OVERWRITE, blockOffset, buffer, offset, len );
+    }
+
+    // flips the bits of mask in byte blockOffset of the specified block
+    // (a free-block bitmap bit), reading the block on a miss. Journaled as
+    // a flip, so it combines with other transactions' flips in the block
+    public synchronized void toggleBits( int blockId, int blockOffset, int mask ) {
+        change( load( blockId ), Journal.TOGGLE, blockOffset, 
+                new byte[] { (byte) mask }, 0, 1 );
+    }
+
+    // sets the bits of mask in byte blockOffset of the specified block
+    public synchronized void setBits( int blockId, int blockOffset, int mask ) {
+        change( load( blockId ), Journal.SET, blockOffset, 
+                new byte[] { (byte) mask }, 0, 1 );
+    }
+
+    // adds delta to byte blockOffset of the specified block (a counter)
+    public synchronized void addByte( int blockId, int blockOffset, int delta ) {
+        change( load( blockId ), Journal.ADD, blockOffset, 
+                new byte[] { (byte) delta }, 0, 1 );
+    }
+
+    // fills the specified block with zeros and writes it to the device at
+    // once, outside any transaction. Used for a block whose contents were
+    // never written (a lazily initialized bitmap group), so a transaction
+    // marking it initialized finds it zeroed on the disk when it commits
+    public synchronized void zeroBlock( int blockId ) {
+        int frame = lookup( blockId );
+        if ( frame < 0 ) {
+            frame = replace( blockId, false );
+        }
+        Arrays.fill( data[frame], (byte) 0 );
+        if ( pinned[frame] > 0 ) {
+            Arrays.fill( shadow[frame], (byte) 0 );
+            shadowDirty[frame] = false;
+        }
+        device.write( blockId, data[frame], 0 );
+        dirty[frame] = false;
+        reference[frame] = true;
+    }
+
+    // returns the frame of the specified block, reading it on a miss
+    private int load( int blockId ) {
+        int frame = lookup( blockId );
+        if ( frame >= 0 ) {
+            hits++;
+        } else {
+            misses++;
+            frame = replace( blockId, true );
+        }
+        return frame;
+    }
+
+    // makes a change of kind to a frame. Inside a journal transaction the
+    // frame is pinned (its committed contents copied to the shadow the
+    // first time) and the change is recorded; outside one it is committed
+    // at once, so a pinned frame's shadow gets it too
+    private void change( int frame, int kind, int blockOffset, byte src[], 
+                         int srcOffset, int len ) {
+        int blockId = blockIds[frame];
+        if ( Journal.track( blockId ) && pinned[frame]++ == 0 ) {
+            shadow[frame] = data[frame].clone( );
+            shadowDirty[frame] = dirty[frame];
+        }
+        boolean recorded = Journal.record( blockId, kind, blockOffset, src, srcOffset, len );
+        Journal.apply( kind, data[frame], blockOffset, src, srcOffset, len );
+        if ( !recorded && pinned[frame] > 0 ) {
+            Journal.apply( kind, shadow[frame], blockOffset, src, srcOffset, len );
+            shadowDirty[frame] = true;
+        }
+        reference[frame] = true;
+        dirty[frame] = true;
+    }
+
+    // releases the blocks of a committed (or abandoned) journal transaction
+    public synchronized void unpin( Collection<Integer> blockIds ) {
+        boolean released = false;
+        for ( int blockId : blockIds ) {
+            int frame = lookup( blockId );
+            if ( frame >= 0 && pinned[frame] > 0 && --pinned[frame] == 0 ) {
+                shadow[frame] = null;
+                shadowDirty[frame] = false;
+                released = true;
+            }
+        }
+        if ( released ) {
+            notifyAll( );   // misses waiting for an unpinned frame
+        }
+    }
+
+    // applies the changes of committed transactions to the shadows of their
+    // frames, which are still pinned by those transactions
+    public synchronized void commit( Collection<Journal.Change> changes ) {
+        for ( Journal.Change change : changes ) {
+            int frame = lookup( change.blockId );
+            if ( frame >= 0 && pinned[frame] > 0 ) {
+                change.apply( shadow[frame] );
+                shadowDirty[frame] = true;
+            }
+        }
+    }
+
+    // copies the committed contents of a block into buffer without counting
+    // an access: the shadow of a pinned frame, else the frame or the disk
+    // (used by the journal to log pinned blocks)
+    public synchronized void peekCommitted( int blockId, byte buffer[] ) {
+        int frame = lookup( blockId );
+        if ( frame >= 0 ) {
+            byte[] committed = ( pinned[frame] > 0 ) ? shadow[frame] : data[frame];
+            System.arraycopy( committed, 0, buffer, 0, Disk.blockSize );
+        } else {
+            ByteBuffer view = device.slice( blockId );
+            if ( view != null ) {
+                view.get( buffer, 0, Disk.blockSize );
+            } else {
+                device.read( blockId, buffer, 0 );
+            }
+        }
+    }
+
+    // writes every dirty frame back to disk (frames stay cached). Frames of
+    // consecutive blocks are written as one run. Pinned frames are not
+    // written; only their committed shadow copy is, if it changed
+    public synchronized void writeBack( ) {
+        Integer[] order = new Integer[frames];
+        int n = 0;
+        for ( int i = 0; i < frames; i++ ) {
+            if ( blockIds[i] < 0 ) {
+                continue;
+            }
+            if ( pinned[i] > 0 ) {
+                if ( shadowDirty[i] ) {
+                    device.write( blockIds[i], shadow[i], 0 );
+                    shadowDirty[i] = false;
+                    writeBacks++;
+                }
+            } else if ( dirty[i] ) {
+                order[n++] = i;
+            }
+        }
+        Arrays.sort( order, 0, n, new Comparator<Integer>( ) {
+            public int compare( Integer a, Integer b ) {
+                return Integer.compare( blockIds[a], blockIds[b] );
+            }
+        } );
+        byte[] run = null;
+        for ( int i = 0; i < n; ) {
+            int j = i + 1;
+            while ( j < n && blockIds[order[j]] == blockIds[order[i]] + ( j - i ) ) {
+                j++;
+            }
+            if ( j - i == 1 ) {
+                device.write( blockIds[order[i]], data[order[i]], 0 );
+            } else {
+                if ( run == null ) {
+                    run = new byte[n * Disk.blockSize];
+                }
+                for ( int k = i; k < j; k++ ) {
+                    System.arraycopy( data[order[k]], 0, run, ( k - i ) * Disk.blockSize,
+                                      Disk.blockSize );
+                }
+                device.writeRun( blockIds[order[i]], j - i, run, 0 );
+            }
+            for ( int k = i; k < j; k++ ) {
+                dirty[order[k]] = false;
+            }
+            writeBacks += j - i;
+            i = j;
+        }
+    }
+
+    // drops the cached copy of a block without writing it back
+    public synchronized void invalidate( int blockId ) {
+        int frame = lookup( blockId );
+        if ( frame >= 0 ) {
+            unlink( frame );
+            blockIds[frame] = -1;
+            reference[frame] = false;
+            dirty[frame] = false;
+            pinned[frame] = 0;
+            shadow[frame] = null;
+            shadowDirty[frame] = false;
+        }
+    }
+
+    // drops the cached copies of count freed blocks so their dirty frames
+    // are not written back. Frames pinned by a transaction are left alone.
+    // Returns the number of frames dropped
+    public synchronized int discard( int blocks[], int count ) {
+        int dropped = 0;
+        for ( int i = 0; i < count; i++ ) {
+            int frame = lookup( blocks[i] );
+            if ( frame >= 0 && pinned[frame] == 0 ) {
+                unlink( frame );
+                blockIds[frame] = -1;
+                reference[frame] = false;
+                dirty[frame] = false;
+                dropped++;
+            }
+        }
+        return dropped;
+    }
+
+    public synchronized long getHits( ) {
+        return hits;
+    }
+
+    public synchronized long getMisses( ) {
+        return misses;
+    }
+
+    public synchronized long getEvictions( ) {
+        return evictions;
+    }
+
+    public synchronized long getWriteBacks( ) {
+        return writeBacks;
+    }
+
+    public synchronized long getPrefetched( ) {
+        return prefetched;
+    }
+
+    public synchronized String toString( ) {
+        return "BlockCache: frames=" + frames + " hits=" + hits +
+            " misses=" + misses + " evictions=" + evictions +
+            " writeBacks=" + writeBacks + " prefetched=" + prefetched +
+            " pinWaits=" + pinWaits + " grown=" + grown;
+    }
+
+    // returns the frame holding blockId, -1 if not cached
+    private int lookup( int blockId ) {
+        int frame = buckets[bucketOf( blockId )];
+        while ( frame >= 0 && blockIds[frame] != blockId ) {
+            frame = chain[frame];
+        }
+        return frame;
+    }
+
+    // picks a victim frame with the second chance algorithm, writes it back
+    // if dirty, rebinds it to blockId and, if read, reads the block into
+    // it. Pinned frames are never picked: when every frame is pinned, the
+    // caller waits for a transaction to commit and unpin one. If none is
+    // unpinned within pinWait milliseconds (the transactions holding them
+    // may be waiting themselves, here or for a lock the caller holds), a
+    // frame is added to the cache instead. Returns the frame; if another
+    // thread cached the block while this one waited, that frame as it is
+    private int replace( int blockId, boolean read ) {
+        int frame = victim( );
+        long deadline = System.currentTimeMillis( ) + pinWait;
+        while ( frame < 0 ) {
+            long left = deadline - System.currentTimeMillis( );
+            if ( left <= 0 ) {
+                frame = grow( );
+                break;
+            }
+            pinWaits++;
+            try {
+                wait( left );
+            } catch ( InterruptedException e ) { }
+            int cached = lookup( blockId );
+            if ( cached >= 0 ) {
+                return cached;
+            }
+            frame = victim( );
+        }
+
+        // evict the current contents
+        if ( blockIds[frame] >= 0 ) {
+            evictions++;
+            if ( dirty[frame] ) {
+                device.write( blockIds[frame], data[frame], 0 );
+                writeBacks++;
+            }
+            unlink( frame );
+        }
+
+        // bind the frame to the new block
+        blockIds[frame] = blockId;
+        dirty[frame] = false;
+        reference[frame] = false;
+        int bucket = bucketOf( blockId );
+        chain[frame] = buckets[bucket];
+        buckets[bucket] = frame;
+        if ( read ) {
+            device.read( blockId, data[frame], 0 );
+        }
+        return frame;
+    }
+
+    // advances the clock hand to a frame that can be replaced: an empty one
+    // or an unpinned one whose second chance is used up. Returns -1 if
+    // every frame is pinned
+    private int victim( ) {
+        for ( int steps = 0; steps <= 2 * frames; steps++ ) {
+            int frame = hand;
+            hand = ( hand + 1 ) % frames;
+            if ( blockIds[frame] < 0 ) {
+                return frame;       // empty frame
+            }
+            if ( pinned[frame] > 0 ) {
+                continue;           // held by an uncommitted transaction
+            }
+            if ( reference[frame] ) {
+                reference[frame] = false; // give it a second chance
+            } else {
+                return frame;       // victim found
+            }
+        }
+        return -1;
+    }
+
+    // adds an empty frame to the cache and returns it
+    private int grow( ) {
+        int frame = frames++;
+        blockIds = Arrays.copyOf( blockIds, frames );
+        reference = Arrays.copyOf( reference, frames );
+        dirty = Arrays.copyOf( dirty, frames );
+        data = Arrays.copyOf( data, frames );
+        chain = Arrays.copyOf( chain, frames );
+        pinned = Arrays.copyOf( pinned, frames );
+        shadow = Arrays.copyOf( shadow, frames );
+        shadowDirty = Arrays.copyOf( shadowDirty, frames );
+        blockIds[frame] = -1;
+        chain[frame] = -1;
+        data[frame] = new byte[Disk.blockSize];
+        grown++;
+        return frame;
+    }
+
+    // like replace, but only takes an empty frame or a clean unreferenced
+    // one, so prefetching never forces a write. Returns -1 if there is none
+    private int replaceClean( int blockId ) {
+        for ( int steps = 0; steps < frames; steps++ ) {
+            int frame = hand;
+            hand = ( hand + 1 ) % frames;
+            if ( blockIds[frame] < 0 ||
+                 ( pinned[frame] == 0 && !reference[frame] && !dirty[frame] ) ) {
+                if ( blockIds[frame] >= 0 ) {
+                    evictions++;
+                    unlink( frame );
+                }
+                blockIds[frame] = blockId;
+                dirty[frame] = false;
+                reference[frame] = false;
+                int bucket = bucketOf( blockId );
+                chain[frame] = buckets[bucket];
+                buckets[bucket] = frame;
+                return frame;
+            }
+        }
+        return -1;
+    }
+
+    // removes a frame from its hash chain
+    private void unlink( int frame ) {
+        int bucket = bucketOf( blockIds[frame] );
+        if ( buckets[bucket] == frame ) {
+            buckets[bucket] = chain[frame];
+        } else {
+            int prev = buckets[bucket];
+            while ( chain[prev] != frame ) {
+                prev = chain[prev];
+            }
+            chain[prev] = chain[frame];
+        }
+        chain[frame] = -1;
+    }
+
+    private int bucketOf( int blockId ) {
+        return ( blockId * 0x9E3779B1 >>> 16 ) & ( buckets.length - 1 );
+    }
+}
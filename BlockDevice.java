@@ -0,0 +1,37 @@
+/** BlockDevice.java
+*
+* A disk that stores blocks of Disk.blockSize bytes. BlockCache does all of
+* its I/O through one of these, so the file system can run either on the
+* ThreadOS simulated disk (ThreadOSDisk) or directly on a memory-mapped
+* image file on the host (MappedDisk).
+*
+* @version 10/18/2026
+*/
+
+import java.nio.*;
+
+public interface BlockDevice {
+
+    // number of blocks on the device
+    int blockCount( );
+
+    // copies one block into buffer at offset
+    void read( int blockId, byte buffer[], int offset );
+
+    // copies one block from buffer at offset onto the device
+    void write( int blockId, byte buffer[], int offset );
+
+    // copies count consecutive blocks into buffer at offset
+    void readRun( int blockId, int count, byte buffer[], int offset );
+
+    // copies count consecutive blocks from buffer at offset onto the device
+    void writeRun( int blockId, int count, byte buffer[], int offset );
+
+    // returns a read-only view of the block's bytes without copying them,
+    // or null if the device cannot expose its storage. BlockCache reads
+    // blocks it does not hold through the view
+    ByteBuffer slice( int blockId );
+
+    // makes everything written so far durable
+    void sync( );
+}
@@ -0,0 +1,187 @@
+/** Defragmenter.java
+*
+* Online defragmenter. It walks the inodes in use (the Directory's inumber
+* bitmap), measures how many physically contiguous runs each file's blocks
+* form (Inode.fragments) and moves every file in more than one run into a
+* single free run (Inode.relocate). Files stay open meanwhile: relocate
+* holds the file's write lock while it copies and repoints the blocks, so
+* readers and writers of that file simply wait.
+*
+* A file nobody has loaded is measured from a copy of its inode read for
+* the purpose, so a pass does not fill the inode table with cold inodes;
+* only a file that has to move is loaded, since only its canonical Inode
+* may be relocated.
+*
+* Moving is rate limited to maxBlocksPerSecond so foreground I/O keeps the
+* disk. A pass can be run directly (runPass) or repeatedly on a daemon
+* thread (start/stop); the counters describe the work done so far.
+*
+* @version 10/18/2026
+*/
+
+public class Defragmenter implements Runnable {
+    private final static long idleInterval = 60000; // ms between background passes
+
+    private SuperBlock superblock;
+    private Directory directory;        // which inumbers are in use
+    private int maxBlocksPerSecond;     // relocation rate limit, 0 = none
+    private volatile boolean running;
+    private Thread worker;
+
+    // statistics
+    private volatile long passes;
+    private volatile long filesScanned;
+    private volatile long filesFragmented;  // found in more than one run
+    private volatile long filesMoved;
+    private volatile long blocksMoved;
+    private volatile long fragmentsRemoved;
+    private volatile long busyMillis;       // time spent relocating
+    private volatile short position;        // inode being examined
+
+    // constructor
+    public Defragmenter( SuperBlock superBlock, Directory rootDirectory, 
+                         int maxBlocksPerSecond ) {
+        superblock = superBlock;
+        directory = rootDirectory;
+        this.maxBlocksPerSecond = maxBlocksPerSecond;
+    }
+
+    // changes the rate limit (blocks moved per second, 0 = unlimited)
+    public void setRate( int blocksPerSecond ) {
+        maxBlocksPerSecond = blocksPerSecond;
+    }
+
+    // starts repeating passes on a daemon thread
+    public synchronized void start( ) {
+        if ( worker != null ) {
+            return;
+        }
+        running = true;
+        worker = new Thread( this, "Defragmenter" );
+        worker.setDaemon( true );
+        worker.start( );
+    }
+
+    // stops the background passes after the file being moved
+    public synchronized void stop( ) {
+        running = false;
+        if ( worker != null ) {
+            worker.interrupt( );
+            worker = null;
+        }
+    }
+
+    public void run( ) {
+        while ( running ) {
+            runPass( );
+            try {
+                Thread.sleep( idleInterval );
+            } catch ( InterruptedException e ) {
+                return;
+            }
+        }
+    }
+
+    // examines every inode in use once, moving the fragmented files.
+    // Returns the number of blocks moved
+    public long runPass( ) {
+        long moved = 0;
+        InodeTable table = FileTable.inodeTable;
+        if ( table == null ) {
+            return 0;
+        }
+        for ( int i = directory.nextInUse( 1 ); i > 0 && i < table.size( );
+              i = directory.nextInUse( i + 1 ) ) {
+            position = (short) i;
+            Inode inode = table.peek( (short) i );
+            if ( inode == null ) {
+                inode = new Inode( (short) i );
+            }
+            if ( inode.length == 0 ) {
+                continue;
+            }
+            filesScanned++;
+            int runs = inode.fragments( );
+            if ( runs <= 1 ) {
+                continue;
+            }
+            filesFragmented++;
+
+            int blocks = relocate( table, (short) i );
+            if ( blocks > 0 ) {
+                filesMoved++;
+                blocksMoved += blocks;
+                fragmentsRemoved += runs - 1;
+                moved += blocks;
+            }
+            if ( Thread.currentThread( ) == worker && !running ) {
+                break;
+            }
+        }
+        passes++;
+        return moved;
+    }
+
+    // moves the file iNumber through its canonical Inode, held while it is
+    // moved, unless the inumber was freed meanwhile.
+    // Returns the number of blocks moved
+    private int relocate( InodeTable table, short iNumber ) {
+        Inode inode = table.acquire( iNumber );
+        if ( inode == null ) {
+            return 0;
+        }
+        try {
+            if ( directory.nextInUse( iNumber ) != iNumber ) {
+                return 0;
+            }
+            long began = System.currentTimeMillis( );
+            int blocks = inode.relocate( superblock );
+            long took = System.currentTimeMillis( ) - began;
+            busyMillis += took;
+            if ( blocks > 0 ) {
+                throttle( blocks, took );
+            }
+            return blocks;
+        } finally {
+            table.release( iNumber );
+        }
+    }
+
+    // sleeps long enough that blocks moved in took ms stays within the rate
+    private void throttle( int blocks, long took ) {
+        int rate = maxBlocksPerSecond;
+        if ( rate <= 0 ) {
+            return;
+        }
+        long wait = blocks * 1000L / rate - took;
+        if ( wait > 0 ) {
+            try {
+                Thread.sleep( wait );
+            } catch ( InterruptedException e ) {
+                Thread.currentThread( ).interrupt( );
+            }
+        }
+    }
+
+    // blocks moved per second of relocation work
+    public double throughput( ) {
+        long busy = busyMillis;
+        return ( busy == 0 ) ? 0 : blocksMoved * 1000.0 / busy;
+    }
+
+    public long getBlocksMoved( ) {
+        return blocksMoved;
+    }
+
+    public long getFilesMoved( ) {
+        return filesMoved;
+    }
+
+    public String toString( ) {
+        return "Defragmenter: passes=" + passes + " at inode " + position +
+            " scanned=" + filesScanned + " fragmented=" + filesFragmented +
+            " moved=" + filesMoved + " blocks=" + blocksMoved +
+            " fragmentsRemoved=" + fragmentsRemoved +
+            " blocksPerSecond=" + (long) throughput( );
+    }
+}
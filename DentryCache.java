@@ -0,0 +1,165 @@
+/** DentryCache.java
+*
+* Cache of directory entry lookups used by DirectoryTree. It maps
+* (parent iNumber, name) to the iNumber the name resolves to, or to -1 when
+* the parent is known not to hold the name (a negative entry), so repeated
+* lookups of the same path, found or not, do not read directory blocks.
+*
+* Hits take no lock and allocate nothing: get looks up with a per-thread
+* probe key, hashing and comparing the name in place. Every entry carries
+* the tick of its last use; when the cache grows past its capacity the
+* least recently used eighth is evicted. Names are compared ignoring case,
+* like Directory.namei.
+*
+* @version 10/18/2026
+*/
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+public class DentryCache {
+    private final int capacity;     // most entries kept
+    private final ConcurrentHashMap<Key, Entry> entries;
+    private final AtomicLong clock = new AtomicLong( ); // use ticks
+
+    // statistics
+    private final AtomicLong hits = new AtomicLong( );
+    private final AtomicLong misses = new AtomicLong( );
+
+    // probe key get reuses, one per thread
+    private static final ThreadLocal<Key> probe = new ThreadLocal<Key>( ) {
+        protected Key initialValue( ) {
+            return new Key( );
+        }
+    };
+
+    // lookup key: parent directory and name, hashed and compared ignoring
+    // case. Keys in the map are never changed; only probes are set again
+    private static final class Key {
+        short parent;
+        String name;
+        int hash;
+
+        Key( ) {
+        }
+
+        Key( short parent, String name ) {
+            set( parent, name );
+        }
+
+        Key set( short parent, String name ) {
+            int h = parent;
+            for ( int i = 0; i < name.length( ); i++ ) {
+                h = 31 * h + lower( name.charAt( i ) );
+            }
+            this.parent = parent;
+            this.name = name;
+            hash = h;
+            return this;
+        }
+
+        public boolean equals( Object other ) {
+            if ( !( other instanceof Key ) ) {
+                return false;
+            }
+            Key k = (Key) other;
+            if ( parent != k.parent || hash != k.hash || name.length( ) != k.name.length( ) ) {
+                return false;
+            }
+            if ( name.equals( k.name ) ) {
+                return true;
+            }
+            for ( int i = 0; i < name.length( ); i++ ) {
+                if ( lower( name.charAt( i ) ) != lower( k.name.charAt( i ) ) ) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        public int hashCode( ) {
+            return hash;
+        }
+
+        // Character.toLowerCase, without its table lookup for ASCII
+        private static char lower( char c ) {
+            if ( c < 128 ) {
+                return ( c >= 'A' && c <= 'Z' ) ? (char) ( c + 32 ) : c;
+            }
+            return Character.toLowerCase( c );
+        }
+    }
+
+    private static final class Entry {
+        final short iNumber;        // -1 for a negative entry
+        volatile long used;         // tick of the last lookup
+
+        Entry( short iNumber, long used ) {
+            this.iNumber = iNumber;
+            this.used = used;
+        }
+    }
+
+    // constructor
+    public DentryCache( int maxEntries ) {
+        capacity = Math.max( maxEntries, 8 );
+        entries = new ConcurrentHashMap<Key, Entry>( );
+    }
+
+    // returns the cached iNumber of name in parent: -1 if the name is known
+    // not to exist, -2 if nothing is cached
+    public short get( short parent, String name ) {
+        Key key = probe.get( );
+        Entry e = entries.get( key.set( parent, name ) );
+        key.name = null; // do not keep the caller's string alive
+        if ( e == null ) {
+            misses.incrementAndGet( );
+            return -2;
+        }
+        hits.incrementAndGet( );
+        e.used = clock.incrementAndGet( );
+        return e.iNumber;
+    }
+
+    // remembers that name in parent resolves to iNumber (-1: does not exist)
+    public void put( short parent, String name, short iNumber ) {
+        entries.put( new Key( parent, name ), new Entry( iNumber, clock.incrementAndGet( ) ) );
+        if ( entries.size( ) > capacity ) {
+            evict( );
+        }
+    }
+
+    // forgets every entry
+    public void clear( ) {
+        entries.clear( );
+    }
+
+    public int size( ) {
+        return entries.size( );
+    }
+
+    public String toString( ) {
+        return "DentryCache: entries=" + entries.size( ) + " hits=" + hits.get( ) +
+            " misses=" + misses.get( );
+    }
+
+    // drops the least recently used eighth of the entries
+    private synchronized void evict( ) {
+        int excess = entries.size( ) - capacity;
+        if ( excess <= 0 ) {
+            return; // another thread evicted already
+        }
+        int drop = Math.max( excess, capacity / 8 );
+        ArrayList<Map.Entry<Key, Entry>> all =
+            new ArrayList<Map.Entry<Key, Entry>>( entries.entrySet( ) );
+        Collections.sort( all, new Comparator<Map.Entry<Key, Entry>>( ) {
+            public int compare( Map.Entry<Key, Entry> a, Map.Entry<Key, Entry> b ) {
+                return Long.compare( a.getValue( ).used, b.getValue( ).used );
+            }
+        } );
+        for ( int i = 0; i < drop && i < all.size( ); i++ ) {
+            entries.remove( all.get( i ).getKey( ), all.get( i ).getValue( ) );
+        }
+    }
+}
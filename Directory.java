@@ -12,14 +12,41 @@
 *@version 12/8/2013
 *
 * added Inode array, array synchronization, comments
+*
+* The directory is guarded by its own monitor, separate from the inodes
+* and the superblock, so lookups do not wait on file I/O.
+*
+* On disk each entry is a fixed-size record, recordSize bytes at
+* iNumber * recordSize in the directory file:
+*   int    name length
+*   short  maxChars name characters (unused ones 0)
+* ialloc and ifree only mark the directory block holding the changed record
+* dirty, and sync() writes back just those blocks. Once the directory is
+* attached to the root inode (attach()), each change instead writes its
+* block at once, inside the calling thread's journal transaction, so a new
+* entry commits together with the Inode it names. Disks older than
+* version 3 keep the original layout (all lengths, then all names) and are
+* always written back whole, by sync().
+*
+* The entries here are the names in "/". Files in subdirectories (see
+* DirectoryTree) also take their inumber from this table, with a name
+* length of -1 so they are allocated but not named in the root.
 */
 
 import java.util.*;
 
 public class Directory {
     private static int maxChars = 30; // the max characters of each file name
+    private static final int recordSize = 4 + maxChars * 2; // bytes per entry on disk
+    private static boolean recordLayout = true; // false for pre-version 3 disks
     private int fsizes[];             // the actual size of each file name
     private char fnames[][];          // file names in characters
+    private short index[];            // open-addressed name hash -> inumber, -1 empty
+    private long inUse[];             // inode allocation bitmap, 1 bit per inumber
+    private int lowestFree;           // no inumber below this one is free
+    private BitSet dirtyBlocks;       // directory file blocks not yet written back
+    private Inode dirInode;           // root inode changes go to, null if not attached
+    private SuperBlock superblock;    // to allocate the blocks of dirInode
     
     // constructor
     public Directory ( int maxInumber ) {     
@@ -31,16 +58,46 @@ public class Directory {
     	String root = "/";                      // entry (inode) 0 is "/"
     	fsizes[0] = root.length();
     	root.getChars( 0, fsizes[0], fnames[0], 0 ); 
+    	
+    	// hash index is a power of two at least twice the number of entries,
+    	// so probe sequences stay short
+    	int size = 2;
+    	while ( size < maxInumber * 2 ) {
+    		size <<= 1;
+    	}
+    	index = new short[size];
+    	inUse = new long[(maxInumber + 63) / 64];
+    	rebuildIndex();
+    	
+    	// nothing is on disk yet
+    	dirtyBlocks = new BitSet();
+    	dirtyBlocks.set(0, blocksOf(maxInumber));
+    }
+    
+    // selects the on-disk layout of the directory.
+    // SuperBlock sets it from the disk's version when it is mounted
+    public static void setRecordLayout( boolean records ) {
+    	recordLayout = records;
     }
     
     // converts and adds data in byte array to the directory
-    public void bytes2directory( byte[] data ) {
+    public synchronized void bytes2directory( byte[] data ) {
+    	if ( recordLayout ) {
+    		// names are decoded straight from the records
+    		for ( int i = 0; i < fsizes.length; i++ ) {
+    			decodeRecord( i, data, i * recordSize );
+    		}
+    		rebuildIndex();
+    		dirtyBlocks.clear();
+    		return;
+    	}
+    	
     	int offset = 0;
 	
     	// each offset is 4 bytes for the int in fsizes[]
     	for ( int i = 0; i < fsizes.length; i++, offset += 4 ){
     		// add sizes
-    		fsizes[i] = SysLib.bytes2int( data, offset );
+    		fsizes[i] = DiskCodec.bytes2int( data, offset );
     	}
     	
     	// each offset is 2 bytes * maxChars (30) for the name in fnames[]
@@ -48,13 +105,26 @@ public class Directory {
     		String filename = new String( data, offset, maxChars * 2 );
 	    
     		// add names
-    		filename.getChars( 0, fsizes[i], fnames[i], 0 );
+    		filename.getChars( 0, Math.max( fsizes[i], 0 ), fnames[i], 0 );
     	}
+    	
+    	// names changed, so the hash index and inode bitmap must be rebuilt
+    	rebuildIndex();
+    	dirtyBlocks.clear();
     }
  
     // converts and return Directory information into a plain byte array
     // this byte array will be written back to disk
-    public byte[] directory2bytes() {
+    public synchronized byte[] directory2bytes() {
+    	dirtyBlocks.clear();
+    	if ( recordLayout ) {
+    		byte[] data = new byte[recordSize * fsizes.length];
+    		for ( int i = 0; i < fsizes.length; i++ ) {
+    			encodeRecord( i, data, i * recordSize );
+    		}
+    		return data;
+    	}
+    	
     	int offset = 0;
 		
 		// need a byte[]: number of bytes = (maxChars (30) * 2 bytes for char
@@ -66,7 +136,7 @@ public class Directory {
 		// each offset is 4 bytes for the int in fsizes[]
 		for ( int i = 0; i < fsizes.length; i++, offset += 4 ){
 			// fill data with byte-converted sizes
-			SysLib.int2bytes(fsizes[i], data, offset);
+			DiskCodec.int2bytes(fsizes[i], data, offset);
 		}
 		
 		// each offset is 2 bytes * maxChars (30) for the name in fnames[]
@@ -81,53 +151,333 @@ public class Directory {
         }
 	return data;
     }
+    
+    // loads the directory from the file of dirInode (the root inode) and
+    // from then on writes each change into it as it is made, instead of
+    // waiting for sync(). Call it when mounting, before the directory is
+    // used. Returns false if the file could not be completed (disk full)
+    public synchronized boolean attach( Inode dirInode, SuperBlock superblock ) {
+    	if ( dirInode.length > 0 ) {
+    		byte[] data = new byte[dirInode.length];
+    		dirInode.read( 0, data, 0, data.length );
+    		bytes2directory( data );
+    	}
+    	this.dirInode = dirInode;
+    	this.superblock = superblock;
+    	return sync( dirInode, superblock ) >= 0;
+    }
+
+    // writes the changed directory blocks into the directory file of
+    // dirInode (the root inode); superblock is passed to allocate blocks.
+    // On a pre-version 3 disk, or if the file is still shorter than the
+    // directory, everything is written.
+    // Returns the number of blocks written
+    public synchronized int sync( Inode dirInode, SuperBlock superblock ) {
+    	if ( !recordLayout ) {
+    		// one block per write, so no transaction outgrows the journal
+    		byte[] data = directory2bytes();
+    		for ( int from = 0; from < data.length; from += Disk.blockSize ) {
+    			int len = Math.min(Disk.blockSize, data.length - from);
+    			if ( dirInode.write(superblock, from, data, from, len) < len ) {
+    				return -1;
+    			}
+    		}
+    		return (data.length + Disk.blockSize - 1) / Disk.blockSize;
+    	}
+    	
+    	int total = recordSize * fsizes.length;
+    	if ( dirInode.length < total ) {
+    		dirtyBlocks.set(0, blocksOf(fsizes.length));
+    	}
+    	int written = 0;
+    	for ( int b = dirtyBlocks.nextSetBit(0); b >= 0; b = dirtyBlocks.nextSetBit(b + 1) ) {
+    		if ( !writeBlock(b, dirInode, superblock) ) {
+    			return -1; // disk full; the block stays dirty
+    		}
+    		written++;
+    	}
+    	return written;
+    }
   
     /* allocate Inode for filename (-1 if none) 
        Filename is for the file to create.
        Allocates a new inode number for this filename*/
     public short ialloc ( String filename ){
-    	short index = -1; // invalid
+    	long start = Metrics.start();
+    	try {
+    		return allocate(filename);
+    	} finally {
+    		Metrics.record(Metrics.IALLOC, start);
+    	}
+    }
+    
+    private synchronized short allocate ( String filename ){
+    	short iNumber = -1; // invalid
     	if((filename.length() > 0) && (filename.length() < maxChars)){
-    		// Find first empty file location
-    		for(short i = 0; i < fsizes.length; i++){
-    			// search array and find 1st free space (index)
-    			if(fsizes[i] == 0){ // free
-    				//allocate the filename to that index
-    				fsizes[i] = filename.length(); 
-    				filename.getChars(0, fsizes[i], fnames[i], 0);
-    				index = i; // update index
+    		// take the lowest free inumber from the bitmap
+    		iNumber = allocInumber();
+    		if(iNumber >= 0){
+    			//allocate the filename to that index
+    			fsizes[iNumber] = filename.length(); 
+    			filename.getChars(0, fsizes[iNumber], fnames[iNumber], 0);
+    			insert(iNumber);
+    			if(!markDirty(iNumber)){
+    				release(iNumber); // the disk is full
+    				return -1;
     			}
     		}
     	}
-    	return index; // return -1 (error) or index of file
+    	return iNumber; // return -1 (error) or index of file
+    }
+
+    // allocates an inumber that is not named in the root directory (used
+    // for entries of subdirectories). Returns -1 if none is free
+    public synchronized short ialloc( ){
+    	short iNumber = allocInumber();
+    	if(iNumber < 0){
+    		return -1;
+    	}
+    	fsizes[iNumber] = -1;
+    	if(!markDirty(iNumber)){
+    		release(iNumber); // the disk is full
+    		return -1;
+    	}
+    	return iNumber;
+    }
+    
+    // returns the names in the root directory, "/" itself excluded
+    public synchronized String[] list( ){
+    	ArrayList<String> names = new ArrayList<String>();
+    	for (int i = 1; i < fsizes.length; i++) {
+    		if (fsizes[i] > 0) {
+    			names.add(new String(fnames[i], 0, fsizes[i]));
+    		}
+    	}
+    	return names.toArray(new String[names.size()]);
     }
 
     // When file system deletes a file, method returns the specified 
     // inumber (inode number). The corresponding file is deleted 
     // by the file system.
-    public boolean ifree ( short iNumber ){
+    public synchronized boolean ifree ( short iNumber ){
     	if(iNumber <= 0) {
     		return false; // already free
     	}
+    	else if(iNumber >= fsizes.length || fsizes[iNumber] == 0) {
+    		return false; // out of range or not in use
+    	}
     	else { // reinitialize values at specified location
-    		fnames[iNumber] = new char[maxChars];
-    		fsizes[iNumber] = 0;
+    		release(iNumber);
+    		markDirty(iNumber);
     		return true;
     	}     
     }
   
     // find Inode for filename (-1 if none)
     // returns the inumber corresponding to this filename
+    // names are compared ignoring case; the lookup probes the hash index
+    // and allocates nothing
     public short namei( String filename ){
-    	for (short i = 0; i < fsizes.length; i++) {
-    		String name = new String(fnames[i], 0, fsizes[i]);
-    		if (fsizes[i] > 0 && (filename.compareToIgnoreCase(filename) == 0)) {
-    			return i; // the index of the filename (also inumber)
+    	long start = Metrics.start();
+    	try {
+    		return lookup(filename);
+    	} finally {
+    		Metrics.record(Metrics.NAMEI, start);
+    	}
+    }
+    
+    private synchronized short lookup( String filename ){
+    	int mask = index.length - 1;
+    	for (int h = hash(filename) & mask; index[h] >= 0; h = (h + 1) & mask) {
+    		if (matches(index[h], filename)) {
+    			return index[h]; // the index of the filename (also inumber)
     		}
     	}
         return -1;
     }
     
+    // writes the record of iNumber into data at offset
+    private void encodeRecord( int iNumber, byte[] data, int offset ){
+    	DiskCodec.int2bytes(fsizes[iNumber], data, offset);
+    	offset += 4;
+    	for (int i = 0; i < maxChars; i++, offset += 2) {
+    		DiskCodec.short2bytes((short) fnames[iNumber][i], data, offset);
+    	}
+    }
+    
+    // reads the record of iNumber from data at offset; a record past the
+    // end of data, or with an impossible length, is an unused entry
+    private void decodeRecord( int iNumber, byte[] data, int offset ){
+    	int size = (offset + recordSize <= data.length) ? DiskCodec.bytes2int(data, offset) : 0;
+    	if (size < -1 || size >= maxChars) {
+    		size = 0;
+    	}
+    	fsizes[iNumber] = size;
+    	offset += 4;
+    	for (int i = 0; i < maxChars; i++, offset += 2) {
+    		fnames[iNumber][i] = (i < size) ? (char) DiskCodec.bytes2short(data, offset) : 0;
+    	}
+    }
+    
+    // empties the entry of iNumber and frees the inumber
+    private void release( short iNumber ){
+    	remove(iNumber);
+    	Arrays.fill(fnames[iNumber], (char) 0);
+    	fsizes[iNumber] = 0;
+    	inUse[iNumber >> 6] &= ~(1L << iNumber);
+    	lowestFree = Math.min(lowestFree, iNumber);
+    }
+    
+    // marks the directory block holding the record of iNumber dirty. If the
+    // directory is attached, the block is written at once, in the calling
+    // thread's transaction. Returns false if it could not be (disk full);
+    // it stays dirty then
+    private boolean markDirty( int iNumber ){
+    	int b = iNumber * recordSize / Disk.blockSize;
+    	dirtyBlocks.set(b);
+    	return dirInode == null || !recordLayout || writeBlock(b, dirInode, superblock);
+    }
+    
+    // writes the records of directory block b into the file of dirInode and
+    // marks it clean. Returns false if the disk is full
+    private boolean writeBlock( int b, Inode dirInode, SuperBlock superblock ){
+    	int from = b * Disk.blockSize;
+    	int to = Math.min(from + Disk.blockSize, recordSize * fsizes.length);
+    	byte[] block = new byte[Disk.blockSize];
+    	for ( int offset = from; offset < to; offset += recordSize ) {
+    		encodeRecord(offset / recordSize, block, offset - from);
+    	}
+    	if ( dirInode.write(superblock, from, block, 0, to - from) < to - from ) {
+    		return false;
+    	}
+    	dirtyBlocks.clear(b);
+    	return true;
+    }
+    
+    // number of directory file blocks holding the records of entries
+    private static int blocksOf( int entries ){
+    	return (entries * recordSize + Disk.blockSize - 1) / Disk.blockSize;
+    }
+    
+    // case-insensitive hash of a file name
+    private static int hash( String name ){
+    	int h = 0;
+    	for (int i = 0; i < name.length(); i++) {
+    		h = 31 * h + Character.toLowerCase(name.charAt(i));
+    	}
+    	return h ^ (h >>> 16);
+    }
+    
+    // case-insensitive hash of the name stored at iNumber
+    private int hash( short iNumber ){
+    	int h = 0;
+    	for (int i = 0; i < fsizes[iNumber]; i++) {
+    		h = 31 * h + Character.toLowerCase(fnames[iNumber][i]);
+    	}
+    	return h ^ (h >>> 16);
+    }
+    
+    // true if the name stored at iNumber equals filename ignoring case
+    private boolean matches( short iNumber, String filename ){
+    	if (fsizes[iNumber] != filename.length()) {
+    		return false;
+    	}
+    	for (int i = 0; i < fsizes[iNumber]; i++) {
+    		if (Character.toLowerCase(fnames[iNumber][i]) != 
+    				Character.toLowerCase(filename.charAt(i))) {
+    			return false;
+    		}
+    	}
+    	return true;
+    }
+    
+    // adds iNumber to the hash index (linear probing)
+    private void insert( short iNumber ){
+    	int mask = index.length - 1;
+    	int h = hash(iNumber) & mask;
+    	while (index[h] >= 0) {
+    		h = (h + 1) & mask;
+    	}
+    	index[h] = iNumber;
+    }
+    
+    // removes iNumber from the hash index. Entries after it in the same
+    // probe run are shifted back so no tombstones are needed
+    private void remove( short iNumber ){
+    	int mask = index.length - 1;
+    	int h = hash(iNumber) & mask;
+    	while (index[h] != iNumber) {
+    		if (index[h] < 0) {
+    			return; // not indexed
+    		}
+    		h = (h + 1) & mask;
+    	}
+    	index[h] = -1;
+    	
+    	// backward shift deletion
+    	for (int next = (h + 1) & mask; index[next] >= 0; next = (next + 1) & mask) {
+    		int home = hash(index[next]) & mask;
+    		// move the entry if its home is not between the hole and itself
+    		if (((next - home) & mask) >= ((next - h) & mask)) {
+    			index[h] = index[next];
+    			index[next] = -1;
+    			h = next;
+    		}
+    	}
+    }
+    
+    // returns the lowest inumber at or above from that is in use, -1 if
+    // none is. Whole words of the bitmap are skipped while they are empty
+    public synchronized int nextInUse( int from ){
+    	from = Math.max(from, 0);
+    	for (int w = from >> 6; w < inUse.length; w++) {
+    		long bits = inUse[w];
+    		if (w == from >> 6) {
+    			bits &= -1L << (from & 63);
+    		}
+    		if (bits != 0) {
+    			int i = (w << 6) + Long.numberOfTrailingZeros(bits);
+    			return (i < fsizes.length) ? i : -1;
+    		}
+    	}
+    	return -1;
+    }
+    
+    // marks the lowest free inumber used and returns it, -1 if none.
+    // Whole words of the bitmap are skipped while they are full
+    private short allocInumber(){
+    	for (int w = lowestFree >> 6; w < inUse.length; w++) {
+    		if (inUse[w] != -1L) {
+    			int i = (w << 6) + Long.numberOfTrailingZeros(~inUse[w]);
+    			if (i >= fsizes.length) {
+    				break; // unused bits past the last inumber
+    			}
+    			inUse[w] |= 1L << i;
+    			lowestFree = i + 1;
+    			return (short) i;
+    		}
+    	}
+    	lowestFree = fsizes.length;
+    	return -1;
+    }
+    
+    // rebuilds the hash index and the inode bitmap from fsizes/fnames
+    private void rebuildIndex(){
+    	Arrays.fill(index, (short) -1);
+    	Arrays.fill(inUse, 0L);
+    	lowestFree = fsizes.length;
+    	for (int i = fsizes.length - 1; i >= 0; i--) {
+    		if (fsizes[i] > 0) {
+    			insert((short) i);
+    		}
+    		if (fsizes[i] != 0) {
+    			inUse[i >> 6] |= 1L << i;
+    		} else {
+    			lowestFree = i;
+    		}
+    	}
+    }
+    
 }
 
 
@@ -0,0 +1,337 @@
+/** DirectoryTree.java
+*
+* Hierarchical name space over the flat root Directory. The names in "/"
+* stay in the root Directory; a subdirectory is a file whose Inode is
+* flagged Inode.TYPE_DIRECTORY and whose data is a list of fixed-size
+* entry records:
+*   short  iNumber (-1 for an unused record)
+*   short  name length
+*   short  maxChars name characters
+* Every file, wherever it is, takes its inumber from the root Directory.
+*
+* Paths are split on '/'; a leading '/' is optional and "/" alone is
+* inode 0. Names are compared ignoring case. Lookups in subdirectories go
+* through a DentryCache, so a path that was resolved before (or was found
+* not to exist) costs no directory block reads. Anything that changes the
+* tree holds the root Directory's monitor, as FileTable.falloc does, and
+* makes all its changes (directory entries, the inumber, a new Inode) in
+* one journal transaction, which commits after the monitor is released.
+*
+* @version 10/18/2026
+*/
+
+import java.util.*;
+
+public class DirectoryTree {
+    private final static int maxChars = 30;          // longest name
+    private final static int recordSize = 4 + maxChars * 2; // bytes per entry
+    private final static int defaultCacheEntries = 4096;
+
+    private Directory root;         // names in "/" and the inumber allocator
+    private SuperBlock superblock;  // to allocate directory blocks
+    private DentryCache dentries;   // (parent, name) -> iNumber
+
+    // constructor
+    public DirectoryTree( Directory rootDirectory, SuperBlock superBlock ) {
+        this( rootDirectory, superBlock, defaultCacheEntries );
+    }
+
+    // constructor with the size of the lookup cache
+    public DirectoryTree( Directory rootDirectory, SuperBlock superBlock,
+                          int cacheEntries ) {
+        root = rootDirectory;
+        superblock = superBlock;
+        dentries = new DentryCache( cacheEntries );
+    }
+
+    // returns the lookup cache (for its statistics)
+    public DentryCache getCache( ) {
+        return dentries;
+    }
+
+    // returns the iNumber path resolves to, -1 if it does not exist
+    public short namei( String path ) {
+        short current = 0;
+        int at = skipSlashes( path, 0 );
+        while ( at < path.length( ) ) {
+            int end = componentEnd( path, at );
+            current = lookup( current, path.substring( at, end ) );
+            if ( current < 0 ) {
+                return -1;
+            }
+            at = skipSlashes( path, end );
+        }
+        return current;
+    }
+
+    // allocates an inumber for a new file at path and enters it in its
+    // parent directory. The caller creates the Inode (as falloc does).
+    // Returns -1 if the parent does not exist, the name is taken or
+    // invalid, or no inumber is free
+    public short ialloc( String path ) {
+        Journal.begin( );
+        try {
+            synchronized ( root ) {
+                short parent = parentOf( path );
+                String name = lastComponent( path );
+                if ( parent < 0 || name == null || !isDirectory( parent ) ||
+                     lookup( parent, name ) >= 0 ) {
+                    return -1;
+                }
+                if ( parent == 0 ) {
+                    return root.ialloc( name );
+                }
+                short iNumber = root.ialloc( );
+                if ( iNumber < 0 ) {
+                    return -1;
+                }
+                if ( !addEntry( parent, name, iNumber ) ) {
+                    root.ifree( iNumber );
+                    return -1;
+                }
+                dentries.put( parent, name, iNumber );
+                return iNumber;
+            }
+        } finally {
+            Journal.end( );
+        }
+    }
+
+    // creates the directory path. Returns false if it cannot be created
+    public boolean mkdir( String path ) {
+        Journal.begin( );
+        try {
+            synchronized ( root ) {
+                short iNumber = ialloc( path );
+                if ( iNumber < 0 ) {
+                    return false;
+                }
+                Inode inode = FileTable.inodeTable.create( iNumber );
+                inode.flag |= Inode.TYPE_DIRECTORY;
+                inode.toDisk( iNumber );
+                FileTable.inodeTable.release( iNumber );
+                return true;
+            }
+        } finally {
+            Journal.end( );
+        }
+    }
+
+    // returns the names in the directory path, null if it is not a directory
+    public String[] readdir( String path ) {
+        short dir = namei( path );
+        if ( dir == 0 ) {
+            return root.list( );
+        }
+        if ( !isDirectory( dir ) ) {
+            return null;
+        }
+        ArrayList<String> names = new ArrayList<String>( );
+        Inode inode = FileTable.inodeTable.get( dir );
+        byte[] block = new byte[Disk.blockSize];
+        for ( int offset = 0; ; offset += Disk.blockSize ) {
+            int read = inode.read( offset, block, 0, Disk.blockSize );
+            if ( read <= 0 ) {
+                break;
+            }
+            for ( int r = 0; r + recordSize <= read; r += recordSize ) {
+                if ( DiskCodec.bytes2short( block, r ) >= 0 ) {
+                    names.add( decodeName( block, r ) );
+                }
+            }
+        }
+        return names.toArray( new String[names.size( )] );
+    }
+
+    // removes path from its parent and frees its inumber. A directory must
+    // be empty. Returns the freed iNumber, whose blocks the caller releases,
+    // or -1 if path does not exist or cannot be removed
+    public short unlink( String path ) {
+        Journal.begin( );
+        try {
+            synchronized ( root ) {
+                short parent = parentOf( path );
+                String name = lastComponent( path );
+                if ( parent < 0 || name == null ) {
+                    return -1;
+                }
+                short iNumber = lookup( parent, name );
+                if ( iNumber <= 0 ) {
+                    return -1;
+                }
+                if ( isDirectory( iNumber ) ) {
+                    String[] children = readdir( path );
+                    if ( children == null || children.length > 0 ) {
+                        return -1;
+                    }
+                }
+                if ( parent != 0 && !removeEntry( parent, iNumber ) ) {
+                    return -1;
+                }
+                root.ifree( iNumber );
+                if ( parent != 0 ) {
+                    dentries.put( parent, name, (short) -1 );
+                }
+                return iNumber;
+            }
+        } finally {
+            Journal.end( );
+        }
+    }
+
+    // true if iNumber is the root or a subdirectory
+    public boolean isDirectory( short iNumber ) {
+        if ( iNumber == 0 ) {
+            return true;
+        }
+        Inode inode = ( iNumber > 0 ) ? FileTable.inodeTable.get( iNumber ) : null;
+        return inode != null && inode.isDirectory( );
+    }
+
+    // true if path names something below "/" (FileTable sends these here
+    // instead of to the flat root Directory)
+    public static boolean isPath( String name ) {
+        return name.length( ) > 1 && name.indexOf( '/' ) >= 0;
+    }
+
+    // looks name up in the directory parent
+    private short lookup( short parent, String name ) {
+        if ( parent == 0 ) {
+            return root.namei( name );
+        }
+        short cached = dentries.get( parent, name );
+        if ( cached != -2 ) {
+            return cached;
+        }
+        // scan and fill the cache under the tree lock, so a concurrent
+        // create or unlink cannot leave a stale entry behind
+        synchronized ( root ) {
+            short iNumber = isDirectory( parent ) ? scan( parent, name, null ) : -1;
+            dentries.put( parent, name, iNumber );
+            return iNumber;
+        }
+    }
+
+    // reads the directory parent looking for name. Returns its iNumber, -1
+    // if absent. If where is not null, where[0] is set to the byte offset
+    // of the entry, or of the first unused record (the file length if none)
+    private short scan( short parent, String name, int[] where ) {
+        Inode inode = FileTable.inodeTable.get( parent );
+        byte[] block = new byte[Disk.blockSize];
+        int unused = -1;
+        int offset = 0;
+        while ( true ) {
+            int read = inode.read( offset, block, 0, Disk.blockSize );
+            if ( read <= 0 ) {
+                break;
+            }
+            for ( int r = 0; r + recordSize <= read; r += recordSize ) {
+                short iNumber = DiskCodec.bytes2short( block, r );
+                if ( iNumber < 0 ) {
+                    if ( unused < 0 ) {
+                        unused = offset + r;
+                    }
+                } else if ( name != null ? nameEquals( block, r, name ) :
+                            iNumber == where[0] ) {
+                    if ( where != null ) {
+                        where[0] = offset + r;
+                    }
+                    return iNumber;
+                }
+            }
+            offset += read;
+        }
+        if ( where != null ) {
+            where[0] = ( unused >= 0 ) ? unused : offset;
+        }
+        return -1;
+    }
+
+    // writes an entry for name into the first unused record of parent
+    private boolean addEntry( short parent, String name, short iNumber ) {
+        int[] where = new int[1];
+        scan( parent, name, where );
+        byte[] record = new byte[recordSize];
+        DiskCodec.short2bytes( iNumber, record, 0 );
+        DiskCodec.short2bytes( (short) name.length( ), record, 2 );
+        for ( int i = 0; i < name.length( ); i++ ) {
+            DiskCodec.short2bytes( (short) name.charAt( i ), record, 4 + i * 2 );
+        }
+        Inode inode = FileTable.inodeTable.get( parent );
+        return inode.write( superblock, where[0], record, 0, recordSize ) == recordSize;
+    }
+
+    // marks the record of iNumber in parent unused
+    private boolean removeEntry( short parent, short iNumber ) {
+        int[] where = { iNumber };
+        if ( scan( parent, null, where ) < 0 ) {
+            return false;
+        }
+        byte[] unused = new byte[2];
+        DiskCodec.short2bytes( (short) -1, unused, 0 );
+        Inode inode = FileTable.inodeTable.get( parent );
+        return inode.write( superblock, where[0], unused, 0, 2 ) == 2;
+    }
+
+    // compares the name in the record at r with name, ignoring case,
+    // without building a String
+    private static boolean nameEquals( byte[] block, int r, String name ) {
+        if ( DiskCodec.bytes2short( block, r + 2 ) != name.length( ) ) {
+            return false;
+        }
+        for ( int i = 0; i < name.length( ); i++ ) {
+            char c = (char) DiskCodec.bytes2short( block, r + 4 + i * 2 );
+            if ( Character.toLowerCase( c ) != Character.toLowerCase( name.charAt( i ) ) ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String decodeName( byte[] block, int r ) {
+        int length = DiskCodec.bytes2short( block, r + 2 );
+        char[] chars = new char[Math.max( 0, Math.min( length, maxChars ) )];
+        for ( int i = 0; i < chars.length; i++ ) {
+            chars[i] = (char) DiskCodec.bytes2short( block, r + 4 + i * 2 );
+        }
+        return new String( chars );
+    }
+
+    // iNumber of the directory holding the last component of path
+    private short parentOf( String path ) {
+        int end = trimmedEnd( path );
+        int slash = path.lastIndexOf( '/', end - 1 );
+        return ( slash <= 0 ) ? 0 : namei( path.substring( 0, slash ) );
+    }
+
+    // last component of path, null if there is none or it is too long
+    private static String lastComponent( String path ) {
+        int end = trimmedEnd( path );
+        int start = path.lastIndexOf( '/', end - 1 ) + 1;
+        if ( start >= end || end - start >= maxChars ) {
+            return null;
+        }
+        return path.substring( start, end );
+    }
+
+    // path length without trailing slashes
+    private static int trimmedEnd( String path ) {
+        int end = path.length( );
+        while ( end > 0 && path.charAt( end - 1 ) == '/' ) {
+            end--;
+        }
+        return end;
+    }
+
+    private static int skipSlashes( String path, int at ) {
+        while ( at < path.length( ) && path.charAt( at ) == '/' ) {
+            at++;
+        }
+        return at;
+    }
+
+    private static int componentEnd( String path, int at ) {
+        int slash = path.indexOf( '/', at );
+        return ( slash < 0 ) ? path.length( ) : slash;
+    }
+}
@@ -0,0 +1,72 @@
+/** DiskCodec.java
+*
+* Encoding of the on-disk structures (inodes, index blocks, the superblock,
+* directory and journal records). Integers are stored big-endian exactly
+* as SysLib.int2bytes/short2bytes store them, but read and written with
+* one VarHandle access over the byte array instead of byte by byte.
+*
+* Each thread also gets reusable buffers (a block, an inode and a pointer)
+* so the encode/decode paths do not allocate. A buffer is only valid until
+* the same thread asks for it again, so callers must not hold one across a
+* call that might use it too.
+*
+* @version 10/18/2026
+*/
+
+import java.lang.invoke.*;
+import java.nio.*;
+
+public class DiskCodec {
+    private static final VarHandle INT =
+        MethodHandles.byteArrayViewVarHandle( int[].class, ByteOrder.BIG_ENDIAN );
+    private static final VarHandle SHORT =
+        MethodHandles.byteArrayViewVarHandle( short[].class, ByteOrder.BIG_ENDIAN );
+
+    public final static int inodeSize = 32;         // bytes per inode
+
+    // per-thread scratch buffers
+    private static final class Buffers {
+        final byte[] block = new byte[Disk.blockSize];
+        final byte[] inode = new byte[inodeSize];
+        final byte[] pointer = new byte[2];
+    }
+
+    private static final ThreadLocal<Buffers> buffers = new ThreadLocal<Buffers>( ) {
+        protected Buffers initialValue( ) {
+            return new Buffers( );
+        }
+    };
+
+    private DiskCodec( ) { }
+
+    public static int bytes2int( byte[] b, int offset ) {
+        return (int) INT.get( b, offset );
+    }
+
+    public static void int2bytes( int i, byte[] b, int offset ) {
+        INT.set( b, offset, i );
+    }
+
+    public static short bytes2short( byte[] b, int offset ) {
+        return (short) SHORT.get( b, offset );
+    }
+
+    public static void short2bytes( short s, byte[] b, int offset ) {
+        SHORT.set( b, offset, s );
+    }
+
+    // the calling thread's block-sized buffer (contents undefined)
+    public static byte[] block( ) {
+        return buffers.get( ).block;
+    }
+
+    // the calling thread's inode-sized buffer (contents undefined)
+    public static byte[] inode( ) {
+        return buffers.get( ).inode;
+    }
+
+    // the calling thread's 2-byte pointer buffer (contents undefined)
+    public static byte[] pointer( ) {
+        return buffers.get( ).pointer;
+    }
+}
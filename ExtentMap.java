@@ -0,0 +1,215 @@
+/** ExtentMap.java
+*
+* Block map of an extent-format Inode. The file's blocks are kept as a list
+* of (start, length) runs of physical blocks in logical order, together with
+* the logical block each run begins at, so mapping a file offset is a binary
+* search over the runs instead of one pointer per block.
+*
+* On disk the first inlineExtents runs live in the 24-byte pointer area of
+* the inode:
+*   5 x (short start, short length)   20 bytes
+*   short overflow block               2 bytes (-1 if none)
+*   short number of extents            2 bytes
+* Any further runs are stored in the overflow block, 4 bytes each.
+*
+* @version 10/18/2026
+*/
+
+import java.util.*;
+
+class ExtentMap {
+    public final static int inlineExtents = 5;                  // runs in the inode
+    public final static int overflowExtents = Disk.blockSize / 4; // runs in overflow block
+    public final static int maxExtents = inlineExtents + overflowExtents;
+
+    private short start[];      // first physical block of each run
+    private short length[];     // number of blocks in each run
+    private int first[];        // first logical block of each run
+    private int count;          // number of runs
+    private int blocks;         // total blocks mapped
+    public short overflow;      // overflow block, -1 if none
+
+    // constructor (empty map)
+    ExtentMap( ) {
+        start = new short[inlineExtents];
+        length = new short[inlineExtents];
+        first = new int[inlineExtents];
+        count = 0;
+        blocks = 0;
+        overflow = -1;
+    }
+
+    // number of runs
+    public int extents( ) {
+        return count;
+    }
+
+    // number of blocks mapped
+    public int size( ) {
+        return blocks;
+    }
+
+    public short getStart( int extent ) {
+        return start[extent];
+    }
+
+    public short getLength( int extent ) {
+        return length[extent];
+    }
+
+    // returns the physical block holding logical block, -1 if not mapped
+    public int lookup( int logical ) {
+        int e = find( logical );
+        if ( e < 0 ) {
+            return -1;
+        }
+        return start[e] + ( logical - first[e] );
+    }
+
+    // returns how many physically contiguous blocks start at logical
+    // (0 if logical is not mapped)
+    public int runLength( int logical ) {
+        int e = find( logical );
+        if ( e < 0 ) {
+            return 0;
+        }
+        return length[e] - ( logical - first[e] );
+    }
+
+    // true if appending physical would need a new run stored in the
+    // overflow block while no overflow block is registered yet
+    public boolean needsOverflow( short physical ) {
+        return !extendsLast( physical ) && count >= inlineExtents && overflow < 0;
+    }
+
+    // maps the next logical block (size()) to physical.
+    // Returns false if the map is full
+    public boolean append( short physical ) {
+        if ( extendsLast( physical ) ) {
+            length[count - 1]++;
+            blocks++;
+            return true;
+        }
+        if ( count >= maxExtents || ( count >= inlineExtents && overflow < 0 ) ) {
+            return false;
+        }
+        ensureCapacity( count + 1 );
+        start[count] = physical;
+        length[count] = 1;
+        first[count] = blocks;
+        count++;
+        blocks++;
+        return true;
+    }
+
+    // keeps the first keep blocks mapped and drops the rest; the overflow
+    // block is left to the caller
+    public void truncate( int keep ) {
+        if ( keep >= blocks ) {
+            return;
+        }
+        if ( keep <= 0 ) {
+            count = 0;
+            blocks = 0;
+            return;
+        }
+        int e = find( keep - 1 );
+        length[e] = (short) ( keep - first[e] );
+        count = e + 1;
+        blocks = keep;
+    }
+
+    // forgets every run
+    public void clear( ) {
+        count = 0;
+        blocks = 0;
+        overflow = -1;
+    }
+
+    // reads the inline part of the map from the inode bytes at offset.
+    // Returns the number of runs; if it is more than inlineExtents the
+    // caller must pass the overflow block to decodeOverflow
+    public int decode( byte data[], int offset ) {
+        int total = DiskCodec.bytes2short( data, offset + inlineExtents * 4 + 2 );
+        overflow = DiskCodec.bytes2short( data, offset + inlineExtents * 4 );
+        count = 0;
+        blocks = 0;
+        for ( int i = 0; i < inlineExtents && i < total; i++, offset += 4 ) {
+            add( DiskCodec.bytes2short( data, offset ),
+                 DiskCodec.bytes2short( data, offset + 2 ) );
+        }
+        return total;
+    }
+
+    // reads the remaining runs from the overflow block
+    public void decodeOverflow( byte block[], int total ) {
+        for ( int i = inlineExtents, offset = 0; i < total && i < maxExtents;
+              i++, offset += 4 ) {
+            add( DiskCodec.bytes2short( block, offset ),
+                 DiskCodec.bytes2short( block, offset + 2 ) );
+        }
+    }
+
+    // writes the inline part of the map into the inode bytes at offset
+    public void encode( byte data[], int offset ) {
+        for ( int i = 0; i < inlineExtents; i++, offset += 4 ) {
+            DiskCodec.short2bytes( i < count ? start[i] : (short) -1, data, offset );
+            DiskCodec.short2bytes( i < count ? length[i] : (short) 0, data, offset + 2 );
+        }
+        DiskCodec.short2bytes( overflow, data, offset );
+        DiskCodec.short2bytes( (short) count, data, offset + 2 );
+    }
+
+    // writes the runs past inlineExtents into the overflow block
+    public void encodeOverflow( byte block[] ) {
+        int offset = 0;
+        for ( int i = inlineExtents; i < count; i++, offset += 4 ) {
+            DiskCodec.short2bytes( start[i], block, offset );
+            DiskCodec.short2bytes( length[i], block, offset + 2 );
+        }
+    }
+
+    // adds a decoded run
+    private void add( short runStart, short runLength ) {
+        ensureCapacity( count + 1 );
+        start[count] = runStart;
+        length[count] = runLength;
+        first[count] = blocks;
+        count++;
+        blocks += runLength;
+    }
+
+    // true if physical directly follows the last run
+    private boolean extendsLast( short physical ) {
+        return count > 0 && length[count - 1] < Short.MAX_VALUE &&
+            start[count - 1] + length[count - 1] == physical;
+    }
+
+    // binary search for the run holding logical, -1 if none
+    private int find( int logical ) {
+        if ( logical < 0 || logical >= blocks ) {
+            return -1;
+        }
+        int low = 0;
+        int high = count - 1;
+        while ( low < high ) {
+            int mid = ( low + high + 1 ) >>> 1;
+            if ( first[mid] <= logical ) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    // grows the arrays to hold at least size runs
+    private void ensureCapacity( int size ) {
+        if ( size > start.length ) {
+            int newSize = Math.min( Math.max( size, start.length * 2 ), maxExtents );
+            start = Arrays.copyOf( start, newSize );
+            length = Arrays.copyOf( length, newSize );
+            first = Arrays.copyOf( first, newSize );
+        }
+    }
+}
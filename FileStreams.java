@@ -0,0 +1,144 @@
+/** FileStreams.java
+*
+* Read-ahead and write-behind for open files. Reads and writes at the seek
+* pointer of a FileTableEntry go through here, and each entry keeps a small
+* record of where its last read ended.
+*
+* A read that starts where the previous one ended is sequential: the
+* blocks after it are loaded into the block cache by a prefetch thread
+* while the caller consumes the current ones. The read-ahead window starts
+* at initialWindow blocks, doubles with every further sequential read up
+* to maxWindow, and drops back to initialWindow on a seek.
+*
+* Writes leave whole blocks dirty in the block cache (BlockCache.writeBehind)
+* and return; a flusher thread writes the dirty frames back every
+* flushInterval milliseconds, merging consecutive blocks into one transfer.
+* SuperBlock.sync() still writes everything before it returns.
+*
+* @version 10/18/2026
+*/
+
+import java.util.concurrent.*;
+
+public class FileStreams {
+    private final static int initialWindow = 4;     // blocks read ahead at first
+    private final static int maxWindow = 32;        // largest read-ahead window
+    private final static long flushInterval = 50;   // ms between write-backs
+
+    private static final ConcurrentHashMap<FileTableEntry, Stream> streams =
+        new ConcurrentHashMap<FileTableEntry, Stream>( );
+    private static ExecutorService prefetcher;      // loads read-ahead blocks
+    private static Thread flusher;                  // writes dirty blocks back
+
+    // access pattern of one open file
+    private static class Stream {
+        int nextOffset = -1;    // where a sequential read would start
+        int window = initialWindow; // read-ahead window in blocks
+        int prefetchedTo;       // end of what has been read ahead
+    }
+
+    // reads up to buffer.length bytes at the entry's seek pointer and
+    // advances it. Returns the number of bytes read, 0 at end of file
+    public static int read( FileTableEntry ftEnt, byte[] buffer ) {
+        Stream s = streamOf( ftEnt );
+        synchronized ( ftEnt ) {
+            int offset = ftEnt.seekPtr;
+            int read = ftEnt.inode.read( offset, buffer, 0, buffer.length );
+            if ( read <= 0 ) {
+                return read;
+            }
+            ftEnt.seekPtr += read;
+
+            // widen the window while the reads stay sequential
+            boolean sequential = ( offset == s.nextOffset );
+            if ( sequential ) {
+                s.window = Math.min( s.window * 2, maxWindow );
+            } else {
+                s.window = initialWindow;
+                s.prefetchedTo = 0;
+            }
+            s.nextOffset = offset + read;
+
+            int from = Math.max( s.nextOffset, s.prefetchedTo );
+            int to = s.nextOffset + s.window * Disk.blockSize;
+            if ( sequential && to > from ) {
+                s.prefetchedTo = to;
+                readAhead( ftEnt.inode, from, to - from );
+            }
+            return read;
+        }
+    }
+
+    // writes buffer at the entry's seek pointer and advances it. Whole
+    // blocks are written behind. Returns the number of bytes written
+    public static int write( FileTableEntry ftEnt, byte[] buffer,
+                             SuperBlock superblock ) {
+        startFlusher( );
+        synchronized ( ftEnt ) {
+            int written = ftEnt.inode.write( superblock, ftEnt.seekPtr, buffer, 0,
+                                             buffer.length, true );
+            ftEnt.seekPtr += written;
+            return written;
+        }
+    }
+
+    // drops the access record of a closed entry (called by FileTable.ffree)
+    public static void forget( FileTableEntry ftEnt ) {
+        streams.remove( ftEnt );
+    }
+
+    private static Stream streamOf( FileTableEntry ftEnt ) {
+        Stream s = streams.get( ftEnt );
+        if ( s == null ) {
+            Stream created = new Stream( );
+            s = streams.putIfAbsent( ftEnt, created );
+            if ( s == null ) {
+                s = created;
+            }
+        }
+        return s;
+    }
+
+    // loads len bytes of inode from offset into the cache in the background
+    private static void readAhead( final Inode inode, final int offset,
+                                   final int len ) {
+        synchronized ( FileStreams.class ) {
+            if ( prefetcher == null ) {
+                prefetcher = Executors.newFixedThreadPool( 2, new ThreadFactory( ) {
+                    public Thread newThread( Runnable r ) {
+                        Thread t = new Thread( r, "FileStreams-prefetch" );
+                        t.setDaemon( true );
+                        return t;
+                    }
+                } );
+            }
+        }
+        prefetcher.execute( new Runnable( ) {
+            public void run( ) {
+                inode.prefetch( offset, len );
+            }
+        } );
+    }
+
+    // starts the background flusher if it is not running yet; anyone
+    // writing behind must call it (AsyncFileSystem does)
+    static synchronized void startFlusher( ) {
+        if ( flusher != null ) {
+            return;
+        }
+        flusher = new Thread( new Runnable( ) {
+            public void run( ) {
+                while ( true ) {
+                    try {
+                        Thread.sleep( flushInterval );
+                    } catch ( InterruptedException e ) {
+                        return;
+                    }
+                    BlockCache.getCache( ).writeBack( );
+                }
+            }
+        }, "FileStreams-flush" );
+        flusher.setDaemon( true );
+        flusher.start( );
+    }
+}
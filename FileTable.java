@@ -5,120 +5,228 @@
  *	CSS 430
  *	Final Project
  *
+ * Entries live in a fixed array of slots addressed by a handle. Free
+ * slots are kept on a lock-free stack, so falloc/ffree never lock the
+ * table and finding an entry by handle is O(1).
+ *
  * @author Sindhuri Bolisetty
  * @version12/10/2013
  * 
  */
 
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 
 public class FileTable {
-    private Vector table;         // the actual entity of this file table
+    private static final int defaultEntries = 4096; // slots if not specified
+    
+    private AtomicReferenceArray<FileTableEntry> table; // the actual entity of this file table
+    private AtomicIntegerArray nextFree;  // slot -> next slot on the free stack, -1 at bottom
+    private AtomicLong freeTop;           // (version << 32) | top slot of the free stack
+    private AtomicInteger used;           // number of entries in the table
+    private ConcurrentHashMap<FileTableEntry, Integer> handles; // entry -> slot
     private Directory dir;        // the root directory
+    private DirectoryTree tree;   // subdirectories, null if not used
     public static Inode[] inodes; // vector of all Inodes
+    public static InodeTable inodeTable; // in-core table over inodes
     
     // constructor
     public FileTable( Directory directory, Inode[] nodes ) { 
-        // instantiate a file (structure) table
-    	table = new Vector<FileTableEntry>( ); 
+    	this( directory, nodes, defaultEntries );
+    }
+    
+    // constructor with the maximum number of open entries
+    public FileTable( Directory directory, Inode[] nodes, int maxEntries ) { 
+        // instantiate a file (structure) table with every slot free
+    	table = new AtomicReferenceArray<FileTableEntry>( maxEntries ); 
+    	nextFree = new AtomicIntegerArray( maxEntries );
+    	for ( int i = 0; i < maxEntries; i++ ) {
+    		nextFree.set( i, i + 1 < maxEntries ? i + 1 : -1 );
+    	}
+    	freeTop = new AtomicLong( maxEntries > 0 ? 0 : 0xFFFFFFFFL );
+    	used = new AtomicInteger( 0 );
+    	handles = new ConcurrentHashMap<FileTableEntry, Integer>( );
     	// receive a reference to the Directory from the file system
         dir = directory; 
         // set the Inode vector ref
         inodes = nodes;
+        // in-core inode table sharing the same array
+        inodeTable = new InodeTable( nodes );
         
     }                            
 
+    // resolves names containing '/' through tree (and creates them there)
+    // instead of in the flat root directory
+    public void setTree( DirectoryTree namespace ) {
+    	tree = namespace;
+    }
+
 	
     // allocate a new file (structure) table entry for this file name
     // allocate/retrieve and register the corresponding inode using dir
     // increment this inode's count
-    // immediately write back this inode to the disk
+    // the inode comes from the in-core inode table, so opening an existing
+    // file does no disk I/O; it is written back lazily by ffree or sync
     // return a reference to this file (structure) table entry
     // Keeps track of thread usage of file and counts
     public FileTableEntry falloc( String fname, String mode ){
+    	long start = Metrics.start( );
+    	try {
+    		return open( fname, mode );
+    	} finally {
+    		Metrics.record( Metrics.FALLOC, start );
+    	}
+    }
+    
+    private FileTableEntry open( String fname, String mode ){
     	
-    	synchronized(inodes){ // synchronize on the Inode array
-    		// Inode to allocate
-    		Inode inode = null;
-    		short iNumber; 
-        
-    		// check if filename is root directory or not
-    		if (fname.equals("/")) {
-    			iNumber = 0;
-    		} else {
-    			iNumber = dir.namei(fname);
-    		}
-        	
-    		// file does not exist
-    		if(iNumber < 0){ 
-    			if(mode.equals("r")){ // nothing to read
-    				return null;
-            		
-    				// if write/append, create a file
-    			} else { // "w", "w+", or "a"
-    				// add to the directory
-    				iNumber = dir.ialloc(fname); 
-            		
-    				if(iNumber < 0){ // out of space
-    					return null; 
-    				}
+    	// Inode to allocate
+    	Inode inode = null;
+    	short iNumber; 
+    	
+    	// look up or create the name under the directory's own lock, so two
+    	// creates of the same name cannot both allocate it. Disk I/O on other
+    	// files is not blocked by this. A create makes the entry and the
+    	// new inode in one journal transaction, committed after the lock is
+    	// dropped
+    	boolean creating = false;
+    	long wait = Metrics.start( );
+    	try {
+    		synchronized(dir){
+    			Metrics.record( Metrics.DIRECTORY_WAIT, wait );
+    			// check if filename is root directory or not
+    			if (fname.equals("/")) {
+    				iNumber = 0;
+    			} else if (tree != null && DirectoryTree.isPath(fname)) {
+    				iNumber = tree.namei(fname);
+    			} else {
+    				iNumber = dir.namei(fname);
     			}
-    			
-    			inode = new Inode();
-    			// new inode
-    	   		// place the inode in the Inode array
-        		inodes[iNumber] = inode;
-            	
-            //if the file exists
-            } else { // (iNumber >= 0)
-            	// instantiate the Inode with the retrieved iNumber
-            	inode = new Inode(iNumber);
-            }
+    	    	
+    			// file does not exist
+    			if(iNumber < 0){ 
+    				if(mode.equals("r")){ // nothing to read
+    					return null;
+    	        		
+    					// if write/append, create a file
+    				} else { // "w", "w+", or "a"
+    					Journal.begin();
+    					creating = true;
+    					// add to the directory
+    					if (tree != null && DirectoryTree.isPath(fname)) {
+    						iNumber = tree.ialloc(fname);
+    					} else {
+    						iNumber = dir.ialloc(fname); 
+    					}
+    	        		
+    					if(iNumber < 0){ // out of space
+    						return null; 
+    					}
+    				}
+    				
+    				// new inode, placed in the Inode array with its count
+    				// already incremented
+    				inode = inodeTable.create(iNumber);
+    	        	
+    	        //if the file exists
+    	        } else { // (iNumber >= 0)
+    	        	// share the canonical Inode and update its instance count
+    	        	inode = inodeTable.acquire(iNumber);
+    	        }
+    		}
+    	} finally {
+    		if(creating){
+    			Journal.end();
+    		}
+    	}
     		
-    		// save inode to disk
-    		inode.toDisk( iNumber );   
-        
-    		// create file table entry
-    		FileTableEntry ftEnt = new FileTableEntry( inode, iNumber, mode );
+    	if(inode == null){ // iNumber out of range
+    		return null;
+    	}
+    	
+    	// take a free slot
+    	int slot = popFree();
+    	if(slot < 0){ // table full
+    		inodeTable.release(iNumber);
+    		return null;
+    	}
         
-    		// add entry to FileTable
-    		table.addElement( ftEnt );
+    	// create file table entry
+    	FileTableEntry ftEnt = new FileTableEntry( inode, iNumber, mode );
         
-    		// update the file instance count
-    		ftEnt.inode.count++;
+    	// add entry to FileTable
+    	handles.put( ftEnt, slot );
+    	table.set( slot, ftEnt );
+    	used.incrementAndGet( );
         
-    		// return file table entry
-    		return ftEnt;                  		
-    	}
+    	// return file table entry
+    	return ftEnt;                  		
  
     }
 
-    public synchronized boolean fempty( ) {
-        return table.isEmpty( );  // return if table is empty 
+    public boolean fempty( ) {
+        return used.get( ) == 0;  // return if table is empty 
     }  
 
+    // returns the handle (slot) of an entry in this table, -1 if not found
+    public int handleOf( FileTableEntry ftEnt ) {
+    	if(ftEnt == null){
+    		return -1;
+    	}
+    	Integer slot = handles.get( ftEnt );
+    	return (slot == null) ? -1 : slot;
+    }
+
+    // returns the entry with the specified handle, null if none
+    public FileTableEntry get( int handle ) {
+    	if(handle < 0 || handle >= table.length()){
+    		return null;
+    	}
+    	return table.get( handle );
+    }
+
 
     // should be called before starting a format
     // receive a file table entry reference
-    // save the corresponding inode to the disk
+    // release the corresponding inode; it is saved to the disk only on the
+    // last close, and only if it is dirty
     // free this file table entry.
     // return true if this file table entry found in my table
-    public synchronized boolean ffree( FileTableEntry ftEnt ) {
+    public boolean ffree( FileTableEntry ftEnt ) {
+    	long start = Metrics.start( );
+    	try {
+    		return close( ftEnt );
+    	} finally {
+    		Metrics.record( Metrics.FFREE, start );
+    	}
+    }
+    
+    private boolean close( FileTableEntry ftEnt ) {
         // no ftEnt
     	if(ftEnt == null){
         	return false;
         }
-        // remove entry
-        boolean success = table.removeElement(ftEnt);
+        // remove entry; only one caller can win the handle
+        Integer slot = handles.remove(ftEnt);
+        boolean success = (slot != null) && table.compareAndSet(slot, ftEnt, null);
         
         // found
         if(success){
-        	if(ftEnt.inode.count != 0){
-        		ftEnt.inode.count--;
+        	pushFree(slot);
+        	FileStreams.forget(ftEnt);
+        	// a writer may have changed the length or block pointers
+        	if(!ftEnt.mode.equals("r")){
+        		ftEnt.inode.dirty = true;
         	}
-            ftEnt.inode.toDisk(ftEnt.iNumber);
+        	inodeTable.release(ftEnt.iNumber);
             
-            notify();
+            // wake anyone waiting for the table to empty
+            if(used.decrementAndGet() == 0){
+            	synchronized(this){
+            		notifyAll();
+            	}
+            }
             return true;
             
         // not found
@@ -127,4 +235,40 @@ public class FileTable {
         }
     }
 
+    // pops a slot off the free stack, -1 if the table is full.
+    // The version in the high half of freeTop changes on every push and
+    // pop, so a slot freed and reused in between cannot fool the CAS
+    private int popFree( ) {
+    	while(true){
+    		long top = freeTop.get();
+    		int slot = (int) top;
+    		if(slot < 0){
+    			return -1;
+    		}
+    		long next = ((top >>> 32) + 1) << 32 | (nextFree.get(slot) & 0xFFFFFFFFL);
+    		if(freeTop.compareAndSet(top, next)){
+    			return slot;
+    		}
+    	}
+    }
+
+    // pushes a slot back on the free stack
+    private void pushFree( int slot ) {
+    	while(true){
+    		long top = freeTop.get();
+    		nextFree.set(slot, (int) top);
+    		long next = ((top >>> 32) + 1) << 32 | (slot & 0xFFFFFFFFL);
+    		if(freeTop.compareAndSet(top, next)){
+    			return;
+    		}
+    	}
+    }
+
+    // write back every dirty in-core inode to the disk
+    public static void sync( ) {
+    	if(inodeTable != null){
+    		inodeTable.sync();
+    	}
+    }
+
 }
@@ -10,17 +10,74 @@
 */
 
 import java.util.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
 
 public class Inode {
     private final static int iNodeSize = 32;       // node size: 32 bytes
     private final static int directSize = 11;      // direct pointers
-    private final static int DISKSIZE = 1000;		// size of the disk
+    final static int inodesPerBlock = Disk.blockSize / iNodeSize; // 16
+    // inode numbers are shorts, as are the block pointers that would have
+    // to address the inode blocks of a larger table; the highest inumber is
+    // Short.MAX_VALUE - 1, so a count of maxInodes still fits in a short
+    public final static int maxInodes = Short.MAX_VALUE;
+    private static int inodeCount = maxInodes;      // inodes on the mounted disk
+    
+    // block mapping format, kept in the high bits of flag; the low bits
+    // are left for the file system's own use
+    public final static short FORMAT_MASK = 0x7000;
+    public final static short FORMAT_DIRECT = 0x0000;  // 11 direct + 1 indirect
+    public final static short FORMAT_EXTENTS = 0x1000; // (start, length) extents
+    public final static short FORMAT_INDIRECT3 = 0x2000; // 9 direct + single, double
+                                                         // and triple indirect
+    public final static short FORMAT_INLINE = 0x3000;  // data kept in the pointer area
+    public final static int inlineCapacity = iNodeSize - 8; // bytes of inline data
+    public final static short TYPE_DIRECTORY = 0x0800; // file holds DirectoryTree entries
+    private final static int multiDirect = 9;      // direct pointers in FORMAT_INDIRECT3
+    private final static int pointersPerBlock = Disk.blockSize / 2; // shorts per index block
+    private final static int pathSlots = 4;        // resolved index paths remembered
+    
+    private static short newFormat = FORMAT_DIRECT; // format given to new Inodes
+    private static boolean inlineData = false;     // new Inodes start FORMAT_INLINE
     
     public int length;                             // file size in bytes
     public short count;                            // # file-table entries
+    final AtomicInteger opens = new AtomicInteger( ); // in-core count, kept by InodeTable
     public short flag;
     public short direct[] = new short[directSize]; // direct pointers
     public short indirect;                         // indirect pointer
+    public short doubleIndirect;                   // double indirect (FORMAT_INDIRECT3)
+    public short tripleIndirect;                   // triple indirect (FORMAT_INDIRECT3)
+    ExtentMap extents;                             // extent map, null unless FORMAT_EXTENTS
+    byte inline[];                                 // file data, null unless FORMAT_INLINE
+    
+    // recently resolved index paths (FORMAT_INDIRECT3): the key names a
+    // level and a group of pointersPerBlock logical blocks, the value is the
+    // leaf index block holding their pointers
+    private int pathKey[];
+    private short pathLeaf[];
+    private int pathNext;                          // next path slot to replace
+    private final ReentrantLock pathLock = new ReentrantLock( ); // guards the path cache
+    volatile boolean dirty;                        // in-core copy differs from disk
+    int iNumber = -1;                              // set when loaded or created
+    
+    // blocks reserved ahead of an appending writer, right after the file's
+    // last block, so the next appends stay contiguous. They are marked
+    // allocated in reserveOwner's in-memory bitmap only (a crash leaves
+    // them free), claimed as they are used and given back on the last close
+    private final static int reserveWindow = 8;
+    private int reserveStart = -1;
+    private int reserveCount;
+    private SuperBlock reserveOwner;
+    
+    // readers (lookups, reads) share the lock; anything changing the block
+    // map, the length or the on-disk copy takes it exclusively
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock( );
+    
+    // bumped, before the write lock is dropped, by every change to the
+    // file's bytes or block map, so copies of its data (the block loads of
+    // AsyncFileSystem) can tell they are stale
+    final AtomicLong version = new AtomicLong( );
       
     // default constructor (new Inode)
     Inode( ) { 
@@ -33,91 +90,281 @@ public class Inode {
         	for ( int i = 0; i < directSize; i++ )
         		direct[i] = -1;
         	indirect = -1;
+        	doubleIndirect = -1;
+        	tripleIndirect = -1;
+        	dirty = false;
+        	
+        	// new files get the format chosen for this disk; small ones
+        	// start with their data in the Inode where the disk allows it
+        	if ( inlineData ) {
+        		flag = FORMAT_INLINE;
+        		inline = new byte[inlineCapacity];
+        	} else if ( newFormat == FORMAT_EXTENTS ) {
+        		flag = FORMAT_EXTENTS;
+        		extents = new ExtentMap( );
+        	} else {
+        		flag = newFormat;
+        	}
 
     }
     
+    // sets the number of inodes on the mounted disk; toDisk ignores
+    // iNumbers past it. SuperBlock sets it when it is mounted or formatted
+    public static void setInodeCount( int count ) {
+    	inodeCount = Math.min( count, maxInodes );
+    }
+    
+    // returns the block holding iNumber (superblock at 0, inodes from 1)
+    static int blockOf( int iNumber ) {
+    	return iNumber / inodesPerBlock + 1;
+    }
+    
+    // selects the block mapping format of Inodes created from now on.
+    // SuperBlock sets it from the disk's version when it is mounted
+    public static void setNewFormat( short format ) {
+    	newFormat = format;
+    }
+    
+    // the block mapping format new Inodes get
+    public static short getNewFormat( ) {
+    	return newFormat;
+    }
+    
+    // lets new Inodes keep up to inlineCapacity bytes of data in the Inode
+    // itself (FORMAT_INLINE); they switch to the format chosen by
+    // setNewFormat when they grow past it. SuperBlock enables it on disks
+    // set up for it (SuperBlock.FEATURE_INLINE)
+    public static void setInlineData( boolean enabled ) {
+    	inlineData = enabled;
+    }
+    
 	// constructor (retrieves Inode from disk)
     Inode( short iNumber ) { 
+        	this.iNumber = iNumber;
 
         	// get the block the Inode is in
-        	int blkNumber = (iNumber / 16) + 1; // 16 Inodes per block, superblock at 0
+        	int blkNumber = blockOf( iNumber );
         	
-        	// read the block that has the Inode
-        	byte[] data = new byte[Disk.blockSize]; 
-        	SysLib.rawread( blkNumber, data );
+        	// read just this Inode's bytes out of the block
+        	byte[] data = DiskCodec.inode( );
+        	BlockCache.getCache( ).readBytes( blkNumber, 
+        			( iNumber % inodesPerBlock ) * iNodeSize, data, 0, iNodeSize );
+        	int offset = 0;
         	
-        	// find offset in block
-        	int offset = ( iNumber % 16 ) * iNodeSize; 
+        	doubleIndirect = -1;
+        	tripleIndirect = -1;
         	
         	// read and set variables, update offset for each
-        	length = SysLib.bytes2int( data, offset );
+        	length = DiskCodec.bytes2int( data, offset );
         	offset += 4;
-        	count = SysLib.bytes2short( data, offset );
+        	count = DiskCodec.bytes2short( data, offset );
         	offset += 2;
-        	flag = SysLib.bytes2short( data, offset );
+        	flag = DiskCodec.bytes2short( data, offset );
         	offset += 2;
         	
+        	// inline format: the pointer area holds the data
+        	if ( getFormat( ) == FORMAT_INLINE ) {
+        		for ( int i = 0; i < directSize; i++ )
+        			direct[i] = -1;
+        		indirect = -1;
+        		inline = Arrays.copyOfRange( data, offset, offset + inlineCapacity );
+        		return;
+        	}
+        	
+        	// extent format: the pointer area holds the extent map
+        	if ( getFormat( ) == FORMAT_EXTENTS ) {
+        		for ( int i = 0; i < directSize; i++ )
+        			direct[i] = -1;
+        		indirect = -1;
+        		extents = new ExtentMap( );
+        		int total = extents.decode( data, offset );
+        		if ( total > ExtentMap.inlineExtents && extents.overflow >= 0 ) {
+        			byte[] block = DiskCodec.block( );
+        			BlockCache.read( extents.overflow, block );
+        			extents.decodeOverflow( block, total );
+        		}
+        		return;
+        	}
+        	
         	// set direct pointers
+        	int numDirect = ( getFormat( ) == FORMAT_INDIRECT3 ) ? multiDirect : directSize;
         	for ( int i = 0; i < directSize; i++ ) {
-        		direct[i] = SysLib.bytes2short( data, offset );
-        		offset += 2;
+        		if ( i < numDirect ) {
+        			direct[i] = DiskCodec.bytes2short( data, offset );
+        			offset += 2;
+        		} else {
+        			direct[i] = -1;
+        		}
         	}
         	
         	// set the indirect pointer
-        	indirect = SysLib.bytes2short( data, offset );
+        	indirect = DiskCodec.bytes2short( data, offset );
+        	
+        	// set the double and triple indirect pointers
+        	if ( getFormat( ) == FORMAT_INDIRECT3 ) {
+        		doubleIndirect = DiskCodec.bytes2short( data, offset + 2 );
+        		tripleIndirect = DiskCodec.bytes2short( data, offset + 4 );
+        	}
 
     }
     
+    // true if this Inode is a subdirectory
+    public boolean isDirectory( ) {
+    	return ( flag & TYPE_DIRECTORY ) != 0;
+    }
+    
+    // true if the data of this Inode is file system metadata (the root
+    // directory or a subdirectory), written through the journal
+    private boolean isMetadata( ) {
+    	return iNumber == 0 || isDirectory( );
+    }
+    
+    // returns the block mapping format (one of the FORMAT_ constants)
+    public short getFormat( ) {
+    	return (short) ( flag & FORMAT_MASK );
+    }
+    
+    // switches an empty Inode to the extent format.
+    // Returns false if the Inode already maps blocks
+    public boolean useExtents( ) {
+    	lockWrite();
+    	try {
+    		if ( extents != null ) {
+    			return true;
+    		}
+    		if ( direct[0] != -1 || indirect != -1 || 
+    				( inline != null && length > 0 ) ) {
+    			return false;
+    		}
+    		inline = null;
+    		flag = (short) ( ( flag & ~FORMAT_MASK ) | FORMAT_EXTENTS );
+    		extents = new ExtentMap( );
+    		dirty = true;
+    		return true;
+    	} finally {
+    		lock.writeLock().unlock();
+    	}
+    }
+    
     // writes an Inode to disk
     public void toDisk(int iNumber)  {
+    	long start = Metrics.start();
+    	// the inode block and its overflow block are journaled together
+    	lockWrite();
+    	try {
+    		Journal.begin();
+    		try {
+    			toDiskLocked(iNumber);
+    		} finally {
+    			Journal.end();
+    		}
+    	} finally {
+    		lock.writeLock().unlock();
+    		Metrics.record(Metrics.TO_DISK, start);
+    	}
+    }
+    
+    private void toDiskLocked(int iNumber)  {
     	// changes Inode
-    	// synchronized to Inode array in File Table
-    	synchronized (FileTable.inodes){
+    	// locked with this Inode's write lock
+    	lockWrite();
+    	try {
         	// error if invalid iNumber
-        	if(iNumber < 0 || iNumber >= DISKSIZE){
+        	if(iNumber < 0 || iNumber >= inodeCount){
         		return;
         	}
         	
         	// get the block the Inode is in
-        	int blockNumber = (iNumber / 16) + 1;
-        	
-        	//read the whole block from the disk
-        	byte[] data = new byte[Disk.blockSize];  
-        	SysLib.rawread(blockNumber, data);
+        	int blockNumber = blockOf(iNumber);
         	
-        	// find the offset (in the block)
-        	int offset = (iNumber * iNodeSize) % Disk.blockSize;
-        	
-        	// add the current variables to the data buffer
-        	// update the offset for each one
-        	SysLib.int2bytes(length, data, offset);
+        	// encode the 32 bytes of this Inode; every format fills them all
+        	byte[] data = DiskCodec.inode();
+        	int offset = 0;
+        	DiskCodec.int2bytes(length, data, offset);
         	offset += 4;
-        	SysLib.short2bytes(count, data, offset);
+        	DiskCodec.short2bytes(count, data, offset);
         	offset += 2;
-        	SysLib.short2bytes(flag, data, offset);
+        	DiskCodec.short2bytes(flag, data, offset);
         	offset += 2;
         	
-        	// add the direct pointers to the data buffer
-        	for (int i = 0; i < directSize; i++, offset += 2) {
-        		SysLib.short2bytes(direct[i], data, offset);
+        	if (inline != null) {
+        		// the data itself fills the pointer area
+        		System.arraycopy(inline, 0, data, offset, inlineCapacity);
+        	} else if (extents != null) {
+        		// add the extent map to the data buffer
+        		extents.encode(data, offset);
+        	} else {
+        		// add the direct pointers to the data buffer
+        		int numDirect = (getFormat() == FORMAT_INDIRECT3) ? multiDirect : directSize;
+        		for (int i = 0; i < numDirect; i++, offset += 2) {
+        			DiskCodec.short2bytes(direct[i], data, offset);
+        		}
+        		
+        		// add the indirect pointer to the data buffer
+        		DiskCodec.short2bytes(indirect, data, offset);
+        		
+        		// add the double and triple indirect pointers
+        		if (getFormat() == FORMAT_INDIRECT3) {
+        			DiskCodec.short2bytes(doubleIndirect, data, offset + 2);
+        			DiskCodec.short2bytes(tripleIndirect, data, offset + 4);
+        		}
         	}
         	
-        	// add the indirect pointer to the data buffer
-        	SysLib.short2bytes(indirect, data, offset);
+        	// patch just these bytes of the block; the cache does the
+        	// read-modify-write atomically, so the other 15 Inodes in the
+        	// block may be written concurrently
+        	BlockCache.getCache().patch(blockNumber, 
+        			(iNumber % inodesPerBlock) * iNodeSize, data, 0, iNodeSize);
         	
-        	// write the Inode to the disk
-        	SysLib.rawwrite(blockNumber, data);
+        	// runs that did not fit in the Inode go to the overflow block
+        	if (extents != null && extents.extents() > ExtentMap.inlineExtents) {
+        		byte[] overflowBlock = DiskCodec.block();
+        		extents.encodeOverflow(overflowBlock);
+        		BlockCache.write(extents.overflow, overflowBlock);
+        	}
+        	dirty = false;
+    	} finally {
+    		lock.writeLock().unlock();
     	}
 
     }
 
     
     // find target block of Inode with specified offset of file.
-    // Returns block number if found (int), -1 if not found
+    // Returns block number if found (int), -1 if not found. An inline file
+    // (only on disks with SuperBlock.FEATURE_INLINE) has no blocks: its
+    // data is read with read()
     public int findTargetBlock(int offset) {
+    	long start = Metrics.start();
+    	lockRead();
+    	try {
+    		return findTarget(offset);
+    	} finally {
+    		lock.readLock().unlock();
+    		Metrics.record(Metrics.FIND_TARGET, start);
+    	}
+    }
+    
+    // findTargetBlock without locking
+    private int findTarget(int offset) {
+    	
+    	// inline data has no blocks
+    	if(inline != null){
+    		return -1;
+    	}
     	
     	// find offset in block	
     	int blockNum = offset / Disk.blockSize; 
+    	
+    	// extent format: binary search of the extent map
+    	if(extents != null){
+    		return extents.lookup(blockNum);
+    	}
+    	
+    	// multi-level format: direct, then single, double, triple indirect
+    	if(getFormat() == FORMAT_INDIRECT3){
+    		return findMultiLevel(blockNum);
+    	}
 	
     	// if block in direct range
     	if(blockNum < direct.length){
@@ -126,16 +373,13 @@ public class Inode {
 	    
     	// if block in indirect range
     	} else {	// blockNum > direct.length
-    		if(indirect < 0){ // nothing here
+    		// nothing here, or past the end of the index block
+    		if(indirect < 0 || blockNum - directSize >= pointersPerBlock){
     			return -1;
     		}
     		
-    		// get and read the index block
-    		byte[] indirectBlock = new byte[Disk.blockSize];
-    		SysLib.rawread(indirect, indirectBlock);
-    		
     		// return the indirect pointer
-    		return SysLib.bytes2short(indirectBlock, ((blockNum - directSize) * 2));
+    		return readPointer(indirect, blockNum - directSize);
     	}
     	
     }
@@ -144,29 +388,666 @@ public class Inode {
     // Returns true if able to register, otherwise false.
     public boolean registerIndexBlock(short indexBlockNumber) {
     	// changes Inode
-    	// synchronized to Inode array in File Table
-    	synchronized (FileTable.inodes){
-        	// if index block exists, error
-        	if(indirect > -1){
-        		return false;
-        		
-        	// if index block does not exist, register it
-        	} else {
-        		// set indirect pointer and create block buffer
-        		indirect = indexBlockNumber;
-        		byte[] newBlock = new byte[Disk.blockSize];
-        		
-        		// convert invalid values to bytes (initial values of block)
-        		for(int i = 0; i < (Disk.blockSize / 2); i++){
-        			SysLib.short2bytes((short) -1, newBlock, i * 2);
-        		}
-        		// write index block to disk
-        		SysLib.rawwrite(indirect, newBlock);
-        		
-        		return true;
-        	}
+    	// locked with this Inode's write lock
+    	lockWrite();
+    	try {
+    		Journal.begin();
+    		try {
+    			// if index block exists, error
+    			if(indirect > -1){
+    				return false;
+
+    			// if index block does not exist, register it
+    			} else {
+    				// set indirect pointer and create block buffer
+    				indirect = indexBlockNumber;
+    				dirty = true;
+    				byte[] newBlock = DiskCodec.block();
+
+    				// every pointer invalid (-1) initially
+    				Arrays.fill(newBlock, (byte) -1);
+    				// write index block to disk, in the transaction that
+    				// writes the Inode pointing at it
+    				BlockCache.write(indirect, newBlock);
+    				if(iNumber >= 0){
+    					toDiskLocked(iNumber);
+    				}
+
+    				return true;
+    			}
+    		} finally {
+    			Journal.end();
+    		}
+    	} finally {
+    		unlockChanged();
+    	}
+
+    }
+
+    // returns how many physically contiguous blocks, starting with the one
+    // holding offset, can be read or written as one run (0 if not mapped)
+    public int findTargetRun(int offset) {
+    	lockRead();
+    	try {
+    		return findRun(offset);
+    	} finally {
+    		lock.readLock().unlock();
     	}
+    }
+    
+    // findTargetRun without locking
+    private int findRun(int offset) {
+    	int blockNum = offset / Disk.blockSize;
+    	if(extents != null){
+    		return extents.runLength(blockNum);
+    	}
+    	// pointer formats: count consecutive block numbers
+    	int block = findTarget(offset);
+    	if(block < 0){
+    		return 0;
+    	}
+    	int run = 1;
+    	while(findTarget((blockNum + run) * Disk.blockSize) == block + run){
+    		run++;
+    	}
+    	return run;
+    }
 
+    // loads the blocks holding len bytes of the file from offset into the
+    // block cache ahead of a sequential reader.
+    // Returns the number of blocks loaded
+    public int prefetch(int offset, int len) {
+    	lockRead();
+    	try {
+    		if(offset < 0 || len <= 0 || offset >= length){
+    			return 0;
+    		}
+    		len = Math.min(len, length - offset);
+    		int first = offset / Disk.blockSize;
+    		int count = (offset + len - 1) / Disk.blockSize - first + 1;
+    		int[] blocks = new int[count];
+    		mapBlocks(first, count, blocks);
+    		int loaded = 0;
+    		for(int i = 0; i < count; ){
+    			int j = i + 1;
+    			while(j < count && blocks[i] >= 0 && blocks[j] == blocks[i] + (j - i)){
+    				j++;
+    			}
+    			if(blocks[i] >= 0){
+    				loaded += BlockCache.getCache().prefetch(blocks[i], j - i);
+    			}
+    			i = j;
+    		}
+    		return loaded;
+    	} finally {
+    		lock.readLock().unlock();
+    	}
+    }
+
+    // reads up to len bytes of the file starting at offset into buffer at
+    // bufOffset. All target blocks are resolved first (one read per index
+    // block), merged into physically contiguous runs and each run is read
+    // straight into buffer. Unmapped blocks read as zeros.
+    // Returns the number of bytes read, 0 at end of file
+    public int read(int offset, byte[] buffer, int bufOffset, int len) {
+    	lockRead();
+    	try {
+    		return readRuns(offset, buffer, bufOffset, len);
+    	} finally {
+    		lock.readLock().unlock();
+    	}
+    }
+    
+    // read without locking
+    private int readRuns(int offset, byte[] buffer, int bufOffset, int len) {
+    	if(offset < 0 || len <= 0 || offset >= length){
+    		return 0;
+    	}
+    	len = Math.min(len, length - offset);
+    	if(inline != null){
+    		// the data came with the Inode; no block to read
+    		System.arraycopy(inline, offset, buffer, bufOffset, len);
+    		return len;
+    	}
+    	int first = offset / Disk.blockSize;
+    	int count = (offset + len - 1) / Disk.blockSize - first + 1;
+    	int[] blocks = new int[count];
+    	mapBlocks(first, count, blocks);
+    	
+    	byte[] partial = null; // staging block for partial first/last blocks
+    	int i = 0;
+    	while(i < count){
+    		// extend the run while the blocks stay contiguous
+    		int j = i + 1;
+    		while(j < count && blocks[i] >= 0 && blocks[j] == blocks[i] + (j - i)){
+    			j++;
+    		}
+    		// byte range of the file covered by blocks i .. j-1
+    		int from = Math.max(offset, (first + i) * Disk.blockSize);
+    		int to = Math.min(offset + len, (first + j) * Disk.blockSize);
+    		int dest = bufOffset + (from - offset);
+    		
+    		if(blocks[i] < 0){ // hole
+    			Arrays.fill(buffer, dest, dest + (to - from), (byte) 0);
+    		} else if(from % Disk.blockSize == 0 && to % Disk.blockSize == 0){
+    			// whole blocks go straight into the caller's buffer
+    			BlockCache.getCache().readRun(blocks[i], j - i, buffer, dest);
+    		} else {
+    			if(partial == null){
+    				partial = new byte[Disk.blockSize];
+    			}
+    			for(int k = i; k < j; k++){
+    				int blockFrom = Math.max(from, (first + k) * Disk.blockSize);
+    				int blockTo = Math.min(to, (first + k + 1) * Disk.blockSize);
+    				int at = bufOffset + (blockFrom - offset);
+    				if(blockFrom % Disk.blockSize == 0 && blockTo - blockFrom == Disk.blockSize){
+    					// whole blocks in the middle of the run
+    					int whole = 1;
+    					while(k + whole < j && 
+    							(first + k + whole + 1) * Disk.blockSize <= to){
+    						whole++;
+    					}
+    					BlockCache.getCache().readRun(blocks[k], whole, buffer, at);
+    					k += whole - 1;
+    				} else {
+    					BlockCache.getCache().readRun(blocks[k], 1, partial, 0);
+    					System.arraycopy(partial, blockFrom % Disk.blockSize, 
+    							buffer, at, blockTo - blockFrom);
+    				}
+    			}
+    		}
+    		i = j;
+    	}
+    	return len;
+    }
+    
+    // writes len bytes from buffer at bufOffset into the file starting at
+    // offset. Blocks the file does not have yet are allocated as one
+    // contiguous run where possible, then the data is written in
+    // physically contiguous runs; a directory's data goes through the
+    // journal instead. Superblock is passed to allocate blocks.
+    // Returns the number of bytes written (less than len if the disk or
+    // the block map is full)
+    public int write(SuperBlock superblock, int offset, byte[] buffer, 
+    		int bufOffset, int len) {
+    	return write(superblock, offset, buffer, bufOffset, len, false);
+    }
+    
+    // write as above; if behind is true, whole blocks are left dirty in the
+    // block cache for the background flusher (see FileStreams) when there
+    // is room for them, instead of being written before returning
+    public int write(SuperBlock superblock, int offset, byte[] buffer, 
+    		int bufOffset, int len, boolean behind) {
+    	// the index blocks changed by the write are journaled; the commit
+    	// happens before the lock is dropped, so the transactions of one
+    	// file commit in the order they were made
+    	lockWrite();
+    	try {
+    		Journal.begin();
+    		try {
+    			int written = writeRuns(superblock, offset, buffer, bufOffset, len, behind);
+    			// blocks it allocated, and the entries of a directory, commit
+    			// with the Inode pointing at them
+    			if(iNumber >= 0 && (Journal.holds() || (isMetadata() && dirty))){
+    				toDiskLocked(iNumber);
+    			}
+    			return written;
+    		} finally {
+    			Journal.end();
+    		}
+    	} finally {
+    		unlockChanged();
+    	}
+    }
+    
+    // returns the number of physically contiguous runs the file's blocks
+    // form (0 for an empty file); a file in one piece has 1
+    public int fragments() {
+    	lockRead();
+    	try {
+    		int count = (length + Disk.blockSize - 1) / Disk.blockSize;
+    		if(count == 0){
+    			return 0;
+    		}
+    		int[] blocks = new int[count];
+    		mapBlocks(0, count, blocks);
+    		int runs = 0;
+    		for(int i = 0; i < count; i++){
+    			if(blocks[i] >= 0 && (i == 0 || blocks[i] != blocks[i - 1] + 1)){
+    				runs++;
+    			}
+    		}
+    		return runs;
+    	} finally {
+    		lock.readLock().unlock();
+    	}
+    }
+    
+    // moves the file's data blocks into one contiguous run and points the
+    // block map at it. Readers and writers of the file wait on the write
+    // lock meanwhile; the allocation, the new pointers and the frees commit
+    // as one transaction, so a crash leaves the file all in its old blocks
+    // or all in the new ones. Files with holes are left alone. Returns the
+    // number of blocks moved, 0 if the file is already contiguous, -1 if it
+    // cannot be moved (no free run long enough, holes, or more changes than
+    // the journal holds at once)
+    public int relocate(SuperBlock superblock) {
+    	lockWrite();
+    	try {
+    		Journal.begin();
+    		try {
+    			return relocateLocked(superblock);
+    		} finally {
+    			Journal.end();
+    		}
+    	} finally {
+    		unlockChanged();
+    	}
+    }
+    
+    private int relocateLocked(SuperBlock superblock) {
+    	int count = (length + Disk.blockSize - 1) / Disk.blockSize;
+    	if(count == 0){
+    		return 0;
+    	}
+    	int[] blocks = new int[count];
+    	mapBlocks(0, count, blocks);
+    	boolean contiguous = true;
+    	for(int i = 0; i < count; i++){
+    		if(blocks[i] < 0){
+    			return -1; // hole
+    		}
+    		if(i > 0 && blocks[i] != blocks[i - 1] + 1){
+    			contiguous = false;
+    		}
+    	}
+    	if(contiguous){
+    		return 0;
+    	}
+    	if(!Journal.canHold(indexBlocksFor(count) + 1 + 
+    			superblock.metadataBlocksFor(2 * count))){
+    		return -1;
+    	}
+    	dropReservation();
+    	int start = superblock.getFreeBlocks(count, 
+    			superblock.groupStart(superblock.groupOfInode(iNumber)));
+    	if(start < 0){
+    		return -1;
+    	}
+    	
+    	// copy the data a chunk at a time, old runs read as runs
+    	final int chunk = 32;
+    	byte[] data = new byte[chunk * Disk.blockSize];
+    	for(int i = 0; i < count; i += chunk){
+    		int n = Math.min(chunk, count - i);
+    		for(int k = 0; k < n; ){
+    			int run = 1;
+    			while(k + run < n && blocks[i + k + run] == blocks[i + k] + run){
+    				run++;
+    			}
+    			BlockCache.getCache().readRun(blocks[i + k], run, data, k * Disk.blockSize);
+    			k += run;
+    		}
+    		BlockCache.getCache().writeRun(start + i, n, data, 0);
+    	}
+    	
+    	// point the map at the new run
+    	if(extents != null){
+    		short overflow = extents.overflow;
+    		extents.clear();
+    		for(int i = 0; i < count; i++){
+    			extents.append((short) (start + i));
+    		}
+    		if(overflow >= 0){
+    			superblock.returnBlock(overflow); // one run fits inline
+    		}
+    	} else {
+    		for(int i = 0; i < count; i++){
+    			remapBlock(i, (short) (start + i));
+    		}
+    	}
+    	dirty = true;
+    	if(iNumber >= 0){
+    		toDiskLocked(iNumber); // same transaction as the index blocks
+    	}
+    	
+    	// the old blocks are free now
+    	for(int i = 0; i < count; i++){
+    		superblock.returnBlock(blocks[i]);
+    	}
+    	return count;
+    }
+    
+    // most index blocks (or extent overflow blocks) a map of count blocks
+    // uses in any format
+    private static int indexBlocksFor(int count) {
+    	return count / pointersPerBlock + count / (pointersPerBlock * pointersPerBlock) + 4;
+    }
+    
+    // commits the part of the calling thread's transaction made so far if it
+    // has grown large enough (Journal.split), writing this Inode into it
+    // first, so the part holds the new blocks' bits, their pointers and the
+    // Inode that owns them together (write lock held)
+    private void splitTransaction() {
+    	if(Journal.splitDue()){
+    		if(iNumber >= 0){
+    			toDiskLocked(iNumber);
+    		}
+    		Journal.split();
+    	}
+    }
+    
+    // points the already mapped logical block blockNum of a pointer-format
+    // Inode at newBlock
+    private void remapBlock(int blockNum, short newBlock) {
+    	int numDirect = (getFormat() == FORMAT_INDIRECT3) ? multiDirect : directSize;
+    	if(blockNum < numDirect){
+    		direct[blockNum] = newBlock;
+    		return;
+    	}
+    	blockNum -= numDirect;
+    	if(blockNum < pointersPerBlock){
+    		writePointer(indirect, blockNum, newBlock);
+    		return;
+    	}
+    	blockNum -= pointersPerBlock;
+    	int level = 2;
+    	if(blockNum >= pointersPerBlock * pointersPerBlock){
+    		blockNum -= pointersPerBlock * pointersPerBlock;
+    		level = 3;
+    	}
+    	writePointer(leafIndexBlock(null, level, blockNum), blockNum % pointersPerBlock, newBlock);
+    }
+    
+    // gives the unused reserved blocks back; called on the last close
+    public void releaseReservation() {
+    	lockWrite();
+    	try {
+    		dropReservation();
+    	} finally {
+    		lock.writeLock().unlock();
+    	}
+    }
+    
+    // takes count blocks from the start of the reservation if it begins at
+    // hint and holds that many, allocating them in the calling thread's
+    // transaction. Returns the first block, -1 if not
+    private int takeReserved(int hint, int count) {
+    	if(reserveStart != hint || reserveCount < count){
+    		return -1;
+    	}
+    	reserveOwner.claimBlocks(reserveStart, count);
+    	int start = reserveStart;
+    	reserveStart += count;
+    	reserveCount -= count;
+    	if(reserveCount == 0){
+    		reserveStart = -1;
+    	}
+    	return start;
+    }
+    
+    // returns the reserved blocks to the superblock at once (lock held)
+    private void dropReservation() {
+    	if(reserveCount > 0){
+    		reserveOwner.unreserveBlocks(reserveStart, reserveCount);
+    	}
+    	reserveStart = -1;
+    	reserveCount = 0;
+    	reserveOwner = null;
+    }
+    
+    // write without locking
+    private int writeRuns(SuperBlock superblock, int offset, byte[] buffer, 
+    		int bufOffset, int len, boolean behind) {
+    	if(offset < 0 || len <= 0){
+    		return 0;
+    	}
+    	if(inline != null){
+    		// still fits in the Inode: no block at all
+    		if(offset + len <= inlineCapacity){
+    			System.arraycopy(buffer, bufOffset, inline, offset, len);
+    			length = Math.max(length, offset + len);
+    			dirty = true;
+    			return len;
+    		}
+    		if(!leaveInline(superblock)){
+    			return 0;
+    		}
+    	}
+    	int first = offset / Disk.blockSize;
+    	int count = (offset + len - 1) / Disk.blockSize - first + 1;
+    	int[] blocks = new int[count];
+    	boolean[] fresh = new boolean[count]; // allocated by this call
+    	mapBlocks(first, count, blocks);
+    	
+    	// allocate and register the missing blocks
+    	allocate:
+    	for(int i = 0; i < count; i++){
+    		if(blocks[i] >= 0){
+    			continue;
+    		}
+    		int missing = 1;
+    		while(i + missing < count && blocks[i + missing] < 0){
+    			missing++;
+    		}
+    		// ask for one run right after the previous block of the file,
+    		// or in the inode's block group for its first block
+    		int hint = (i > 0) ? blocks[i - 1] + 1 : 
+    			(first > 0 ? findTarget((first - 1) * Disk.blockSize) + 1 : 0);
+    		if(hint <= 0){
+    			hint = superblock.groupStart(superblock.groupOfInode(iNumber));
+    		}
+    		// directories grow a record at a time and the root is never
+    		// closed to give a reservation back, so they take none
+    		boolean appending = (i + missing == count) && 
+    			(first + count) * Disk.blockSize > length && !isMetadata();
+    		int start = takeReserved(hint, missing);
+    		if(start < 0 && appending){
+    			// reserve a window past the new blocks for the next appends
+    			dropReservation();
+    			start = superblock.getFreeBlocks(missing, hint, reserveWindow);
+    			if(start >= 0){
+    				reserveStart = start + missing;
+    				reserveCount = reserveWindow;
+    				reserveOwner = superblock;
+    			}
+    		}
+    		if(start < 0){
+    			start = superblock.getFreeBlocks(missing, hint);
+    		}
+    		for(int k = 0; k < missing; k++){
+    			int block = (start >= 0) ? start + k : superblock.getFreeBlock();
+    			if(block < 0 || !registerTargetLocked(superblock, 
+    					(first + i + k) * Disk.blockSize, (short) block)){
+    				// give back the blocks taken but not registered and
+    				// stop writing at the last registered block
+    				if(block >= 0){
+    					superblock.returnBlock(block);
+    				}
+    				for(int r = k + 1; start >= 0 && r < missing; r++){
+    					superblock.returnBlock(start + r);
+    				}
+    				count = i + k;
+    				len = Math.max(0, Math.min(len, (first + count) * Disk.blockSize - offset));
+    				break allocate;
+    			}
+    			blocks[i + k] = block;
+    			fresh[i + k] = true;
+    		}
+    		// every block of the run is registered, so a part may commit
+    		splitTransaction();
+    		i += missing - 1;
+    	}
+    	
+    	// blocks shared with a clone are split off before they are written;
+    	// one about to be overwritten whole is not copied
+    	for(int k = 0; k < count; k++){
+    		if(fresh[k] || blocks[k] < 0 || !superblock.isShared(blocks[k])){
+    			continue;
+    		}
+    		boolean whole = (first + k) * Disk.blockSize >= offset && 
+    			(first + k + 1) * Disk.blockSize <= offset + len;
+    		int own = ownBlock(superblock, first + k, blocks[k], !whole);
+    		if(own < 0){
+    			// disk full: stop writing before this block
+    			count = k;
+    			len = Math.max(0, Math.min(len, (first + k) * Disk.blockSize - offset));
+    			break;
+    		}
+    		blocks[k] = own;
+    		splitTransaction();
+    	}
+    	
+    	byte[] partial = null; // staging block for partial first/last blocks
+    	int i = 0;
+    	if(isMetadata()){
+    		// directory blocks are journaled like index blocks
+    		patchBlocks(first, count, blocks, fresh, offset, buffer, bufOffset, len);
+    		i = count;
+    	}
+    	while(i < count){
+    		int j = i + 1;
+    		while(j < count && blocks[j] == blocks[i] + (j - i)){
+    			j++;
+    		}
+    		for(int k = i; k < j; k++){
+    			int blockFrom = Math.max(offset, (first + k) * Disk.blockSize);
+    			int blockTo = Math.min(offset + len, (first + k + 1) * Disk.blockSize);
+    			int src = bufOffset + (blockFrom - offset);
+    			if(blockTo - blockFrom == Disk.blockSize){
+    				// whole blocks: write as many as possible in one run
+    				int whole = 1;
+    				while(k + whole < j && 
+    						(first + k + whole + 1) * Disk.blockSize <= offset + len){
+    					whole++;
+    				}
+    				if(!behind || 
+    						!BlockCache.getCache().writeBehind(blocks[k], whole, buffer, src)){
+    					BlockCache.getCache().writeRun(blocks[k], whole, buffer, src);
+    				}
+    				k += whole - 1;
+    			} else {
+    				// partial block: read (or zero a new one), patch, write
+    				if(partial == null){
+    					partial = new byte[Disk.blockSize];
+    				}
+    				if(fresh[k]){
+    					Arrays.fill(partial, (byte) 0);
+    				} else {
+    					BlockCache.getCache().readRun(blocks[k], 1, partial, 0);
+    				}
+    				System.arraycopy(buffer, src, partial, 
+    						blockFrom % Disk.blockSize, blockTo - blockFrom);
+    				BlockCache.getCache().writeRun(blocks[k], 1, partial, 0);
+    			}
+    		}
+    		i = j;
+    	}
+    	
+    	// grow the file
+    	lockWrite();
+    	try {
+    		if(offset + len > length){
+    			length = offset + len;
+    			dirty = true;
+    		}
+    	} finally {
+    		unlockChanged();
+    	}
+    	return len;
+    }
+    
+    // writes the part of len bytes from offset falling in each of blocks[0
+    // .. count-1] (logical blocks first .. first+count-1) as a change in
+    // the calling thread's journal transaction. Blocks allocated by this
+    // write (fresh) are zeroed around that part
+    private void patchBlocks(int first, int count, int[] blocks, boolean[] fresh, 
+    		int offset, byte[] buffer, int bufOffset, int len) {
+    	byte[] partial = null;
+    	for(int k = 0; k < count; k++){
+    		int blockFrom = Math.max(offset, (first + k) * Disk.blockSize);
+    		int blockTo = Math.min(offset + len, (first + k + 1) * Disk.blockSize);
+    		int src = bufOffset + (blockFrom - offset);
+    		if(fresh[k] && blockTo - blockFrom < Disk.blockSize){
+    			if(partial == null){
+    				partial = new byte[Disk.blockSize];
+    			}
+    			Arrays.fill(partial, (byte) 0);
+    			System.arraycopy(buffer, src, partial, 
+    					blockFrom % Disk.blockSize, blockTo - blockFrom);
+    			BlockCache.getCache().writeBlock(blocks[k], partial);
+    		} else {
+    			BlockCache.getCache().patch(blocks[k], blockFrom % Disk.blockSize, 
+    					buffer, src, blockTo - blockFrom);
+    		}
+    	}
+    }
+    
+    // fills blocks[0 .. count-1] with the physical blocks of logical blocks
+    // first .. first+count-1 (-1 where unmapped), reading each index block
+    // at most once
+    private void mapBlocks(int first, int count, int[] blocks) {
+    	Arrays.fill(blocks, -1);
+    	
+    	// extent format: one binary search per run
+    	if(extents != null){
+    		for(int i = 0; i < count; ){
+    			int block = extents.lookup(first + i);
+    			if(block < 0){
+    				return; // past the end of the map
+    			}
+    			int run = Math.min(extents.runLength(first + i), count - i);
+    			for(int k = 0; k < run; k++){
+    				blocks[i + k] = block + k;
+    			}
+    			i += run;
+    		}
+    		return;
+    	}
+    	
+    	int numDirect = (getFormat() == FORMAT_INDIRECT3) ? multiDirect : directSize;
+    	byte[] index = null;
+    	int loaded = -1; // index block currently held in index
+    	for(int i = 0; i < count; i++){
+    		int b = first + i;
+    		if(b < numDirect){
+    			blocks[i] = direct[b];
+    			continue;
+    		}
+    		b -= numDirect;
+    		
+    		// find the index block holding the pointer of b
+    		int leaf;
+    		if(b < pointersPerBlock){
+    			leaf = indirect;
+    		} else if(getFormat() == FORMAT_INDIRECT3){
+    			b -= pointersPerBlock;
+    			int level = 2;
+    			if(b >= pointersPerBlock * pointersPerBlock){
+    				b -= pointersPerBlock * pointersPerBlock;
+    				level = 3;
+    				if(b >= pointersPerBlock * pointersPerBlock * pointersPerBlock){
+    					return;
+    				}
+    			}
+    			leaf = leafIndexBlock(null, level, b);
+    		} else {
+    			return; // past the single indirect block
+    		}
+    		if(leaf < 0){
+    			continue;
+    		}
+    		
+    		// read each index block once
+    		if(leaf != loaded){
+    			if(index == null){
+    				index = DiskCodec.block();
+    			}
+    			BlockCache.read(leaf, index);
+    			loaded = leaf;
+    		}
+    		blocks[i] = DiskCodec.bytes2short(index, (b % pointersPerBlock) * 2);
+    	}
     }
 
     // Returns the index block number (int)
@@ -179,24 +1060,76 @@ public class Inode {
     // Returns true for success, false for failure
     public boolean registerTargetBlock(final SuperBlock superblock, int seekPtr, 
     		short newBlock) {
+    	lockWrite();
+    	try {
+    		Journal.begin();
+    		try {
+    			// the pointer commits with the Inode holding it
+    			boolean registered = registerTargetLocked(superblock, seekPtr, newBlock);
+    			if(registered && iNumber >= 0){
+    				toDiskLocked(iNumber);
+    			}
+    			return registered;
+    		} finally {
+    			Journal.end();
+    		}
+    	} finally {
+    		unlockChanged();
+    	}
+    }
+    
+    private boolean registerTargetLocked(final SuperBlock superblock, int seekPtr, 
+    		short newBlock) {
     	// changes Inode
-    	// synchronized to Inode array in File Table
-    	synchronized (FileTable.inodes){
+    	// locked with this Inode's write lock
+    	lockWrite();
+    	try {
+        	// a block for an inline file: its data moves to blocks first
+        	if(inline != null && !leaveInline(superblock)){
+        		return false;
+        	}
+        	
         	// find the block
         	int targetPtr = seekPtr / Disk.blockSize;
         	
+        	// extent format: blocks are appended in logical order
+        	if(extents != null){
+        		if(targetPtr != extents.size()){
+        			return false; // already mapped, or would leave a hole
+        		}
+        		// a new run past the inline ones needs the overflow block
+        		if(extents.needsOverflow(newBlock)){
+        			int overflowBlock = superblock.getFreeBlock();
+        			if(overflowBlock < 0){
+        				return false;
+        			}
+        			extents.overflow = (short) overflowBlock;
+        		}
+        		if(!extents.append(newBlock)){
+        			return false;
+        		}
+        		dirty = true;
+        		return true;
+        	}
+        	
+        	// multi-level format
+        	if(getFormat() == FORMAT_INDIRECT3){
+        		return registerMultiLevel(superblock, targetPtr, newBlock);
+        	}
+        	
         	// if within range of direct ptrs
         	if(targetPtr < directSize){
         		if(direct[targetPtr] >= 0){ // something's already there
         			return false;
         		}
         		
-        		// if invalid
-        		if((direct[(targetPtr -1)] == -1) && (targetPtr > 0)){
+        		// if invalid (previous block not registered yet)
+        		if((targetPtr > 0) && (direct[(targetPtr -1)] == -1)){
         			return false;
         		}
         		// register block
         		direct[targetPtr] = newBlock;
+        		dirty = true;
         		return true;
         	} 
         	
@@ -209,21 +1142,21 @@ public class Inode {
         	}
         	
         	// read the index block and set a indirect ptr
-        	byte[] buffer = new byte[Disk.blockSize];
-        	SysLib.rawread(indirect, buffer);
         	int indirectBlockPtr = targetPtr - directSize;
-        	
+        	if(indirectBlockPtr >= pointersPerBlock){ // past the index block
+        		return false;
+        	}
         	// if a block is already listed
-        	if(SysLib.bytes2short(buffer, indirectBlockPtr * 2) > 0){
+        	if(readPointer(indirect, indirectBlockPtr) > 0){
         		return false;
         	}
         	
-        	// convert block number to bytes
-        	SysLib.short2bytes(newBlock, buffer, indirectBlockPtr * 2);
-        	// write to disk
-        	SysLib.rawwrite(indirect, buffer);
+        	// write the pointer into the index block
+        	writePointer(indirect, indirectBlockPtr, newBlock);
         	
         	return true;
+    	} finally {
+    		unlockChanged();
     	}
     }
     
@@ -231,23 +1164,800 @@ public class Inode {
     // Returns byte[] from index block with pointers to indirect blocks.
     public byte[] unregisterIndexBlock() {
     	// changes Inode
-    	// synchronized to Inode vector in File Table
-    	synchronized (FileTable.inodes){
+    	// locked with this Inode's write lock
+    	lockWrite();
+    	try {
         	// if index block already invalid
         	if (indirect == -1) {
                 return null;
             }
         	// create a buffer and read the index block
             byte[] indirectBlock = new byte[Disk.blockSize];
-            SysLib.rawread(indirect, indirectBlock);
+            BlockCache.read(indirect, indirectBlock);
             
-            // set the indirect pointer to invalid
+            // set the indirect pointer to invalid; the Inode is written
+            // before the caller can free the blocks
             indirect = -1;
+            dirty = true;
+            if (iNumber >= 0) {
+            	toDisk(iNumber);
+            }
             
             // return the buffer (byte[]) from index block
             return indirectBlock;
+    	} finally {
+    		unlockChanged();
     	}
 
     }
     
+    // returns every data block of the file, and the overflow/index blocks,
+    // to the superblock and empties the map. The blocks are collected first
+    // and freed with one SuperBlock.returnBlocks call (see truncate).
+    // Returns true; every format is handled
+    public boolean releaseBlocks(SuperBlock superblock) {
+    	freeAll(superblock);
+    	return true;
+    }
+    
+    // releaseBlocks returning the number of blocks freed
+    int freeAll(SuperBlock superblock) {
+    	FreedBlocks freed = new FreedBlocks();
+    	lockWrite();
+    	try {
+    		Journal.begin();
+    		try {
+    			dropReservation();
+    			unmapBlocks(0, Integer.MAX_VALUE, freed);
+    			dirty = true;
+    			// the empty map commits with the freed bits
+    			if(iNumber >= 0){
+    				toDiskLocked(iNumber);
+    			}
+    			return freed.release(superblock);
+    		} finally {
+    			Journal.end();
+    		}
+    	} finally {
+    		unlockChanged();
+    	}
+    }
+    
+    // shrinks the file to newLength bytes and frees every block past it.
+    // The pointers are cleared in memory while the blocks are collected
+    // (whole index subtrees past the cut are not even rewritten), the Inode
+    // and the few index blocks that keep some pointers are written in one
+    // journal transaction, and all the blocks go back to the bitmap in the
+    // same transaction with one SuperBlock.returnBlocks call. The rest of the last kept block is
+    // zeroed so growing the file again does not expose old data.
+    // Returns the number of blocks freed, -1 if newLength is longer than
+    // the file or negative
+    public int truncate(SuperBlock superblock, int newLength) {
+    	FreedBlocks freed = new FreedBlocks();
+    	lockWrite();
+    	try {
+    		Journal.begin();
+    		try {
+    			if(newLength < 0 || newLength > length){
+    				return -1;
+    			}
+    			if(newLength == length){
+    				return 0;
+    			}
+    			dropReservation();
+    			if(newLength % Disk.blockSize != 0 || inline != null){
+    				zeroRange(superblock, newLength, Math.min(length, 
+    						(newLength / Disk.blockSize + 1) * Disk.blockSize));
+    			}
+    			unmapBlocks((newLength + Disk.blockSize - 1) / Disk.blockSize, 
+    					Integer.MAX_VALUE, freed);
+    			length = newLength;
+    			dirty = true;
+    			if(iNumber >= 0){
+    				toDiskLocked(iNumber);
+    			}
+    			// freed in the transaction that drops the pointers; the blocks
+    			// only become free in memory once it has committed
+    			return freed.release(superblock);
+    		} finally {
+    			Journal.end();
+    		}
+    	} finally {
+    		unlockChanged();
+    	}
+    }
+    
+    // deallocates the whole blocks inside len bytes from offset, leaving
+    // a hole that reads as zeros; the partial blocks at either end are
+    // zeroed in place. The length of the file does not change. Only
+    // FORMAT_INDIRECT3 maps holes anywhere, so the other formats can only
+    // punch up to the end of the file.
+    // Returns the number of blocks freed, -1 if the range is invalid or the
+    // format cannot hold the hole
+    public int punchHole(SuperBlock superblock, int offset, int len) {
+    	FreedBlocks freed = new FreedBlocks();
+    	lockWrite();
+    	try {
+    		Journal.begin();
+    		try {
+    			if(offset < 0 || len <= 0 || offset >= length){
+    				return -1;
+    			}
+    			int end = (int) Math.min((long) offset + len, length);
+    			int from = (offset + Disk.blockSize - 1) / Disk.blockSize;
+    			int to = (end == length) ? Integer.MAX_VALUE : end / Disk.blockSize;
+    			if(inline != null){
+    				zeroRange(superblock, offset, end);
+    				dirty = true;
+    				if(iNumber >= 0){
+    					toDiskLocked(iNumber);
+    				}
+    				return 0;
+    			}
+    			if(getFormat() != FORMAT_INDIRECT3 && to != Integer.MAX_VALUE){
+    				return -1;
+    			}
+    			// zero the partial blocks, then drop the whole ones
+    			zeroRange(superblock, offset, Math.min(end, from * Disk.blockSize));
+    			if(to != Integer.MAX_VALUE && to >= from){
+    				zeroRange(superblock, to * Disk.blockSize, end);
+    			}
+    			if(to == Integer.MAX_VALUE){
+    				dropReservation();
+    			}
+    			if(from < to){
+    				unmapBlocks(from, to, freed);
+    				dirty = true;
+    				if(iNumber >= 0){
+    					toDiskLocked(iNumber);
+    				}
+    			}
+    			return freed.release(superblock);
+    		} finally {
+    			Journal.end();
+    		}
+    	} finally {
+    		unlockChanged();
+    	}
+    }
+    
+    // moves the block map to a new in-core Inode that has no iNumber and
+    // leaves this one empty (length 0, nothing mapped). The returned Inode
+    // still owns the blocks; releasing it (Reclaimer) frees them without
+    // touching this Inode, which may be written and reused at once
+    public Inode detachBlocks() {
+    	lockWrite();
+    	try {
+    		dropReservation();
+    		Inode orphan = new Inode();
+    		orphan.flag = (short) (flag & FORMAT_MASK);
+    		orphan.length = length;
+    		System.arraycopy(direct, 0, orphan.direct, 0, directSize);
+    		orphan.indirect = indirect;
+    		orphan.doubleIndirect = doubleIndirect;
+    		orphan.tripleIndirect = tripleIndirect;
+    		orphan.extents = extents;
+    		orphan.inline = null;
+    		if(inline != null){
+    			orphan.flag = newFormat; // nothing to free
+    			Arrays.fill(inline, (byte) 0);
+    		}
+    		
+    		Arrays.fill(direct, (short) -1);
+    		indirect = doubleIndirect = tripleIndirect = -1;
+    		if(extents != null){
+    			extents = new ExtentMap();
+    		}
+    		forgetPaths();
+    		length = 0;
+    		dirty = true;
+    		return orphan;
+    	} finally {
+    		unlockChanged();
+    	}
+    }
+    
+    // gives logical block blockNum, mapped to a block shared with a clone,
+    // a block of its own: a new block (holding a copy of the data if copy
+    // is true) replaces it in the map and this file's reference to the
+    // shared one is dropped (write lock held). Only pointer formats share
+    // blocks. Returns the block to write, -1 if the disk is full
+    private int ownBlock(SuperBlock superblock, int blockNum, int block, boolean copy) {
+    	if(extents != null || !superblock.isShared(block)){
+    		return block;
+    	}
+    	int own = superblock.getFreeBlocks(1, block + 1);
+    	if(own < 0){
+    		return -1;
+    	}
+    	if(copy){
+    		byte[] data = new byte[Disk.blockSize];
+    		BlockCache.getCache().readRun(block, 1, data, 0);
+    		BlockCache.getCache().writeRun(own, 1, data, 0);
+    	}
+    	remapBlock(blockNum, (short) own);
+    	dirty = true;
+    	if(iNumber >= 0){
+    		toDiskLocked(iNumber); // same transaction as the dropped reference
+    	}
+    	superblock.returnBlock(block);
+    	return own;
+    }
+    
+    // makes target, an empty Inode (a newly created file), a copy of this
+    // file. With the pointer formats no data is copied: target gets copies
+    // of the index blocks, and every data block gains an owner in the
+    // superblock's reference counts, to be split off by whichever file
+    // writes it first (ownBlock). Inline data is copied; extent maps,
+    // which cannot split a run, get a plain copy of the data.
+    // Returns the number of data blocks now shared, -1 if target is not
+    // empty, the disk keeps no reference counts or it is full
+    public int cloneTo(SuperBlock superblock, Inode target) {
+    	if(target == this || !superblock.supportsClones()){
+    		return -1;
+    	}
+    	lockRead();
+    	try {
+    		target.lockWrite();
+    		try {
+    			Journal.begin();
+    			try {
+    				return cloneLocked(superblock, target);
+    			} finally {
+    				Journal.end();
+    			}
+    		} finally {
+    			target.unlockChanged();
+    		}
+    	} finally {
+    		lock.readLock().unlock();
+    	}
+    }
+    
+    private int cloneLocked(SuperBlock superblock, Inode target) {
+    	if(target.length != 0 || target.indirect >= 0 || target.doubleIndirect >= 0 ||
+    			target.tripleIndirect >= 0 || 
+    			(target.extents != null && target.extents.size() > 0)){
+    		return -1;
+    	}
+    	for(int i = 0; i < directSize; i++){
+    		if(target.direct[i] >= 0){
+    			return -1;
+    		}
+    	}
+    	// the index copies and the new owners commit with the target Inode
+    	// in one transaction, which must fit in the journal
+    	int count = (length + Disk.blockSize - 1) / Disk.blockSize;
+    	if(extents == null && inline == null && !Journal.canHold(indexBlocksFor(count) + 2 + 
+    			superblock.metadataBlocksFor(count + indexBlocksFor(count)))){
+    		return -1;
+    	}
+    	target.dropReservation();
+    	
+    	// extents: copy the data through the target's own format
+    	if(extents != null){
+    		byte[] data = new byte[32 * Disk.blockSize];
+    		for(int offset = 0; offset < length; offset += data.length){
+    			int n = readRuns(offset, data, 0, data.length);
+    			if(target.writeRuns(superblock, offset, data, 0, n, false) < n){
+    				target.freeAll(superblock);
+    				target.length = 0;
+    				return -1;
+    			}
+    		}
+    		target.commitClone();
+    		return 0;
+    	}
+    	
+    	int format = getFormat();
+    	target.flag = (short) ((target.flag & ~FORMAT_MASK) | format);
+    	target.extents = null;
+    	target.inline = (inline != null) ? inline.clone() : null;
+    	target.length = length;
+    	if(inline != null){
+    		target.commitClone();
+    		return 0;
+    	}
+    	
+    	// the direct blocks in one call, then the trees
+    	int numDirect = (format == FORMAT_INDIRECT3) ? multiDirect : directSize;
+    	int[] blocks = new int[numDirect];
+    	int n = 0;
+    	for(int i = 0; i < numDirect; i++){
+    		if(direct[i] >= 0){
+    			blocks[n++] = direct[i];
+    		}
+    	}
+    	int[] state = new int[2]; // data blocks shared, failed (1)
+    	if(!superblock.shareBlocks(blocks, n)){
+    		target.length = 0;
+    		return -1;
+    	}
+    	state[0] = n;
+    	System.arraycopy(direct, 0, target.direct, 0, directSize);
+    	target.indirect = copyTree(superblock, indirect, 1, state);
+    	if(format == FORMAT_INDIRECT3){
+    		target.doubleIndirect = copyTree(superblock, doubleIndirect, 2, state);
+    		target.tripleIndirect = copyTree(superblock, tripleIndirect, 3, state);
+    	}
+    	target.forgetPaths();
+    	if(state[1] != 0){
+    		// undo: the partial copy is consistent, so freeing it drops
+    		// exactly the owners added
+    		target.freeAll(superblock);
+    		target.length = 0;
+    		target.dirty = true;
+    		return -1;
+    	}
+    	target.commitClone();
+    	return state[0];
+    }
+    
+    // writes a finished clone (write lock held)
+    private void commitClone() {
+    	dirty = true;
+    	if(iNumber >= 0){
+    		toDiskLocked(iNumber);
+    	}
+    }
+    
+    // copies the index block node of depth levels for a clone, in the
+    // transaction that writes the clone's Inode. The data
+    // blocks under each copied leaf gain an owner in one call. Returns the
+    // copy, -1 if node is -1 or could not be copied; on failure state[1] is
+    // set and the copy holds only what was copied before it, so it can be
+    // freed like any other tree
+    private short copyTree(SuperBlock superblock, short node, int depth, int[] state) {
+    	if(node < 0 || state[1] != 0){
+    		return -1;
+    	}
+    	int copy = superblock.getFreeBlocks(1, node + 1);
+    	if(copy < 0){
+    		state[1] = 1;
+    		return -1;
+    	}
+    	byte[] index = new byte[Disk.blockSize]; // recursive: no shared buffer
+    	BlockCache.read(node, index);
+    	if(depth == 1){
+    		int[] blocks = new int[pointersPerBlock];
+    		int n = 0;
+    		for(int i = 0; i < pointersPerBlock; i++){
+    			short entry = DiskCodec.bytes2short(index, i * 2);
+    			if(entry >= 0){
+    				blocks[n++] = entry;
+    			}
+    		}
+    		if(!superblock.shareBlocks(blocks, n)){
+    			superblock.returnBlock(copy);
+    			state[1] = 1;
+    			return -1;
+    		}
+    		state[0] += n;
+    	} else {
+    		for(int i = 0; i < pointersPerBlock; i++){
+    			short entry = DiskCodec.bytes2short(index, i * 2);
+    			if(entry >= 0){
+    				DiskCodec.short2bytes(copyTree(superblock, entry, depth - 1, state), 
+    						index, i * 2);
+    			}
+    		}
+    	}
+    	BlockCache.write(copy, index);
+    	return (short) copy;
+    }
+    
+    // switches an inline Inode to the block format chosen for the disk and
+    // writes its data into the first block (write lock held).
+    // Returns false if no block could be allocated; the Inode stays inline
+    private boolean leaveInline(SuperBlock superblock) {
+    	byte[] data = inline;
+    	inline = null;
+    	flag = (short) ((flag & ~FORMAT_MASK) | newFormat);
+    	if(newFormat == FORMAT_EXTENTS){
+    		extents = new ExtentMap();
+    	}
+    	dirty = true;
+    	int saved = length;
+    	if(saved == 0){
+    		return true;
+    	}
+    	length = 0;
+    	if(writeRuns(superblock, 0, data, 0, saved, false) == saved){
+    		return true;
+    	}
+    	// disk full: back to inline, giving back whatever was allocated
+    	FreedBlocks freed = new FreedBlocks();
+    	unmapBlocks(0, Integer.MAX_VALUE, freed);
+    	freed.release(superblock);
+    	extents = null;
+    	inline = data;
+    	flag = (short) ((flag & ~FORMAT_MASK) | FORMAT_INLINE);
+    	length = saved;
+    	return false;
+    }
+    
+    // zeroes bytes [from, to) of the file, which must lie in one block,
+    // if that block is mapped (write lock held)
+    private void zeroRange(SuperBlock superblock, int from, int to) {
+    	if(from >= to){
+    		return;
+    	}
+    	if(inline != null){
+    		Arrays.fill(inline, from, to, (byte) 0);
+    		return;
+    	}
+    	int block = findTarget(from);
+    	if(block < 0){
+    		return;
+    	}
+    	if(superblock.isShared(block) && 
+    			(block = ownBlock(superblock, from / Disk.blockSize, block, true)) < 0){
+    		return; // disk full: the old bytes stay
+    	}
+    	// journaled, so the zeroes land with the length that hides them
+    	int len = (to - 1) % Disk.blockSize + 1 - from % Disk.blockSize;
+    	BlockCache.getCache().patch(block, from % Disk.blockSize, 
+    			new byte[len], 0, len);
+    }
+    
+    // clears the mapping of logical blocks [from, to) and collects the data
+    // blocks, and the index or overflow blocks left empty, in freed
+    // (write lock held). Extent maps can only be cut at the end
+    private void unmapBlocks(int from, int to, FreedBlocks freed) {
+    	if(inline != null){
+    		return; // no blocks
+    	}
+    	if(extents != null){
+    		for(int b = from; b < extents.size(); ){
+    			int block = extents.lookup(b);
+    			int run = extents.runLength(b);
+    			for(int k = 0; k < run; k++){
+    				freed.add(block + k);
+    			}
+    			b += run;
+    		}
+    		extents.truncate(from);
+    		if(extents.extents() <= ExtentMap.inlineExtents && extents.overflow >= 0){
+    			freed.add(extents.overflow);
+    			extents.overflow = -1;
+    		}
+    		return;
+    	}
+    	
+    	int numDirect = (getFormat() == FORMAT_INDIRECT3) ? multiDirect : directSize;
+    	for(int b = from; b < to && b < numDirect; b++){
+    		freed.add(direct[b]);
+    		direct[b] = -1;
+    	}
+    	int base = numDirect;
+    	indirect = unmapRoot(indirect, 1, base, from, to, freed);
+    	if(getFormat() == FORMAT_INDIRECT3){
+    		base += pointersPerBlock;
+    		doubleIndirect = unmapRoot(doubleIndirect, 2, base, from, to, freed);
+    		base += pointersPerBlock * pointersPerBlock;
+    		tripleIndirect = unmapRoot(tripleIndirect, 3, base, from, to, freed);
+    	}
+    	forgetPaths();
+    }
+    
+    // unmaps [from, to) below the top index block root, which maps depth
+    // levels of logical blocks starting at base. Returns the new pointer
+    // to keep in the Inode: root, or -1 if it was freed
+    private short unmapRoot(short root, int depth, int base, int from, int to, 
+    		FreedBlocks freed) {
+    	if(root < 0){
+    		return root;
+    	}
+    	long span = 1;
+    	for(int d = 0; d < depth; d++){
+    		span *= pointersPerBlock;
+    	}
+    	if(base + span <= from || base >= to){
+    		return root;
+    	}
+    	if(from <= base && base + span <= to){
+    		collectTree(root, depth, freed);
+    		return -1;
+    	}
+    	return unmapTree(root, depth, base, from, to, freed) ? -1 : root;
+    }
+    
+    // clears the pointers to logical blocks [from, to) in index block node,
+    // which maps depth levels of blocks starting at base; subtrees entirely
+    // inside the range are collected without being rewritten. Returns true
+    // if node maps nothing anymore, in which case it is collected too;
+    // otherwise it is written back once if it changed
+    private boolean unmapTree(short node, int depth, int base, int from, int to, 
+    		FreedBlocks freed) {
+    	byte[] index = new byte[Disk.blockSize]; // recursive: no shared buffer
+    	BlockCache.read(node, index);
+    	int childSpan = 1;
+    	for(int d = 1; d < depth; d++){
+    		childSpan *= pointersPerBlock;
+    	}
+    	boolean changed = false;
+    	boolean empty = true;
+    	for(int i = 0; i < pointersPerBlock; i++){
+    		short entry = DiskCodec.bytes2short(index, i * 2);
+    		if(entry < 0){
+    			continue;
+    		}
+    		long lo = base + (long) i * childSpan;
+    		long hi = lo + childSpan;
+    		if(hi <= from || lo >= to){
+    			empty = false;
+    			continue;
+    		}
+    		if(depth == 1 || (from <= lo && hi <= to)){
+    			collectTree(entry, depth - 1, freed);
+    		} else if(!unmapTree(entry, depth - 1, (int) lo, from, to, freed)){
+    			empty = false;
+    			continue;
+    		}
+    		DiskCodec.short2bytes((short) -1, index, i * 2);
+    		changed = true;
+    	}
+    	if(empty){
+    		freed.add(node);
+    		return true;
+    	}
+    	if(changed){
+    		BlockCache.write(node, index);
+    	}
+    	return false;
+    }
+    
+    // collects block and, if it is an index block (depth > 0), every block
+    // below it
+    private void collectTree(short block, int depth, FreedBlocks freed) {
+    	if(depth > 0){
+    		byte[] index = new byte[Disk.blockSize];
+    		BlockCache.read(block, index);
+    		for(int i = 0; i < pointersPerBlock; i++){
+    			short entry = DiskCodec.bytes2short(index, i * 2);
+    			if(entry >= 0){
+    				collectTree(entry, depth - 1, freed);
+    			}
+    		}
+    	}
+    	freed.add(block);
+    }
+    
+    // blocks unmapped by one operation, freed together afterwards
+    private static class FreedBlocks {
+    	int[] blocks = new int[64];
+    	int count;
+    	
+    	void add(int block) {
+    		if(block < 0){
+    			return;
+    		}
+    		if(count == blocks.length){
+    			blocks = Arrays.copyOf(blocks, count * 2);
+    		}
+    		blocks[count++] = block;
+    	}
+    	
+    	// drops the blocks' cached copies and returns them to the bitmap.
+    	// Blocks a clone still maps keep their cached copies.
+    	// Returns the number freed
+    	int release(SuperBlock superblock) {
+    		if(count == 0){
+    			return 0;
+    		}
+    		int[] unshared = new int[count];
+    		int n = 0;
+    		for(int i = 0; i < count; i++){
+    			if(!superblock.isShared(blocks[i])){
+    				unshared[n++] = blocks[i];
+    			}
+    		}
+    		BlockCache.getCache().discard(unshared, n);
+    		return superblock.returnBlocks(blocks, count);
+    	}
+    }
+    
+    // maps a logical block of a FORMAT_INDIRECT3 Inode, -1 if not mapped
+    private int findMultiLevel(int blockNum) {
+    	if(blockNum < multiDirect){
+    		return direct[blockNum];
+    	}
+    	blockNum -= multiDirect;
+    	if(blockNum < pointersPerBlock){
+    		return (indirect < 0) ? -1 : readPointer(indirect, blockNum);
+    	}
+    	blockNum -= pointersPerBlock;
+    	int level = 2;
+    	if(blockNum >= pointersPerBlock * pointersPerBlock){
+    		blockNum -= pointersPerBlock * pointersPerBlock;
+    		level = 3;
+    		if(blockNum >= pointersPerBlock * pointersPerBlock * pointersPerBlock){
+    			return -1; // past the triple indirect range
+    		}
+    	}
+    	short leaf = leafIndexBlock(null, level, blockNum);
+    	return (leaf < 0) ? -1 : readPointer(leaf, blockNum % pointersPerBlock);
+    }
+    
+    // registers a logical block of a FORMAT_INDIRECT3 Inode, allocating the
+    // index blocks on the way. Returns false if it is already registered,
+    // past the triple indirect range, or the disk is full
+    private boolean registerMultiLevel(SuperBlock superblock, int blockNum, 
+    		short newBlock) {
+    	if(blockNum < multiDirect){
+    		// holes are allowed here as in the index blocks (punchHole)
+    		if(direct[blockNum] >= 0){
+    			return false;
+    		}
+    		direct[blockNum] = newBlock;
+    		dirty = true;
+    		return true;
+    	}
+    	blockNum -= multiDirect;
+    	short leaf;
+    	if(blockNum < pointersPerBlock){
+    		if(indirect < 0){
+    			indirect = newIndexBlock(superblock);
+    			if(indirect < 0){
+    				return false;
+    			}
+    			dirty = true;
+    		}
+    		leaf = indirect;
+    	} else {
+    		blockNum -= pointersPerBlock;
+    		int level = 2;
+    		if(blockNum >= pointersPerBlock * pointersPerBlock){
+    			blockNum -= pointersPerBlock * pointersPerBlock;
+    			level = 3;
+    			if(blockNum >= pointersPerBlock * pointersPerBlock * pointersPerBlock){
+    				return false; // past the triple indirect range
+    			}
+    		}
+    		leaf = leafIndexBlock(superblock, level, blockNum);
+    		if(leaf < 0){
+    			return false;
+    		}
+    	}
+    	int entry = blockNum % pointersPerBlock;
+    	if(readPointer(leaf, entry) >= 0){ // already registered
+    		return false;
+    	}
+    	writePointer(leaf, entry, newBlock);
+    	return true;
+    }
+    
+    // returns the leaf index block holding the pointer of blockNum (counted
+    // from the start of the double or triple range). Resolved paths are
+    // remembered so sequential access does not walk the tree per block.
+    // If superblock is not null, missing index blocks are allocated;
+    // otherwise -1 is returned for them. Callers hold this Inode's read or
+    // write lock, which guards the tree; readers share the path cache, so
+    // it has its own lock, held only while the slots are looked at and
+    // never across the walk and its disk reads
+    private short leafIndexBlock(SuperBlock superblock, int level, int blockNum) {
+    	int key = (level << 24) | (blockNum / pointersPerBlock);
+    	pathLock.lock();
+    	try {
+    		if(pathKey != null){
+    			for(int i = 0; i < pathSlots; i++){
+    				if(pathKey[i] == key && pathLeaf[i] >= 0){
+    					return pathLeaf[i];
+    				}
+    			}
+    		}
+    	} finally {
+    		pathLock.unlock();
+    	}
+    	
+    	// walk down from the double or triple indirect pointer
+    	short node = (level == 2) ? doubleIndirect : tripleIndirect;
+    	if(node < 0){
+    		if(superblock == null || (node = newIndexBlock(superblock)) < 0){
+    			return -1;
+    		}
+    		if(level == 2){
+    			doubleIndirect = node;
+    		} else {
+    			tripleIndirect = node;
+    		}
+    		dirty = true;
+    	}
+    	int span = (level == 3) ? pointersPerBlock * pointersPerBlock : pointersPerBlock;
+    	while(span > 1){
+    		int entry = (blockNum / span) % pointersPerBlock;
+    		short next = readPointer(node, entry);
+    		if(next < 0){
+    			if(superblock == null || (next = newIndexBlock(superblock)) < 0){
+    				return -1;
+    			}
+    			writePointer(node, entry, next);
+    		}
+    		node = next;
+    		span /= pointersPerBlock;
+    	}
+    	
+    	// remember the path, replacing slots round robin
+    	pathLock.lock();
+    	try {
+    		if(pathKey == null){
+    			pathKey = new int[pathSlots];
+    			pathLeaf = new short[pathSlots];
+    			Arrays.fill(pathKey, -1);
+    			Arrays.fill(pathLeaf, (short) -1);
+    			pathNext = 0;
+    		}
+    		pathKey[pathNext] = key;
+    		pathLeaf[pathNext] = node;
+    		pathNext = (pathNext + 1) % pathSlots;
+    	} finally {
+    		pathLock.unlock();
+    	}
+    	return node;
+    }
+    
+    // drops every remembered index path
+    private void forgetPaths() {
+    	pathLock.lock();
+    	try {
+    		if(pathKey != null){
+    			Arrays.fill(pathKey, -1);
+    			Arrays.fill(pathLeaf, (short) -1);
+    		}
+    		pathNext = 0;
+    	} finally {
+    		pathLock.unlock();
+    	}
+    }
+    
+    // allocates an index block with every pointer invalid, -1 if disk full
+    private short newIndexBlock(SuperBlock superblock) {
+    	int block = superblock.getFreeBlock();
+    	if(block < 0){
+    		return -1;
+    	}
+    	byte[] newBlock = DiskCodec.block();
+    	Arrays.fill(newBlock, (byte) -1); // every pointer invalid
+    	BlockCache.write(block, newBlock);
+    	return (short) block;
+    }
+    
+    // takes the write lock, timing the wait when it is held by others
+    private void lockWrite() {
+    	if(!lock.writeLock().tryLock()){
+    		long start = Metrics.start();
+    		lock.writeLock().lock();
+    		Metrics.record(Metrics.INODE_LOCK_WAIT, start);
+    	}
+    }
+    
+    // drops the write lock after a change to the file's data or block map
+    private void unlockChanged() {
+    	version.incrementAndGet();
+    	lock.writeLock().unlock();
+    }
+    
+    // takes the read lock, timing the wait when a writer holds it
+    private void lockRead() {
+    	if(!lock.readLock().tryLock()){
+    		long start = Metrics.start();
+    		lock.readLock().lock();
+    		Metrics.record(Metrics.INODE_LOCK_WAIT, start);
+    	}
+    }
+    
+    // reads one pointer of an index block
+    private short readPointer(short indexBlock, int entry) {
+    	byte[] buffer = DiskCodec.pointer();
+    	BlockCache.getCache().readBytes(indexBlock, entry * 2, buffer, 0, 2);
+    	return DiskCodec.bytes2short(buffer, 0);
+    }
+    
+    // writes one pointer of an index block
+    private void writePointer(short indexBlock, int entry, short value) {
+    	byte[] buffer = DiskCodec.pointer();
+    	DiskCodec.short2bytes(value, buffer, 0);
+    	BlockCache.getCache().patch(indexBlock, entry * 2, buffer, 0, 2);
+    }
+    
 }
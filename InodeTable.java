@@ -0,0 +1,129 @@
+/** InodeTable.java
+*
+* In-core inode table. Each inode is read from disk once and then shared:
+* every open of the same file gets the same Inode object, so its open count
+* is the real number of file table entries using it. Inodes are written
+* back lazily, only when dirty, on the last close (release) or on sync().
+*
+* Lookups and open/close counting take no lock: slots are read and filled
+* with compare-and-set, and the open count of each Inode is atomic.
+*
+* @version 10/18/2026
+*/
+
+import java.lang.invoke.*;
+import java.util.*;
+
+public class InodeTable {
+    // atomic access to the slots of the Inode array
+    private static final VarHandle SLOT = 
+        MethodHandles.arrayElementVarHandle( Inode[].class );
+
+    // canonical Inode per iNumber, null if not loaded
+    private Inode[] inodes;
+
+    // constructor
+    // receives the Inode array built by SuperBlock.getInodes(); entries that
+    // are null are read from disk on first use
+    public InodeTable( Inode[] nodes ) {
+        inodes = nodes;
+    }
+
+    // returns the number of inodes in the table
+    public int size( ) {
+        return inodes.length;
+    }
+
+    // returns the canonical Inode of iNumber, reading it from disk only the
+    // first time it is asked for. If two threads load it at once, the first
+    // one installed wins. Returns null if iNumber is invalid
+    public Inode get( short iNumber ) {
+        if ( iNumber < 0 || iNumber >= inodes.length ) {
+            return null;
+        }
+        Inode inode = (Inode) SLOT.getVolatile( inodes, (int) iNumber );
+        if ( inode == null ) {
+            Inode loaded = new Inode( iNumber );
+            if ( SLOT.compareAndSet( inodes, (int) iNumber, (Inode) null, loaded ) ) {
+                inode = loaded;
+            } else {
+                inode = (Inode) SLOT.getVolatile( inodes, (int) iNumber );
+            }
+        }
+        return inode;
+    }
+
+    // returns the canonical Inode of iNumber if it is loaded, without
+    // reading it from disk otherwise (null then, or if iNumber is invalid)
+    public Inode peek( short iNumber ) {
+        if ( iNumber < 0 || iNumber >= inodes.length ) {
+            return null;
+        }
+        return (Inode) SLOT.getVolatile( inodes, (int) iNumber );
+    }
+
+    // returns the canonical Inode of iNumber and adds a reference to it
+    public Inode acquire( short iNumber ) {
+        Inode inode = get( iNumber );
+        if ( inode != null ) {
+            inode.count = (short) inode.opens.incrementAndGet( );
+        }
+        return inode;
+    }
+
+    // installs an empty Inode for a newly created file and adds a reference
+    // to it. The inode gets the format chosen by Inode.setNewFormat and is
+    // written at once, in the calling thread's journal transaction, so it
+    // commits with the directory entry naming it when the caller made both
+    // in one. The caller holds the directory lock, so nobody else can look
+    // the new iNumber up yet
+    public Inode create( short iNumber ) {
+        if ( iNumber < 0 || iNumber >= inodes.length ) {
+            return null;
+        }
+        Inode inode = new Inode( );
+        inode.iNumber = iNumber;
+        inode.count = (short) inode.opens.incrementAndGet( );
+        SLOT.setVolatile( inodes, (int) iNumber, inode );
+        inode.toDisk( iNumber );
+        return inode;
+    }
+
+    // drops a reference to iNumber. On the last reference the inode is
+    // written back if it is dirty.
+    // Returns false if the inode is not loaded or has no references
+    public boolean release( short iNumber ) {
+        if ( iNumber < 0 || iNumber >= inodes.length ) {
+            return false;
+        }
+        Inode inode = (Inode) SLOT.getVolatile( inodes, (int) iNumber );
+        if ( inode == null ) {
+            return false;
+        }
+        int left;
+        do {
+            left = inode.opens.get( );
+            if ( left <= 0 ) {
+                return false;
+            }
+        } while ( !inode.opens.compareAndSet( left, left - 1 ) );
+        inode.count = (short) ( left - 1 );
+        if ( left == 1 ) {
+            inode.releaseReservation( );
+            if ( inode.dirty ) {
+                inode.toDisk( iNumber );
+            }
+        }
+        return true;
+    }
+
+    // writes every dirty inode back to disk
+    public void sync( ) {
+        for ( int i = 0; i < inodes.length; i++ ) {
+            Inode inode = (Inode) SLOT.getVolatile( inodes, i );
+            if ( inode != null && inode.dirty ) {
+                inode.toDisk( i );
+            }
+        }
+    }
+}
@@ -0,0 +1,574 @@
+/** Journal.java
+*
+* Write-ahead journal for metadata blocks. An operation that changes
+* metadata (creating or closing a file, allocating blocks, syncing the
+* superblock) runs between begin() and end(); every block it writes through
+* BlockCache joins its transaction and is pinned in the cache, so the block
+* cannot reach its home location before the transaction is committed.
+*
+* A transaction records its own changes to each block (bytes written, bits
+* toggled or set, counts added), not just which blocks it touched, because
+* a block such as an inode or bitmap block may also hold changes of other
+* transactions that have not committed yet. The cache keeps the committed
+* contents of every pinned frame; a record logs those contents with the
+* changes of the transactions being committed applied, and nothing else.
+* Blocks freed inside a transaction (afterCommit) are only returned once it
+* has committed, so no other transaction can reuse them before then.
+*
+* Commits are grouped: the first thread to commit becomes the leader and
+* writes the blocks of every transaction queued meanwhile as one group,
+* followed by a single device sync, then wakes the others. Under concurrent
+* load many operations share one synchronous flush.
+*
+* The journal region is reserved by SuperBlock. Layout:
+*   start                header: magic, sequence number of the first record
+*   start+1 ..           records, each
+*                          descriptor: magic, sequence, n, n home block numbers
+*                          n block images
+*                          commit: magic, sequence, n, CRC32 of the
+*                                  descriptor and images, last
+* The records are written and then synced once, so a commit block can reach
+* the disk before the images it describes; the checksum tells such a torn
+* record apart. Transactions committed together form one group, normally a
+* single record; a group larger than maxRecord blocks takes several and
+* only the last is marked last. When a group does not fit in the rest of
+* the log, the cache is written back (committed blocks reach their home
+* locations) and the log starts over after the header. A transaction that
+* does not fit in an empty log cannot be committed atomically and is
+* refused: end() throws IllegalStateException.
+*
+* recover() replays every complete group, in order, when SuperBlock is
+* constructed. Records of older images, whose commit blocks have no
+* checksum, replay one at a time as before.
+*
+* @version 10/18/2026
+*/
+
+import java.nio.*;
+import java.util.*;
+import java.util.zip.*;
+
+public class Journal {
+    private final static int HEADER = 0x4A484452;  // "JHDR"
+    private final static int DESCRIPTOR = 0x4A444553; // "JDES"
+    private final static int COMMIT = 0x4A434D54;  // "JCMT", no checksum (old images)
+    private final static int CHECKED = 0x4A434B53; // "JCKS", with checksum
+    private final static int maxDescriptorBlocks = ( Disk.blockSize - 12 ) / 4;
+    private final static int splitBlocks = 16;  // see split()
+
+    private static Journal journal;     // the journal in use, null if none
+    private static final ThreadLocal<Transaction> current =
+        new ThreadLocal<Transaction>( );
+
+    private int start;          // header block
+    private int size;           // blocks in the region, header included
+    private int maxRecord;      // most block images in one record
+    private int next;           // next free log block, relative to start
+    private int sequence;       // sequence number of the next record
+    private ArrayList<Transaction> pending; // waiting to be committed
+    private boolean committing; // a leader is writing records
+
+    // statistics
+    private long transactions;
+    private long records;
+    private long checkpoints;
+
+    // kinds of change to a block
+    public final static int OVERWRITE = 0;  // bytes replaced
+    public final static int TOGGLE = 1;     // bits flipped (xor)
+    public final static int SET = 2;        // bits set (or)
+    public final static int ADD = 3;        // bytes added to, as counters
+
+    // one change a transaction made to a block
+    static class Change {
+        final int blockId;
+        final int kind;
+        final int offset;       // in the block
+        final byte bytes[];
+
+        Change( int blockId, int kind, int offset, byte bytes[] ) {
+            this.blockId = blockId;
+            this.kind = kind;
+            this.offset = offset;
+            this.bytes = bytes;
+        }
+
+        void apply( byte image[] ) {
+            Journal.apply( kind, image, offset, bytes, 0, bytes.length );
+        }
+    }
+
+    // blocks changed by one operation
+    private static class Transaction {
+        LinkedHashSet<Integer> blocks = new LinkedHashSet<Integer>( );
+        ArrayList<Change> changes = new ArrayList<Change>( );
+        ArrayList<Runnable> afterCommit; // run once the transaction is durable
+        int depth;              // nested begin() calls
+        boolean done;           // committed (or abandoned)
+        boolean refused;        // too large for the journal
+    }
+
+    // constructor
+    private Journal( int startBlock, int numBlocks ) {
+        start = startBlock;
+        size = numBlocks;
+        maxRecord = Math.min( maxDescriptorBlocks, size - 3 );
+        next = 1;
+        sequence = 1;
+        pending = new ArrayList<Transaction>( );
+    }
+
+    // uses the region of numBlocks blocks at startBlock as the journal.
+    // Call recover() (mount) or reset() (format) next
+    public static synchronized void setup( int startBlock, int numBlocks ) {
+        journal = ( numBlocks >= 8 ) ? new Journal( startBlock, numBlocks ) : null;
+    }
+
+    // stops journaling (images without a journal region)
+    public static synchronized void disable( ) {
+        journal = null;
+    }
+
+    // true if metadata updates are being journaled
+    public static boolean enabled( ) {
+        return journal != null;
+    }
+
+    // starts (or nests into) the calling thread's transaction
+    public static void begin( ) {
+        if ( journal == null ) {
+            return;
+        }
+        Transaction t = current.get( );
+        if ( t == null ) {
+            t = new Transaction( );
+            current.set( t );
+        }
+        t.depth++;
+    }
+
+    // ends the calling thread's transaction; the outermost end() commits it
+    // and returns once its blocks are durable in the journal, after running
+    // the actions deferred with afterCommit. Throws IllegalStateException
+    // if the transaction is too large for the journal
+    public static void end( ) {
+        Transaction t = current.get( );
+        if ( t == null ) {
+            return;
+        }
+        if ( --t.depth > 0 ) {
+            return;
+        }
+        current.remove( );
+        try {
+            Journal j = journal;
+            if ( j == null ) {
+                // journaling was turned off meanwhile
+                BlockCache.getCache( ).unpin( t.blocks );
+            } else {
+                j.commit( t );
+            }
+        } finally {
+            if ( t.afterCommit != null ) {
+                for ( Runnable action : t.afterCommit ) {
+                    action.run( );
+                }
+            }
+        }
+        if ( t.refused ) {
+            throw new IllegalStateException( "Journal: transaction of " +
+                t.blocks.size( ) + " blocks does not fit in the journal" );
+        }
+    }
+
+    // defers action until the calling thread's transaction has committed.
+    // Returns false, doing nothing, if the thread is in no transaction
+    public static boolean afterCommit( Runnable action ) {
+        Transaction t = current.get( );
+        if ( t == null ) {
+            return false;
+        }
+        if ( t.afterCommit == null ) {
+            t.afterCommit = new ArrayList<Runnable>( );
+        }
+        t.afterCommit.add( action );
+        return true;
+    }
+
+    // commits the blocks the calling thread's transaction holds so far if
+    // there are more than splitBlocks of them, and goes on with the rest of
+    // the transaction. Long operations (a large write allocating many index
+    // blocks) call this so they do not pin every frame of the cache. Only
+    // call it at a point where the metadata is consistent
+    public static void split( ) {
+        if ( !splitDue( ) ) {
+            return;
+        }
+        Transaction t = current.get( );
+        Journal j = journal;
+        Transaction part = new Transaction( );
+        part.blocks = t.blocks;
+        part.changes = t.changes;
+        t.blocks = new LinkedHashSet<Integer>( );
+        t.changes = new ArrayList<Change>( );
+        j.commit( part );
+        if ( part.refused ) {
+            t.refused = true;
+        }
+    }
+
+    // true if split() would commit the calling thread's transaction now
+    public static boolean splitDue( ) {
+        Transaction t = current.get( );
+        Journal j = journal;
+        return t != null && j != null && 
+            t.blocks.size( ) >= Math.min( splitBlocks, j.capacity( ) / 2 );
+    }
+
+    // true if the calling thread's transaction can change blocks more
+    // blocks and still commit as one; always true without a journal. An
+    // operation that must not be split checks this before changing anything
+    public static boolean canHold( int blocks ) {
+        Journal j = journal;
+        if ( j == null ) {
+            return true;
+        }
+        Transaction t = current.get( );
+        return j.fits( blocks + ( ( t == null ) ? 0 : t.blocks.size( ) ) );
+    }
+
+    // true if the calling thread's transaction has changed any block since
+    // it began (or since its last split)
+    public static boolean holds( ) {
+        Transaction t = current.get( );
+        return t != null && !t.blocks.isEmpty( );
+    }
+
+    // called by BlockCache for every block it changes. Returns true if the
+    // block just joined the calling thread's transaction and must be pinned
+    public static boolean track( int blockId ) {
+        Transaction t = current.get( );
+        return t != null && t.blocks.add( blockId );
+    }
+
+    // called by BlockCache after track() with the change it makes to the
+    // block: kind, at blockOffset, of len bytes from src at srcOffset.
+    // Returns false if the calling thread is in no transaction, in which
+    // case the change counts as committed already
+    public static boolean record( int blockId, int kind, int blockOffset, 
+                                  byte src[], int srcOffset, int len ) {
+        Transaction t = current.get( );
+        if ( t == null ) {
+            return false;
+        }
+        t.changes.add( new Change( blockId, kind, blockOffset,
+                                   Arrays.copyOfRange( src, srcOffset, srcOffset + len ) ) );
+        return true;
+    }
+
+    // applies a change of kind to image at blockOffset
+    public static void apply( int kind, byte image[], int blockOffset, 
+                              byte src[], int srcOffset, int len ) {
+        switch ( kind ) {
+        case OVERWRITE:
+            System.arraycopy( src, srcOffset, image, blockOffset, len );
+            break;
+        case TOGGLE:
+            for ( int i = 0; i < len; i++ ) {
+                image[blockOffset + i] ^= src[srcOffset + i];
+            }
+            break;
+        case SET:
+            for ( int i = 0; i < len; i++ ) {
+                image[blockOffset + i] |= src[srcOffset + i];
+            }
+            break;
+        case ADD:
+            for ( int i = 0; i < len; i++ ) {
+                image[blockOffset + i] += src[srcOffset + i];
+            }
+            break;
+        }
+    }
+
+    // replays the complete records left in the journal into their home
+    // blocks and empties the journal. Returns the number of records replayed
+    public static int recover( ) {
+        Journal j = journal;
+        return ( j == null ) ? 0 : j.replay( );
+    }
+
+    // empties the journal of a freshly formatted disk
+    public static void reset( ) {
+        Journal j = journal;
+        if ( j != null ) {
+            synchronized ( j ) {
+                j.writeHeader( );
+                BlockCache.getCache( ).getDevice( ).sync( );
+            }
+        }
+    }
+
+    public static String stats( ) {
+        Journal j = journal;
+        if ( j == null ) {
+            return "Journal: disabled";
+        }
+        synchronized ( j ) {
+            return "Journal: transactions=" + j.transactions + " records=" +
+                j.records + " checkpoints=" + j.checkpoints;
+        }
+    }
+
+    // queues t and waits until it is committed. If no other thread is
+    // writing records, this one becomes the leader and commits every
+    // queued transaction in groups until the queue is empty
+    private void commit( Transaction t ) {
+        if ( t.blocks.isEmpty( ) ) {
+            return;
+        }
+        synchronized ( this ) {
+            pending.add( t );
+            while ( committing && !t.done ) {
+                try {
+                    wait( );
+                } catch ( InterruptedException e ) { }
+            }
+            if ( t.done ) {
+                return;
+            }
+            committing = true;
+        }
+
+        // leader
+        BlockCache cache = BlockCache.getCache( );
+        while ( true ) {
+            ArrayList<Transaction> batch = new ArrayList<Transaction>( );
+            LinkedHashSet<Integer> blocks = new LinkedHashSet<Integer>( );
+            synchronized ( this ) {
+                if ( pending.isEmpty( ) ) {
+                    committing = false;
+                    notifyAll( );
+                    return;
+                }
+                // take transactions while their blocks fit in one group
+                while ( !pending.isEmpty( ) ) {
+                    Transaction next = pending.get( 0 );
+                    LinkedHashSet<Integer> union = new LinkedHashSet<Integer>( blocks );
+                    union.addAll( next.blocks );
+                    if ( !batch.isEmpty( ) && !fits( union.size( ) ) ) {
+                        break;
+                    }
+                    pending.remove( 0 );
+                    batch.add( next );
+                    blocks = union;
+                }
+            }
+
+            ArrayList<Change> changes = new ArrayList<Change>( );
+            for ( Transaction member : batch ) {
+                changes.addAll( member.changes );
+            }
+            if ( fits( blocks.size( ) ) ) {
+                writeRecords( blocks, changes );
+                cache.commit( changes );
+            } else {
+                // a single transaction larger than the log: its changes stay
+                // in the cache, unjournaled
+                batch.get( 0 ).refused = true;
+            }
+            cache.unpin( blocks );
+
+            synchronized ( this ) {
+                transactions += batch.size( );
+                for ( Transaction done : batch ) {
+                    done.done = true;
+                }
+                notifyAll( );
+            }
+        }
+    }
+
+    // most blocks one group can hold in an empty log
+    private int capacity( ) {
+        int n = size - 1;
+        while ( n > 0 && !fits( n ) ) {
+            n--;
+        }
+        return n;
+    }
+
+    // true if a group of n blocks fits in an empty log
+    private boolean fits( int n ) {
+        int numRecords = ( n + maxRecord - 1 ) / maxRecord;
+        return n + 2 * numRecords <= size - 1;
+    }
+
+    // logs the committed contents of blocks with changes applied, as one
+    // group, and syncs the device. Only the group's last record is marked
+    // last, so recover() applies all of it or none
+    private void writeRecords( LinkedHashSet<Integer> blocks, ArrayList<Change> changes ) {
+        BlockCache cache = BlockCache.getCache( );
+        BlockDevice device = cache.getDevice( );
+        Integer[] ids = blocks.toArray( new Integer[blocks.size( )] );
+
+        // the images to log
+        HashMap<Integer, byte[]> images = new HashMap<Integer, byte[]>( );
+        for ( Integer id : ids ) {
+            byte[] image = new byte[Disk.blockSize];
+            cache.peekCommitted( id, image );
+            images.put( id, image );
+        }
+        for ( Change change : changes ) {
+            change.apply( images.get( change.blockId ) );
+        }
+
+        // make room: committed blocks go home, the log starts over
+        int numRecords = ( ids.length + maxRecord - 1 ) / maxRecord;
+        if ( next + ids.length + 2 * numRecords > size ) {
+            checkpoint( );
+        }
+
+        byte[] block = new byte[Disk.blockSize];
+        CRC32 crc = new CRC32( );
+        for ( int first = 0; first < ids.length; first += maxRecord ) {
+            int n = Math.min( maxRecord, ids.length - first );
+            crc.reset( );
+
+            // descriptor
+            Arrays.fill( block, (byte) 0 );
+            DiskCodec.int2bytes( DESCRIPTOR, block, 0 );
+            DiskCodec.int2bytes( sequence, block, 4 );
+            DiskCodec.int2bytes( n, block, 8 );
+            for ( int i = 0; i < n; i++ ) {
+                DiskCodec.int2bytes( ids[first + i], block, 12 + i * 4 );
+            }
+            device.write( start + next, block, 0 );
+            crc.update( block, 0, Disk.blockSize );
+
+            // block images
+            for ( int i = 0; i < n; i++ ) {
+                byte[] image = images.get( ids[first + i] );
+                device.write( start + next + 1 + i, image, 0 );
+                crc.update( image, 0, Disk.blockSize );
+            }
+
+            // commit block, checked against the rest on replay
+            Arrays.fill( block, (byte) 0 );
+            DiskCodec.int2bytes( CHECKED, block, 0 );
+            DiskCodec.int2bytes( sequence, block, 4 );
+            DiskCodec.int2bytes( n, block, 8 );
+            DiskCodec.int2bytes( (int) crc.getValue( ), block, 12 );
+            DiskCodec.int2bytes( ( first + n == ids.length ) ? 1 : 0, block, 16 );
+            device.write( start + next + 1 + n, block, 0 );
+
+            next += n + 2;
+            sequence++;
+            records++;
+        }
+        device.sync( );
+    }
+
+    // writes every committed block to its home location and empties the log
+    private void checkpoint( ) {
+        BlockCache.getCache( ).writeBack( );
+        BlockCache.getCache( ).getDevice( ).sync( );
+        writeHeader( );
+        BlockCache.getCache( ).getDevice( ).sync( );
+        checkpoints++;
+    }
+
+    // writes the header naming the sequence number the log starts with
+    private void writeHeader( ) {
+        byte[] block = new byte[Disk.blockSize];
+        DiskCodec.int2bytes( HEADER, block, 0 );
+        DiskCodec.int2bytes( sequence, block, 4 );
+        BlockCache.getCache( ).getDevice( ).write( start, block, 0 );
+        next = 1;
+    }
+
+    // copies every complete group of records, oldest first, to the home
+    // locations
+    private synchronized int replay( ) {
+        BlockCache cache = BlockCache.getCache( );
+        BlockDevice device = cache.getDevice( );
+        byte[] header = new byte[Disk.blockSize];
+        device.read( start, header, 0 );
+        if ( DiskCodec.bytes2int( header, 0 ) != HEADER ) {
+            // never initialized
+            writeHeader( );
+            device.sync( );
+            return 0;
+        }
+        sequence = DiskCodec.bytes2int( header, 4 );
+
+        int replayed = 0;
+        int at = 1;
+        int groupStart = at;    // first record of the group being read
+        byte[] descriptor = new byte[Disk.blockSize];
+        byte[] commit = new byte[Disk.blockSize];
+        byte[] image = new byte[Disk.blockSize];
+        CRC32 crc = new CRC32( );
+        while ( at + 2 <= size - 1 ) {
+            device.read( start + at, descriptor, 0 );
+            int n = DiskCodec.bytes2int( descriptor, 8 );
+            if ( DiskCodec.bytes2int( descriptor, 0 ) != DESCRIPTOR ||
+                 DiskCodec.bytes2int( descriptor, 4 ) != sequence ||
+                 n <= 0 || n > maxDescriptorBlocks || at + n + 2 > size ) {
+                break;
+            }
+            device.read( start + at + 1 + n, commit, 0 );
+            int magic = DiskCodec.bytes2int( commit, 0 );
+            if ( ( magic != COMMIT && magic != CHECKED ) ||
+                 DiskCodec.bytes2int( commit, 4 ) != sequence ||
+                 DiskCodec.bytes2int( commit, 8 ) != n ) {
+                break; // torn record: never committed
+            }
+            boolean last = true;
+            if ( magic == CHECKED ) {
+                crc.reset( );
+                crc.update( descriptor, 0, Disk.blockSize );
+                for ( int i = 0; i < n; i++ ) {
+                    // checksummed in place when the device has views
+                    ByteBuffer view = device.slice( start + at + 1 + i );
+                    if ( view != null ) {
+                        crc.update( view );
+                    } else {
+                        device.read( start + at + 1 + i, image, 0 );
+                        crc.update( image, 0, Disk.blockSize );
+                    }
+                }
+                if ( (int) crc.getValue( ) != DiskCodec.bytes2int( commit, 12 ) ) {
+                    break; // images not all written before the crash
+                }
+                last = DiskCodec.bytes2int( commit, 16 ) != 0;
+            }
+            at += n + 2;
+            sequence++;
+            if ( !last ) {
+                continue;
+            }
+
+            // the group is complete: apply its records
+            for ( int r = groupStart; r < at; ) {
+                device.read( start + r, descriptor, 0 );
+                int count = DiskCodec.bytes2int( descriptor, 8 );
+                for ( int i = 0; i < count; i++ ) {
+                    int home = DiskCodec.bytes2int( descriptor, 12 + i * 4 );
+                    device.read( start + r + 1 + i, image, 0 );
+                    device.write( home, image, 0 );
+                    cache.invalidate( home );
+                }
+                r += count + 2;
+                replayed++;
+            }
+            groupStart = at;
+        }
+
+        // everything replayed is home now; start an empty log
+        device.sync( );
+        writeHeader( );
+        device.sync( );
+        return replayed;
+    }
+}
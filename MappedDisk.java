@@ -0,0 +1,117 @@
+/** MappedDisk.java
+*
+* BlockDevice over an image file on the host, memory-mapped with
+* FileChannel.map. Blocks are copied straight out of and into the mapping
+* and slice() hands out read-only ByteBuffer views of it, which BlockCache
+* reads uncached blocks through and Journal checksums records through
+* without copying them, so SuperBlock, Inode and Directory run on it
+* without going through the ThreadOS kernel.
+* Written blocks reach the file when the OS pages them out; sync() forces
+* them, and it is only called from SuperBlock.sync().
+*
+* Images larger than one mapping are split into several mappings of
+* blocksPerMap blocks each.
+*
+* @version 10/18/2026
+*/
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+public class MappedDisk implements BlockDevice {
+    private final static int blocksPerMap = ( 1 << 30 ) / Disk.blockSize; // 1GB per mapping
+
+    private RandomAccessFile file;      // the host image file
+    private FileChannel channel;
+    private MappedByteBuffer maps[];    // mappings covering the image
+    private int totalBlocks;            // blocks in the image
+
+    // constructor
+    // opens (creating or growing if needed) an image file of diskSize blocks
+    public MappedDisk( String path, int diskSize ) throws IOException {
+        totalBlocks = diskSize;
+        file = new RandomAccessFile( path, "rw" );
+        long bytes = (long) diskSize * Disk.blockSize;
+        if ( file.length( ) < bytes ) {
+            file.setLength( bytes );
+        }
+        channel = file.getChannel( );
+
+        int numMaps = ( diskSize + blocksPerMap - 1 ) / blocksPerMap;
+        maps = new MappedByteBuffer[numMaps];
+        for ( int i = 0; i < numMaps; i++ ) {
+            long start = (long) i * blocksPerMap * Disk.blockSize;
+            long size = Math.min( (long) blocksPerMap * Disk.blockSize, bytes - start );
+            maps[i] = channel.map( FileChannel.MapMode.READ_WRITE, start, size );
+        }
+    }
+
+    public int blockCount( ) {
+        return totalBlocks;
+    }
+
+    public void read( int blockId, byte buffer[], int offset ) {
+        readRun( blockId, 1, buffer, offset );
+    }
+
+    public void write( int blockId, byte buffer[], int offset ) {
+        writeRun( blockId, 1, buffer, offset );
+    }
+
+    // one bulk copy per mapping the run touches
+    public void readRun( int blockId, int count, byte buffer[], int offset ) {
+        while ( count > 0 ) {
+            int n = Math.min( count, blocksPerMap - blockId % blocksPerMap );
+            ByteBuffer view = view( blockId, n );
+            view.get( buffer, offset, n * Disk.blockSize );
+            blockId += n;
+            count -= n;
+            offset += n * Disk.blockSize;
+        }
+    }
+
+    public void writeRun( int blockId, int count, byte buffer[], int offset ) {
+        while ( count > 0 ) {
+            int n = Math.min( count, blocksPerMap - blockId % blocksPerMap );
+            ByteBuffer view = view( blockId, n );
+            view.put( buffer, offset, n * Disk.blockSize );
+            blockId += n;
+            count -= n;
+            offset += n * Disk.blockSize;
+        }
+    }
+
+    // zero-copy view of one block, read-only so writes keep going through
+    // write() and the cache
+    public ByteBuffer slice( int blockId ) {
+        return view( blockId, 1 ).slice( ).asReadOnlyBuffer( );
+    }
+
+    // forces every mapping to the file
+    public void sync( ) {
+        for ( int i = 0; i < maps.length; i++ ) {
+            maps[i].force( );
+        }
+    }
+
+    // forces the mappings and closes the file (the JVM unmaps them)
+    public void close( ) throws IOException {
+        sync( );
+        channel.close( );
+        file.close( );
+    }
+
+    // a private duplicate of the mapping positioned on count blocks from
+    // blockId, so concurrent transfers do not share a position
+    private ByteBuffer view( int blockId, int count ) {
+        if ( blockId < 0 || blockId + count > totalBlocks ) {
+            throw new IndexOutOfBoundsException( "block " + blockId );
+        }
+        ByteBuffer view = maps[blockId / blocksPerMap].duplicate( );
+        int start = ( blockId % blocksPerMap ) * Disk.blockSize;
+        view.limit( start + count * Disk.blockSize );
+        view.position( start );
+        return view;
+    }
+}
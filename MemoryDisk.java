@@ -0,0 +1,53 @@
+/** MemoryDisk.java
+*
+* BlockDevice kept entirely in a Java byte array. Nothing survives the
+* process; it exists so the file system can be exercised and measured
+* (see bench/Benchmarks.java) without the ThreadOS disk or an image file.
+*
+* @version 10/18/2026
+*/
+
+import java.nio.*;
+
+public class MemoryDisk implements BlockDevice {
+    private int totalBlocks;    // blocks on the disk
+    private byte storage[];     // every block, back to back
+
+    // constructor
+    // creates a zero-filled disk of diskSize blocks
+    public MemoryDisk( int diskSize ) {
+        totalBlocks = diskSize;
+        storage = new byte[diskSize * Disk.blockSize];
+    }
+
+    public int blockCount( ) {
+        return totalBlocks;
+    }
+
+    public void read( int blockId, byte buffer[], int offset ) {
+        readRun( blockId, 1, buffer, offset );
+    }
+
+    public void write( int blockId, byte buffer[], int offset ) {
+        writeRun( blockId, 1, buffer, offset );
+    }
+
+    public void readRun( int blockId, int count, byte buffer[], int offset ) {
+        System.arraycopy( storage, blockId * Disk.blockSize, buffer, offset,
+                          count * Disk.blockSize );
+    }
+
+    public void writeRun( int blockId, int count, byte buffer[], int offset ) {
+        System.arraycopy( buffer, offset, storage, blockId * Disk.blockSize,
+                          count * Disk.blockSize );
+    }
+
+    public ByteBuffer slice( int blockId ) {
+        return ByteBuffer.wrap( storage, blockId * Disk.blockSize, Disk.blockSize )
+            .slice( ).asReadOnlyBuffer( );
+    }
+
+    // memory is as durable as it gets
+    public void sync( ) {
+    }
+}
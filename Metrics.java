@@ -0,0 +1,293 @@
+/** Metrics.java
+*
+* Operation counters and latency histograms for the file system. Each
+* instrumented operation calls start() before it and record() after it;
+* record() adds the elapsed time to the operation's histogram with a few
+* atomic increments, so recording takes no lock and allocates nothing and
+* can be left on. setEnabled(false) turns both calls into a flag test.
+*
+* The histograms are log-linear like HdrHistogram's: values below 32 ns
+* have a bucket each, and every power of two above is split into 16
+* buckets, so any recorded value is known to within 1/16 (about 6%).
+*
+* Operations slower than the JFR threshold are also committed as
+* FileSystemOperation events when a flight recording with them enabled is
+* running (jdk.jfr); only then is an event object created.
+*
+* snapshot() copies one operation's histogram for percentiles, and
+* export() renders every operation as one line of text.
+*
+* @version 10/18/2026
+*/
+
+import java.nio.*;
+import java.util.concurrent.atomic.*;
+import jdk.jfr.*;
+
+public class Metrics {
+    // instrumented operations
+    public final static int FALLOC = 0;         // FileTable.falloc
+    public final static int FFREE = 1;          // FileTable.ffree
+    public final static int NAMEI = 2;          // Directory.namei
+    public final static int IALLOC = 3;         // Directory.ialloc
+    public final static int TO_DISK = 4;        // Inode.toDisk
+    public final static int FIND_TARGET = 5;    // Inode.findTargetBlock
+    public final static int GET_FREE = 6;       // SuperBlock.getFreeBlock(s)
+    public final static int RETURN_BLOCK = 7;   // SuperBlock.returnBlock(s)
+    public final static int RAW_READ = 8;       // device reads
+    public final static int RAW_WRITE = 9;      // device writes
+    public final static int DIRECTORY_WAIT = 10; // waiting for the directory in falloc
+    public final static int INODE_LOCK_WAIT = 11; // waiting for an Inode's lock
+    public final static int operations = 12;
+
+    private final static String names[] = {
+        "falloc", "ffree", "namei", "ialloc", "toDisk", "findTargetBlock",
+        "getFreeBlock", "returnBlock", "rawRead", "rawWrite",
+        "directoryWait", "inodeLockWait"
+    };
+
+    private final static int linearBuckets = 32;   // one bucket per ns below this
+    private final static int subBuckets = 16;      // buckets per power of two
+    private final static int subBits = 4;          // log2(subBuckets)
+    private final static int linearBits = 5;       // log2(linearBuckets)
+    final static int buckets = linearBuckets + ( 63 - linearBits ) * subBuckets;
+
+    private static volatile boolean enabled = true;
+    private static volatile long jfrThreshold = 1000000; // ns; slower ops become events
+
+    private static final Histogram histograms[] = new Histogram[operations];
+    static {
+        for ( int i = 0; i < operations; i++ ) {
+            histograms[i] = new Histogram( );
+        }
+    }
+
+    private Metrics( ) { }
+
+    // counts and latencies of one operation
+    private static final class Histogram {
+        final AtomicLongArray counts = new AtomicLongArray( buckets );
+        final AtomicLong count = new AtomicLong( );
+        final AtomicLong total = new AtomicLong( );   // ns
+        final AtomicLong max = new AtomicLong( );     // ns
+
+        void record( long nanos ) {
+            counts.incrementAndGet( bucketOf( nanos ) );
+            count.incrementAndGet( );
+            total.addAndGet( nanos );
+            long m;
+            while ( nanos > ( m = max.get( ) ) && !max.compareAndSet( m, nanos ) ) {
+                // another thread raised it; try again
+            }
+        }
+
+        void reset( ) {
+            for ( int i = 0; i < buckets; i++ ) {
+                counts.set( i, 0 );
+            }
+            count.set( 0 );
+            total.set( 0 );
+            max.set( 0 );
+        }
+    }
+
+    // JFR event for an operation slower than the threshold
+    @Name( "FileSystem.Operation" )
+    @Label( "File System Operation" )
+    @Category( "File System" )
+    static class FileSystemOperation extends Event {
+        @Label( "Operation" )
+        String operation;
+
+        @Label( "Latency" )
+        @Timespan( Timespan.NANOSECONDS )
+        long latency;
+    }
+
+    private static final EventType eventType =
+        EventType.getEventType( FileSystemOperation.class );
+
+    // turns recording on or off
+    public static void setEnabled( boolean on ) {
+        enabled = on;
+    }
+
+    // operations taking at least nanos become JFR events
+    public static void setJfrThreshold( long nanos ) {
+        jfrThreshold = nanos;
+    }
+
+    // returns the time an operation starts (0 when disabled)
+    public static long start( ) {
+        return enabled ? System.nanoTime( ) : 0;
+    }
+
+    // records an operation started at start
+    public static void record( int operation, long start ) {
+        if ( !enabled || start == 0 ) {
+            return;
+        }
+        long nanos = System.nanoTime( ) - start;
+        if ( nanos < 0 ) {
+            nanos = 0;
+        }
+        histograms[operation].record( nanos );
+        if ( nanos >= jfrThreshold && eventType.isEnabled( ) ) {
+            FileSystemOperation event = new FileSystemOperation( );
+            event.operation = names[operation];
+            event.latency = nanos;
+            event.commit( );
+        }
+    }
+
+    // histogram bucket of a value in ns
+    static int bucketOf( long nanos ) {
+        if ( nanos < linearBuckets ) {
+            return (int) nanos;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros( nanos ); // >= linearBits
+        int sub = (int) ( nanos >>> ( exponent - subBits ) ) & ( subBuckets - 1 );
+        return linearBuckets + ( exponent - linearBits ) * subBuckets + sub;
+    }
+
+    // smallest value in ns that falls in a bucket
+    static long lowestOf( int bucket ) {
+        if ( bucket < linearBuckets ) {
+            return bucket;
+        }
+        int exponent = ( bucket - linearBuckets ) / subBuckets + linearBits;
+        long sub = ( bucket - linearBuckets ) % subBuckets;
+        return ( subBuckets + sub ) << ( exponent - subBits );
+    }
+
+    // a copy of one operation's histogram
+    public static class Snapshot {
+        public final String name;
+        public final long count;
+        public final long totalNanos;
+        public final long maxNanos;
+        private final long counts[];
+
+        Snapshot( String name, long count, long totalNanos, long maxNanos, long counts[] ) {
+            this.name = name;
+            this.count = count;
+            this.totalNanos = totalNanos;
+            this.maxNanos = maxNanos;
+            this.counts = counts;
+        }
+
+        public double meanNanos( ) {
+            return ( count == 0 ) ? 0 : (double) totalNanos / count;
+        }
+
+        // latency in ns below which percentile (0-100) of the operations fall
+        public long percentile( double percentile ) {
+            long recorded = 0;
+            for ( int i = 0; i < counts.length; i++ ) {
+                recorded += counts[i];
+            }
+            if ( recorded == 0 ) {
+                return 0;
+            }
+            long rank = (long) Math.ceil( recorded * percentile / 100.0 );
+            long seen = 0;
+            for ( int i = 0; i < counts.length; i++ ) {
+                seen += counts[i];
+                if ( seen >= rank && counts[i] > 0 ) {
+                    // the bucket's highest value
+                    return ( i + 1 < buckets ) ? 
+                        Math.min( lowestOf( i + 1 ) - 1, maxNanos ) : maxNanos;
+                }
+            }
+            return maxNanos;
+        }
+
+        public String toString( ) {
+            return String.format( "%-16s count=%d mean=%.0fns p50=%dns p90=%dns " +
+                                  "p99=%dns p99.9=%dns max=%dns",
+                                  name, count, meanNanos( ), percentile( 50 ),
+                                  percentile( 90 ), percentile( 99 ),
+                                  percentile( 99.9 ), maxNanos );
+        }
+    }
+
+    // copies the counters of one operation. Recording may go on meanwhile,
+    // so the copy is consistent only to within the operations in flight
+    public static Snapshot snapshot( int operation ) {
+        Histogram h = histograms[operation];
+        long counts[] = new long[buckets];
+        for ( int i = 0; i < buckets; i++ ) {
+            counts[i] = h.counts.get( i );
+        }
+        return new Snapshot( names[operation], h.count.get( ), h.total.get( ),
+                             h.max.get( ), counts );
+    }
+
+    // one line per operation that has been recorded
+    public static String export( ) {
+        StringBuilder out = new StringBuilder( );
+        for ( int i = 0; i < operations; i++ ) {
+            Snapshot s = snapshot( i );
+            if ( s.count > 0 ) {
+                out.append( s ).append( '\n' );
+            }
+        }
+        return out.toString( );
+    }
+
+    // clears every counter
+    public static void reset( ) {
+        for ( int i = 0; i < operations; i++ ) {
+            histograms[i].reset( );
+        }
+    }
+
+    // wraps a device so its transfers are recorded as RAW_READ/RAW_WRITE
+    public static BlockDevice timed( BlockDevice disk ) {
+        return ( disk instanceof TimedDevice ) ? disk : new TimedDevice( disk );
+    }
+
+    private static final class TimedDevice implements BlockDevice {
+        private final BlockDevice disk;
+
+        TimedDevice( BlockDevice disk ) {
+            this.disk = disk;
+        }
+
+        public int blockCount( ) {
+            return disk.blockCount( );
+        }
+
+        public void read( int blockId, byte buffer[], int offset ) {
+            long start = start( );
+            disk.read( blockId, buffer, offset );
+            record( RAW_READ, start );
+        }
+
+        public void write( int blockId, byte buffer[], int offset ) {
+            long start = start( );
+            disk.write( blockId, buffer, offset );
+            record( RAW_WRITE, start );
+        }
+
+        public void readRun( int blockId, int count, byte buffer[], int offset ) {
+            long start = start( );
+            disk.readRun( blockId, count, buffer, offset );
+            record( RAW_READ, start );
+        }
+
+        public void writeRun( int blockId, int count, byte buffer[], int offset ) {
+            long start = start( );
+            disk.writeRun( blockId, count, buffer, offset );
+            record( RAW_WRITE, start );
+        }
+
+        public ByteBuffer slice( int blockId ) {
+            return disk.slice( blockId );
+        }
+
+        public void sync( ) {
+            disk.sync( );
+        }
+    }
+}
@@ -0,0 +1,119 @@
+/** Reclaimer.java
+*
+* Frees the blocks of deleted files in the background, so deleting a large
+* file returns as soon as its Inode is written. delete() moves the file's
+* block map to an orphan Inode (Inode.detachBlocks), writes the now empty
+* Inode and queues the orphan; a daemon thread later frees its blocks with
+* Inode.releaseBlocks, which returns them to the bitmap in one call.
+*
+* Until an orphan is reclaimed its blocks stay allocated, so a crash in
+* between only loses free space, never data. drain() waits for the queue to
+* empty and should be called before the disk is synced for unmounting.
+*
+* @version 10/18/2026
+*/
+
+import java.util.concurrent.*;
+
+public class Reclaimer implements Runnable {
+    private SuperBlock superblock;
+    private final LinkedBlockingQueue<Inode> orphans = new LinkedBlockingQueue<Inode>( );
+    private Thread worker;
+    private int busy;               // orphans taken but not yet freed
+
+    // statistics
+    private volatile long deleted;
+    private volatile long reclaimed;
+    private volatile long blocksFreed;
+
+    // constructor
+    public Reclaimer( SuperBlock superBlock ) {
+        superblock = superBlock;
+    }
+
+    // empties inode (numbered iNumber), writes it and queues its blocks to
+    // be freed. Returns immediately; the caller may reuse the Inode at once
+    public void delete( Inode inode, short iNumber ) {
+        Inode orphan = inode.detachBlocks( );
+        inode.toDisk( iNumber );
+        synchronized ( this ) {
+            deleted++;
+        }
+        start( );
+        orphans.add( orphan );
+    }
+
+    // frees the blocks of an orphan Inode right away
+    private void reclaim( Inode orphan ) {
+        int freed = orphan.freeAll( superblock );
+        synchronized ( this ) {
+            blocksFreed += freed;
+            reclaimed++;
+        }
+    }
+
+    // starts the daemon thread on the first delete
+    private synchronized void start( ) {
+        if ( worker != null ) {
+            return;
+        }
+        worker = new Thread( this, "Reclaimer" );
+        worker.setDaemon( true );
+        worker.start( );
+    }
+
+    public void run( ) {
+        while ( true ) {
+            Inode orphan;
+            try {
+                orphan = orphans.take( );
+            } catch ( InterruptedException e ) {
+                return;
+            }
+            synchronized ( this ) {
+                busy++;
+            }
+            try {
+                reclaim( orphan );
+            } finally {
+                synchronized ( this ) {
+                    busy--;
+                    notifyAll( );
+                }
+            }
+        }
+    }
+
+    // frees everything still queued on the calling thread and waits for
+    // the orphan the daemon may be working on
+    public void drain( ) {
+        Inode orphan;
+        while ( ( orphan = orphans.poll( ) ) != null ) {
+            reclaim( orphan );
+        }
+        synchronized ( this ) {
+            while ( busy > 0 ) {
+                try {
+                    wait( );
+                } catch ( InterruptedException e ) {
+                    Thread.currentThread( ).interrupt( );
+                    return;
+                }
+            }
+        }
+    }
+
+    // orphans waiting to be freed
+    public int pending( ) {
+        return orphans.size( );
+    }
+
+    public long getBlocksFreed( ) {
+        return blocksFreed;
+    }
+
+    public String toString( ) {
+        return "Reclaimer: deleted=" + deleted + " reclaimed=" + reclaimed +
+            " pending=" + pending( ) + " blocksFreed=" + blocksFreed;
+    }
+}
@@ -0,0 +1,123 @@
+/** Snapshots.java
+*
+* File clones and whole file system snapshots built on Inode.cloneTo. A
+* clone is a new file sharing every data block of the original; the two
+* part only where one of them is written later, one block at a time. A
+* snapshot named name clones every file below "/" into
+* snapshotRoot/name, recreating the directories, so it costs index
+* blocks and directory entries but no data copies.
+*
+* Each file is cloned atomically (the original's lock is held while its
+* map is copied), but a snapshot does not stop writers, so files written
+* during the snapshot are captured at the moment each one is cloned.
+*
+* @version 10/18/2026
+*/
+
+public class Snapshots {
+    public final static String snapshotRoot = "/.snapshots";
+
+    private DirectoryTree tree;
+    private SuperBlock superblock;
+
+    // constructor
+    public Snapshots( DirectoryTree namespace, SuperBlock superBlock ) {
+        tree = namespace;
+        superblock = superBlock;
+    }
+
+    // creates the file clonePath as a clone of the file path.
+    // Returns the number of data blocks shared, -1 if path is not a file,
+    // clonePath cannot be created or the disk cannot share blocks
+    public int clone( String path, String clonePath ) {
+        if ( !superblock.supportsClones( ) ) {
+            return -1;
+        }
+        short source = tree.namei( path );
+        if ( source <= 0 || tree.isDirectory( source ) ) {
+            return -1;
+        }
+        // the entry and the empty Inode commit together
+        short copy;
+        Inode target;
+        Journal.begin( );
+        try {
+            copy = tree.ialloc( clonePath );
+            if ( copy < 0 ) {
+                return -1;
+            }
+            target = FileTable.inodeTable.create( copy );
+        } finally {
+            Journal.end( );
+        }
+        Inode original = FileTable.inodeTable.acquire( source );
+        int shared = ( target == null || original == null ) ? -1 :
+            original.cloneTo( superblock, target );
+        if ( original != null ) {
+            FileTable.inodeTable.release( source );
+        }
+        if ( target != null ) {
+            FileTable.inodeTable.release( copy );
+        }
+        if ( shared < 0 ) {
+            tree.unlink( clonePath );
+        }
+        return shared;
+    }
+
+    // clones every file and directory into snapshotRoot/name.
+    // Returns the number of files cloned, -1 if the snapshot exists or
+    // cannot be created
+    public int take( String name ) {
+        if ( !superblock.supportsClones( ) ) {
+            return -1;
+        }
+        if ( tree.namei( snapshotRoot ) < 0 ) {
+            tree.mkdir( snapshotRoot );
+        }
+        String destination = snapshotRoot + "/" + name;
+        if ( !tree.mkdir( destination ) ) {
+            return -1;
+        }
+        return copyDirectory( "/", destination );
+    }
+
+    // returns the names of the snapshots taken
+    public String[] list( ) {
+        String[] names = tree.readdir( snapshotRoot );
+        return ( names == null ) ? new String[0] : names;
+    }
+
+    // clones the contents of directory from into the existing directory to.
+    // Returns the number of files cloned
+    private int copyDirectory( String from, String to ) {
+        String[] names = tree.readdir( from );
+        if ( names == null ) {
+            return 0;
+        }
+        int files = 0;
+        for ( String name : names ) {
+            String source = join( from, name );
+            if ( source.equalsIgnoreCase( snapshotRoot ) ) {
+                continue; // not the snapshots themselves
+            }
+            String destination = join( to, name );
+            short iNumber = tree.namei( source );
+            if ( iNumber < 0 ) {
+                continue; // removed meanwhile
+            }
+            if ( tree.isDirectory( iNumber ) ) {
+                if ( tree.mkdir( destination ) ) {
+                    files += copyDirectory( source, destination );
+                }
+            } else if ( clone( source, destination ) >= 0 ) {
+                files++;
+            }
+        }
+        return files;
+    }
+
+    private static String join( String directory, String name ) {
+        return directory.equals( "/" ) ? "/" + name : directory + "/" + name;
+    }
+}
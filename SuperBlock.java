@@ -1,132 +1,943 @@
-
 /**
 * class SuperBlock
-* 
-* Superblock is used to describe 
-* (1) the number of disk blocks, 
-* (2) the number of inodes, 
-* (3) the block number of the head block of the free list.
 *
+* Superblock is used to describe
+* (1) the number of disk blocks,
+* (2) the number of inodes,
+* (3) the next-fit cursor into the free-block bitmap,
+* (4) where the free-block bitmap is stored,
+* (5) the on-disk format version,
+* (6) where the metadata journal is stored.
+*
+* Version 0 images (written before the version field existed) keep giving
+* new files the original 11 direct + 1 indirect inode layout. Disks
+* formatted since version 2 give new files the multi-level layout
+* with double and triple indirect blocks. Each inode records its own
+* layout in its flag, so both kinds can be read from either version.
+* Version 3 disks store the directory as fixed-size records (see
+* Directory); older ones keep the original directory layout.
+*
+* From version 4 the bitmap is split in block groups, one per bitmap
+* block, and format only writes the groups holding reserved blocks. The
+* other groups are marked uninitialized in the superblock (one bit per
+* group from byte 32 of block 0); they are known to be all free, are
+* never read at mount, and are written the first time a block in them is
+* allocated. Formatting a disk of any size writes a handful of blocks.
+*
+* Version 5 disks can keep up to Inode.inlineCapacity bytes of a new
+* file's data in its inode (Inode.FORMAT_INLINE), giving it blocks of the
+* usual layout only when it grows past that. It is opt-in, recorded in the
+* feature flags of block 0 (FEATURE_INLINE, set with setInlineData): an
+* inline file has no blocks, so a reader that maps a file with
+* Inode.findTargetBlock and reads the blocks itself (the ThreadOS
+* FileSystem's read path) would find it empty. Enable it only where every
+* reader goes through Inode.read.
+*
+* Version 6 disks keep a reference count for every block (one byte each,
+* in the refStart region after the journal) so files can share blocks
+* (Inode.cloneTo). The count is the number of owners beyond the first; a
+* shared block goes back to the bitmap only when its last owner frees it.
+* Each count change is made in the cached count block inside the journal
+* transaction that adds or removes the pointer. Older disks have no
+* region and cannot clone.
+*
+* On version 7 disks the count blocks are initialized lazily, like the
+* bitmap groups: format writes none of them, an uninitialized one (its bit
+* clear from refMapOffset of block 0) holds all zeros and is not read at
+* mount, and it is written the first time a count in it changes.
+*
+* Block numbers are shorts on disk, so a device larger than maxBlocks
+* blocks is formatted to its first maxBlocks blocks.
+*
+* Disk layout:
+*   block 0                       superblock
+*   blocks 1 .. inodeBlocks()     inodes, 16 per block (up to Inode.maxInodes)
+*   bitmapStart ..                free-block bitmap, one bit per disk block
+*                                 (1 = allocated)
+*   journalStart ..               metadata journal (see Journal)
+*   refStart ..                   block reference counts (version 6+)
+*   the rest                      data and index blocks
+*
+* Images formatted before the journal existed have journalBlocks 0 and are
+* used without journaling. Otherwise any committed journal records are
+* replayed before the rest of the superblock is trusted.
+*
+* A freshly formatted disk keeps the bitmap right after the inodes; a
+* converted image keeps it wherever a free run was found. Either way the
+* bitmap blocks are marked allocated in the bitmap itself.
+*
+* For allocation the data area (after the journal) is also split into
+* block groups of groupBlocks() blocks. Inodes are spread evenly over the
+* groups, and a file's first block is looked for in its inode's group;
+* later blocks are looked for right after the file's previous block.
+*
+* The bitmap is kept in memory, so allocating or freeing a block needs no
+* disk read. Every bit that changes is also flipped in the cached bitmap
+* block, inside the calling thread's journal transaction. Inode allocates
+* inside the transaction that writes the pointers to the new blocks and the
+* Inode holding them, so the two commit together; other callers of
+* getFreeBlock must do the same (Journal.begin/end around the allocation
+* and Inode.registerTargetBlock), or a crash in between leaks the block.
+* Blocks reserved ahead of an appending writer are allocated in memory
+* only until they are used, and are free again after a crash. A freed block's bit
+* is cleared in the transaction that frees it, but the block can only be
+* allocated again once that transaction has committed (Journal.afterCommit):
+* until then a crash would recover the old pointers to it. Images written
+* with the old linked free list are converted the first time they are
+* mounted; one without a free run long enough for the bitmap is refused,
+* never formatted.
 *
 * @author Sindhuri Bolisetty
 * @version 12/6/2013
-* 
+*
 */
 
 import java.util.*;
 
 class SuperBlock {
-    private static final int defaultInodeBlocks = 32;
+    private static final int defaultInodes = 32;	// least inodes of a default format
     private static final int inodeSize = 32; // bytes
+    private static final int bitsPerBlock = Disk.blockSize * 8;
+    private static final int currentVersion = 7; // version written by format
+    private static final int groupMapOffset = 32; // group bits in block 0
+    private static final int refOffset = Disk.blockSize - 8; // refStart, refBlocks in block 0
+    // block pointers, extents and index entries are shorts
+    public static final int maxBlocks = Short.MAX_VALUE;
+    // count block bits in block 0, one per count block of a maxBlocks disk
+    private static final int refMapOffset = refOffset - (maxBlocks / Disk.blockSize + 8) / 8;
+    // feature flags in block 0, just below the count block bits
+    private static final int featureOffset = refMapOffset - 4;
+    private static final int maxLazyGroups = (featureOffset - groupMapOffset) * 8;
+    public static final int FEATURE_INLINE = 1;	// new files start inline (version 5+)
     public int totalBlocks;		// total disk blocks
     public int totalInodes;		// total number inodes
-    public int freeList;		// the number of the first free block on freelist
-    
+    public int freeList;		// next-fit cursor: where the next free block search starts
+    public int bitmapStart;		// first block of the free-block bitmap
+    public int bitmapBlocks;	// number of bitmap blocks
+    public int version;			// on-disk format version
+    public int features;		// FEATURE_ flags the disk was set up with
+    public int journalStart;	// first block of the journal
+    public int journalBlocks;	// number of journal blocks, 0 if none
+    public int refStart;		// first block of the reference counts
+    public int refBlocks;		// number of reference count blocks, 0 if none
+
+    private byte bitmap[];			// in-memory copy of the free-block bitmap
+    private boolean bitmapDirty[];	// bitmap blocks changed since the last sync
+    private boolean groupReady[];	// bitmap block initialized on disk
+    private boolean groupPending[];	// initialized by a transaction not yet committed
+    private int freeBlocks;			// number of clear bits
+    private boolean journaled;		// bit changes go to the cached bitmap blocks
+    private byte refs[];			// extra owners of each block, null if none
+    private boolean refReady[];		// reference count block initialized on disk
+    private boolean refPending[];	// initialized by a transaction not yet committed
+    // blocks with dropped references whose transactions have not committed,
+    // with their number, and those of them to free once they have
+    private HashMap<Integer, Integer> dropping = new HashMap<Integer, Integer>();
+    private HashSet<Integer> freeOnceDropped = new HashSet<Integer>();
+
     // constructor
     // constructs superblock and formats disk to specified size
     public SuperBlock(int diskSize) {
     	//read the superblock from disk
-        byte[] superBlock = new byte[Disk.blockSize]; 
-        SysLib.rawread(0, superBlock);
+        byte[] superBlock = new byte[Disk.blockSize];
+        BlockCache.read(0, superBlock);
+        
+        // only the first maxBlocks blocks of a larger device are used; an
+        // image formatted past that holds pointers that wrapped negative
+        if (diskSize > maxBlocks) {
+        	if (DiskCodec.bytes2int(superBlock, 0) == diskSize) {
+        		SysLib.cout("disk of " + diskSize + " blocks cannot be mounted, " +
+        				"at most " + maxBlocks + " are addressable\n");
+        		throw new IllegalStateException("disk larger than " + maxBlocks + " blocks");
+        	}
+        	diskSize = maxBlocks;
+        }
+        
+        // replay metadata updates committed before a crash; they may
+        // include block 0 itself, so read it again afterwards
+        journalStart = DiskCodec.bytes2int(superBlock, 24);
+        journalBlocks = DiskCodec.bytes2int(superBlock, 28);
+        if (DiskCodec.bytes2int(superBlock, 0) == diskSize && journalBlocks > 0 &&
+        		journalStart > 0 && journalStart + journalBlocks <= diskSize) {
+        	Journal.setup(journalStart, journalBlocks);
+        	if (Journal.recover() > 0) {
+        		BlockCache.read(0, superBlock);
+        	}
+        } else {
+        	Journal.disable();
+        	journalStart = 0;
+        	journalBlocks = 0;
+        }
+        
         // convert intialization variables to ints
-        totalBlocks = SysLib.bytes2int(superBlock, 0);
+        totalBlocks = DiskCodec.bytes2int(superBlock, 0);
         SysLib.cout("totalBlocks in SuperBlock() now " + totalBlocks + "\n");
-        totalInodes = SysLib.bytes2int(superBlock, 4);
+        totalInodes = DiskCodec.bytes2int(superBlock, 4);
         SysLib.cout("totalInodes in SuperBlock() now " + totalInodes + "\n");
-        freeList = SysLib.bytes2int(superBlock, 8);
+        freeList = DiskCodec.bytes2int(superBlock, 8);
+        bitmapStart = DiskCodec.bytes2int(superBlock, 12);
+        bitmapBlocks = DiskCodec.bytes2int(superBlock, 16);
+        version = DiskCodec.bytes2int(superBlock, 20);
+        features = (version >= 5) ? DiskCodec.bytes2int(superBlock, featureOffset) : 0;
+        if (version >= 6) {
+        	refStart = DiskCodec.bytes2int(superBlock, refOffset);
+        	refBlocks = DiskCodec.bytes2int(superBlock, refOffset + 4);
+        }
+        // images formatted with one inode more than an inumber can name
+        if (totalInodes == Inode.maxInodes + 1) {
+        	totalInodes = Inode.maxInodes;
+        }
         // disk contents are valid
-        if (totalBlocks == diskSize && totalInodes > 0 && freeList >= 2) {
+        if (totalBlocks == diskSize && totalInodes > 0 && 
+        		totalInodes <= Inode.maxInodes && freeList >= 2) {
+        	Inode.setInodeCount(totalInodes);
+        	if (bitmapBlocks > 0) {
+        		readGroupMap(superBlock);
+        		loadBitmap();
+        		loadRefs(superBlock);
+        		journaled = true;
+        	} else {
+        		// image still uses the linked free list
+        		convertFreeList();
+        	}
+        	selectInodeFormat();
             return;
         } else {
 	    // need to format disk
 	    totalBlocks = diskSize;
-	    SysLib.cout("default format ( " + defaultInodeBlocks + " )\n");
-	    format(defaultInodeBlocks);
+	    SysLib.cout("default format ( " + defaultInodes() + " )\n");
+	    format(defaultInodes());
         }
     }
-    
+
     // default format
     public void format(){
-    	format(defaultInodeBlocks);
+    	format(defaultInodes());
     }
     
-    // formats the superblock to specified number of inodes
-    public void format(int numInodes){
-    	// set inodes
-    	totalInodes = numInodes;
+    // one inode per 16 blocks, at least defaultInodes
+    private int defaultInodes(){
+    	return Math.min(Math.max(totalBlocks / 16, defaultInodes), Inode.maxInodes);
+    }
+
+    // formats the superblock to specified number of inodes.
+    // Only the superblock, the bitmap blocks holding reserved blocks, the
+    // journal header and the root inode are written
+    public synchronized void format(int numInodes){
+    	totalBlocks = Math.min(totalBlocks, maxBlocks);
+    	journaled = false;
+    	// set inodes; the inode blocks may take at most half the disk
+    	int fit = (totalBlocks / 2) * Inode.inodesPerBlock;
+    	totalInodes = Math.max(1, Math.min(numInodes, Math.min(fit, Inode.maxInodes)));
+    	Inode.setInodeCount(totalInodes);
+    	version = currentVersion;
+    	features = 0;
+    	selectInodeFormat();
+
+    	// bitmap goes right after the inodes
+    	bitmapStart = inodeBlocks() + 1;
+    	bitmapBlocks = (totalBlocks + bitsPerBlock - 1) / bitsPerBlock;
+    	bitmap = new byte[bitmapBlocks * Disk.blockSize];
+    	bitmapDirty = new boolean[bitmapBlocks];
+    	groupReady = new boolean[bitmapBlocks];
+    	groupPending = new boolean[bitmapBlocks];
+    	freeBlocks = totalBlocks;
     	
-    	// set the free list and sync()
-    	freeList = (numInodes / 16) + 1;
-    	sync();
+    	// every group starts uninitialized (all free, nothing on disk)
+    	// unless the bitmap is too large to keep the group bits in block 0
+    	if(!lazyGroups()){
+    		Arrays.fill(groupReady, true);
+    		Arrays.fill(bitmapDirty, true);
+    	}
+
+    	// journal goes right after the bitmap
+    	journalStart = bitmapStart + bitmapBlocks;
+    	journalBlocks = Math.min(Math.max(totalBlocks / 32, 16), 1024);
+    	
+    	// then the reference counts, all zero and none initialized
+    	refStart = journalStart + journalBlocks;
+    	refBlocks = (totalBlocks + Disk.blockSize - 1) / Disk.blockSize;
+    	refs = new byte[refBlocks * Disk.blockSize];
+    	refReady = new boolean[refBlocks];
+    	refPending = new boolean[refBlocks];
+    	dropping.clear();
+    	freeOnceDropped.clear();
+
+    	// superblock, inode, bitmap, journal and reference count blocks are
+    	// never free; only the groups holding them get initialized
+    	for(int i = 0; i < refStart + refBlocks; i++){
+    		setBit(i);
+    	}
+
+    	// the search for free blocks starts after them
+    	freeList = dataStart();
+    	writeSuperBlock();
+    	writeBitmap();
+    	BlockCache.flush();
+    	journaled = true;
     	
-    	// set blocks to point to next free block and write to disk
-    	byte[] newBlock = new byte[Disk.blockSize];
-    	for(int i = freeList; i < totalBlocks - 1; i++){
-    		SysLib.int2bytes(i + 1, newBlock, 0);
-    		SysLib.rawwrite(i, newBlock);
-    	}
-    	// set last block to point invalid and write to disk
-    	SysLib.int2bytes(-1, newBlock, 0);
-    	SysLib.rawwrite(totalBlocks - 1, newBlock);
+    	// start with an empty journal
+    	Journal.setup(journalStart, journalBlocks);
+    	Journal.reset();
     	
+    	// "/" exists from the start: its inode must not read as the zeros
+    	// of a never written inode block, which would map block 0
+    	new Inode().toDisk(0);
     }
-    
+
     // create an Inode vector of capacity totalInodes
-    // To be used to hold all Inodes (in file system and file table)
+    // To be used to hold all Inodes (in file system and file table).
+    // The slots start out empty: InodeTable reads each Inode from disk
+    // the first time it is used, so mounting reads no inode blocks
     public Inode[] getInodes(){
-    	Inode[] nodes = new Inode[totalInodes];
-    	
-    	for(short i = 0; i < totalInodes; i++){
-    		nodes[i] = new Inode(i);
-    		
-    	}
-    	
-    	return nodes;
+    	return new Inode[totalInodes];
     }
 
     // Write back superblock (totalBlocks, inodeBlocks, and freeList) to disk
-    // to maintain integrity of superblock
+    // to maintain integrity of superblock. Dirty in-core inodes are written
+    // back first, then the superblock fields (through the journal), then
+    // every dirty block held in the block cache is flushed. The bitmap and
+    // reference count blocks are already in the cache: each change was
+    // made there as it happened.
 	public void sync(){
-		// create a buffer, convert variables to bytes, and write to disk
-	    byte[] superBlock = new byte[Disk.blockSize];
-	    SysLib.int2bytes(totalBlocks, superBlock, 0);
-	    SysLib.int2bytes(totalInodes, superBlock, 4);
-	    SysLib.int2bytes(freeList, superBlock, 8);
-	    SysLib.rawwrite(0, superBlock);
+		FileTable.sync();
+		Journal.begin();
+		try {
+			synchronized(this){
+				writeFields();
+			}
+		} finally {
+			Journal.end();
+		}
+	    BlockCache.flush();
+	}
+	
+	// writes the fields at the start of block 0 (not the group bits, which
+	// are only ever set, each in the transaction that initializes its group)
+	private void writeFields(){
+		byte[] fields = new byte[groupMapOffset];
+	    DiskCodec.int2bytes(totalBlocks, fields, 0);
+	    DiskCodec.int2bytes(totalInodes, fields, 4);
+	    DiskCodec.int2bytes(freeList, fields, 8);
+	    DiskCodec.int2bytes(bitmapStart, fields, 12);
+	    DiskCodec.int2bytes(bitmapBlocks, fields, 16);
+	    DiskCodec.int2bytes(version, fields, 20);
+	    DiskCodec.int2bytes(journalStart, fields, 24);
+	    DiskCodec.int2bytes(journalBlocks, fields, 28);
+	    BlockCache.getCache().patch(0, 0, fields, 0, groupMapOffset);
+	}
+
+	// convert the superblock variables to bytes and write them to block 0
+	private void writeSuperBlock(){
+		// convert variables to bytes in the thread's block buffer and
+		// write to disk
+	    byte[] superBlock = DiskCodec.block();
+	    Arrays.fill(superBlock, (byte) 0);
+	    DiskCodec.int2bytes(totalBlocks, superBlock, 0);
+	    DiskCodec.int2bytes(totalInodes, superBlock, 4);
+	    DiskCodec.int2bytes(freeList, superBlock, 8);
+	    DiskCodec.int2bytes(bitmapStart, superBlock, 12);
+	    DiskCodec.int2bytes(bitmapBlocks, superBlock, 16);
+	    DiskCodec.int2bytes(version, superBlock, 20);
+	    DiskCodec.int2bytes(journalStart, superBlock, 24);
+	    DiskCodec.int2bytes(journalBlocks, superBlock, 28);
+	    DiskCodec.int2bytes(features, superBlock, featureOffset);
+	    DiskCodec.int2bytes(refStart, superBlock, refOffset);
+	    DiskCodec.int2bytes(refBlocks, superBlock, refOffset + 4);
+	    if(lazyGroups()){
+	    	for(int i = 0; i < bitmapBlocks; i++){
+	    		if(groupReady[i]){
+	    			superBlock[groupMapOffset + (i >> 3)] |= (byte) (1 << (i & 7));
+	    		}
+	    	}
+	    }
+	    if(version >= 7 && refReady != null){
+	    	for(int i = 0; i < refBlocks; i++){
+	    		if(refReady[i]){
+	    			superBlock[refMapOffset + (i >> 3)] |= (byte) (1 << (i & 7));
+	    		}
+	    	}
+	    }
+	    BlockCache.write(0, superBlock);
+	}
+	
+	// true if bitmap groups are initialized lazily on this disk
+	private boolean lazyGroups(){
+		return version >= 4 && bitmapBlocks <= maxLazyGroups;
+	}
+	
+	// reads which bitmap groups are initialized from block 0; on older
+	// disks every group is
+	private void readGroupMap(byte[] superBlock){
+		groupReady = new boolean[bitmapBlocks];
+		groupPending = new boolean[bitmapBlocks];
+		for(int i = 0; i < bitmapBlocks; i++){
+			groupReady[i] = !lazyGroups() || 
+				(superBlock[groupMapOffset + (i >> 3)] & (1 << (i & 7))) != 0;
+		}
+	}
+
+	// new files and the directory on old images keep the original layouts
+	private void selectInodeFormat(){
+		Inode.setNewFormat(version >= 2 ? Inode.FORMAT_INDIRECT3 : Inode.FORMAT_DIRECT);
+		Directory.setRecordLayout(version >= 3);
+		Inode.setInlineData(version >= 5 && (features & FEATURE_INLINE) != 0);
+	}
+
+	// turns inline data for new files on or off (FEATURE_INLINE) and records
+	// it on the disk. Files already inline stay so until they grow.
+	// Returns false if the disk's version cannot hold inline files
+	public boolean setInlineData(boolean enabled){
+		if(version < 5){
+			return false;
+		}
+		Journal.begin();
+		try {
+			synchronized(this){
+				features = enabled ? (features | FEATURE_INLINE) : (features & ~FEATURE_INLINE);
+				writeSuperBlock();
+				selectInodeFormat();
+			}
+		} finally {
+			Journal.end();
+		}
+		return true;
+	}
+
+	// most bitmap and reference count blocks, plus block 0 (which marks
+	// lazily written ones initialized), that allocating, freeing or sharing
+	// blocks blocks can change
+	public int metadataBlocksFor(int blocks){
+		return Math.min(blocks, bitmapBlocks) + Math.min(blocks, refBlocks) + 1;
+	}
+
+	// number of blocks holding inodes (blocks 1 .. inodeBlocks())
+	public int inodeBlocks(){
+		return (totalInodes + Inode.inodesPerBlock - 1) / Inode.inodesPerBlock;
+	}
+
+	// first block after the inodes; free block searches start here
+	public int firstDataBlock(){
+		return inodeBlocks() + 1;
+	}
+
+	// true for the superblock, inode, bitmap, journal and reference count
+	// blocks
+	public boolean isReserved(int blockNumber){
+		return blockNumber < firstDataBlock() ||
+			(blockNumber >= bitmapStart && blockNumber < bitmapStart + bitmapBlocks) ||
+			(blockNumber >= journalStart && blockNumber < journalStart + journalBlocks) ||
+			(blockNumber >= refStart && blockNumber < refStart + refBlocks);
+	}
+
+	// first block after every reserved region
+	public int dataStart(){
+		return Math.max(firstDataBlock(), 
+				Math.max(journalStart + journalBlocks, refStart + refBlocks));
+	}
+	
+	// blocks per allocation group: a power of two giving about 16 groups,
+	// at least 64 blocks
+	public int groupBlocks(){
+		int data = Math.max(1, (totalBlocks - dataStart()) / 16);
+		return Math.max(64, Integer.highestOneBit(data));
+	}
+	
+	// number of allocation groups
+	public int groupCount(){
+		return Math.max(1, (totalBlocks - dataStart() + groupBlocks() - 1) / groupBlocks());
+	}
+	
+	// first block of an allocation group
+	public int groupStart(int group){
+		return Math.min(dataStart() + group * groupBlocks(), totalBlocks - 1);
+	}
+	
+	// allocation group whose blocks the files of iNumber prefer
+	public int groupOfInode(int iNumber){
+		if(iNumber < 0 || totalInodes <= 0){
+			return 0;
+		}
+		return (int) ((long) iNumber * groupCount() / totalInodes);
+	}
+
+	// number of free blocks left
+	public synchronized int freeBlockCount(){
+		return freeBlocks;
 	}
 
-    // Finds first (top) block in free list and returns its number
+    // Finds the next free block at or after the next-fit cursor, marks it
+    // allocated and returns its number. Returns -1 if the disk is full
     public int getFreeBlock(){
-    	int temp = freeList;    //variable to store current head for the list
-    	// if return block is invalid, no free block number to return
-    	if(temp == -1){
-    		return temp;	// return invalid
+    	return getFreeBlocks(1, freeList);
+    }
+
+    // Allocates count contiguous blocks, searching forward from hint and
+    // wrapping around once. Returns the first block of the run, or -1 if
+    // no run that long is free. The bitmap change joins the calling
+    // thread's transaction, or commits in one of its own
+    public int getFreeBlocks(int count, int hint){
+    	return getFreeBlocks(count, hint, 0);
+    }
+
+    // Allocates count contiguous blocks as above and reserves the reserve
+    // blocks right after them for the caller's later allocations: those
+    // are marked allocated in memory only, so nobody else takes them and a
+    // crash leaves them free. They are allocated for good with claimBlocks
+    // or given back with unreserveBlocks. Returns the first block, -1 if
+    // no run of count + reserve blocks is free
+    public int getFreeBlocks(int count, int hint, int reserve){
+    	long start = Metrics.start();
+    	Journal.begin();
+    	try {
+    		return allocateRun(count, hint, reserve);
+    	} finally {
+    		Journal.end();
+    		Metrics.record(Metrics.GET_FREE, start);
     	}
-    	
-    	byte[] block = new byte[Disk.blockSize]; //read the block
-    	SysLib.rawread(freeList, block); 
-    	
-    	// get the next free block from the one to be removed and return it
-    	temp = SysLib.bytes2int(block,0); 
-    	return temp;
+    }
+
+    // allocates count reserved blocks from start, in the calling thread's
+    // transaction or in one of its own
+    public void claimBlocks(int start, int count){
+    	Journal.begin();
+    	try {
+    		synchronized(this){
+    			for(int i = start; i < start + count; i++){
+    				bitChanged(i);
+    			}
+    		}
+    	} finally {
+    		Journal.end();
+    	}
+    }
+
+    // gives back count reserved blocks from start that were not claimed
+    public synchronized void unreserveBlocks(int start, int count){
+    	for(int i = start; i < start + count; i++){
+    		bitmap[i >> 3] &= ~(1 << (i & 7));
+    	}
+    	freeBlocks += count;
+    }
+
+    private synchronized int allocateRun(int count, int hint, int reserve){
+    	int run = count + reserve;
+    	if(count <= 0 || run > freeBlocks){
+    		return -1;
+    	}
+    	if(hint < firstDataBlock() || hint >= totalBlocks){
+    		hint = firstDataBlock();
+    	}
+
+    	// search [hint, totalBlocks) first, then [firstDataBlock, hint + run)
+    	int start = findRun(hint, totalBlocks, run);
+    	if(start < 0){
+    		start = findRun(firstDataBlock(), Math.min(hint + run, totalBlocks), run);
+    	}
+    	if(start < 0){
+    		return -1;
+    	}
+
+    	// mark the run allocated (the reserved part in memory only) and move
+    	// the cursor past it
+    	for(int i = start; i < start + count; i++){
+    		setBit(i);
+    	}
+    	for(int i = start + count; i < start + run; i++){
+    		bitmap[i >> 3] |= (1 << (i & 7));
+    		freeBlocks--;
+    	}
+    	freeList = (start + run < totalBlocks) ? start + run : firstDataBlock();
+    	return start;
     }
 
 
-    // returns a block to the free list (deallocates it).
+    // returns a block to the free list (deallocates it). Its bit is cleared
+    // in the calling thread's transaction, or in one of its own, and the
+    // block is free for reuse once that commits.
     // Returns true if block returned, false if not
     public boolean returnBlock(int blockNumber){
-    	// can't return a block from the Inode blocks
-    	if(blockNumber < (totalInodes / 16) + 1){
+    	long start = Metrics.start();
+    	Journal.begin();
+    	try {
+    		return clearBlock(blockNumber);
+    	} finally {
+    		Journal.end();
+    		Metrics.record(Metrics.RETURN_BLOCK, start);
+    	}
+    }
+
+    private synchronized boolean clearBlock(int blockNumber){
+    	// can't return the superblock, Inode, bitmap or journal blocks
+    	if(isReserved(blockNumber) || blockNumber >= totalBlocks){
     		return false;
     	}
-    	// create block buffer and convert freeList to bytes
-    	byte[] returnedBlock = new byte[Disk.blockSize];
-    	SysLib.int2bytes(freeList, returnedBlock, 0);
-    	
-    	// write to Disk and update the freeList
-    	SysLib.rawwrite(blockNumber, returnedBlock);
-    	freeList = blockNumber;
-    	
+    	// already free
+    	if(!isAllocated(blockNumber)){
+    		return false;
+    	}
+    	// a shared block only loses this owner
+    	if(dropReference(blockNumber)){
+    		settleAfterCommit(new int[] { blockNumber }, 1);
+    	} else if(dropping.containsKey(blockNumber)){
+    		freeOnceDropped.add(blockNumber);
+    	} else {
+    		bitChanged(blockNumber);
+    		freeAfterCommit(new int[] { blockNumber }, 1);
+    	}
+    	return true;
+    }
+
+    // returns count blocks at once (truncate and delete collect a file's
+    // blocks first), taking the lock once and clearing their bits in one
+    // transaction, as returnBlock does. Blocks that are reserved, out of
+    // range or already free are skipped. Returns the number of blocks
+    // freed (that no clone still shares)
+    public int returnBlocks(int blocks[], int count){
+    	long start = Metrics.start();
+    	Journal.begin();
+    	try {
+    		return clearBlocks(blocks, count);
+    	} finally {
+    		Journal.end();
+    		Metrics.record(Metrics.RETURN_BLOCK, start);
+    	}
+    }
+
+    private synchronized int clearBlocks(int blocks[], int count){
+    	int[] cleared = new int[count];
+    	int[] dropped = new int[count];
+    	int freed = 0;
+    	int drops = 0;
+    	int later = 0;
+    	for(int i = 0; i < count; i++){
+    		int block = blocks[i];
+    		if(block < 0 || block >= totalBlocks || isReserved(block) || !isAllocated(block)){
+    			continue;
+    		}
+    		if(dropReference(block)){
+    			dropped[drops++] = block;
+    			continue;
+    		}
+    		if(dropping.containsKey(block)){
+    			freeOnceDropped.add(block);
+    			later++;
+    			continue;
+    		}
+    		bitChanged(block);
+    		cleared[freed++] = block;
+    	}
+    	settleAfterCommit(dropped, drops);
+    	freeAfterCommit(cleared, freed);
+    	return freed + later;
+    }
+    
+    // marks count blocks, whose bits the calling thread's transaction
+    // clears, free in memory once it commits: were they reused sooner, the
+    // transaction allocating them could commit first and log their bits
+    // still set. Outside a transaction they are free at once
+    private void freeAfterCommit(final int blocks[], final int count){
+    	if(count == 0){
+    		return;
+    	}
+    	if(!Journal.afterCommit(new Runnable(){
+    		public void run(){
+    			freeBits(blocks, count);
+    		}
+    	})){
+    		freeBits(blocks, count);
+    	}
+    }
+    
+    private synchronized void freeBits(int blocks[], int count){
+    	for(int i = 0; i < count; i++){
+    		bitmap[blocks[i] >> 3] &= ~(1 << (blocks[i] & 7));
+    	}
+    	freeBlocks += count;
+    }
+    
+    // counts the references to count blocks that the calling thread's
+    // transaction drops as dropping until it commits. The last owner of
+    // such a block must not free it in a transaction that could commit
+    // first, leaving a crash to recover the dropped pointer to a free
+    // block: it is freed, in a transaction of its own, once the drops have
+    // committed
+    private void settleAfterCommit(final int blocks[], final int count){
+    	if(count == 0){
+    		return;
+    	}
+    	if(!Journal.afterCommit(new Runnable(){
+    		public void run(){
+    			int[] free = settle(blocks, count);
+    			if(free.length > 0){
+    				returnBlocks(free, free.length);
+    			}
+    		}
+    	})){
+    		return;
+    	}
+    	for(int i = 0; i < count; i++){
+    		Integer drops = dropping.get(blocks[i]);
+    		dropping.put(blocks[i], (drops == null) ? 1 : drops + 1);
+    	}
+    }
+    
+    // the drops of count blocks have committed; returns the blocks that
+    // can be freed now
+    private synchronized int[] settle(int blocks[], int count){
+    	int[] free = new int[count];
+    	int n = 0;
+    	for(int i = 0; i < count; i++){
+    		int drops = dropping.get(blocks[i]) - 1;
+    		if(drops > 0){
+    			dropping.put(blocks[i], drops);
+    		} else {
+    			dropping.remove(blocks[i]);
+    			if(freeOnceDropped.remove(blocks[i])){
+    				free[n++] = blocks[i];
+    			}
+    		}
+    	}
+    	return Arrays.copyOf(free, n);
+    }
+
+    // true if this disk keeps reference counts, so blocks can be shared
+    public boolean supportsClones(){
+    	return refs != null;
+    }
+
+    // true if the block has more than one owner. Not synchronized: only a
+    // clone of the file holding the block, which the caller has locked, or
+    // another owner freeing it can change this, and a stale true only
+    // costs a needless copy
+    public boolean isShared(int blockNumber){
+    	byte[] counts = refs;
+    	return counts != null && blockNumber >= 0 && blockNumber < totalBlocks &&
+    		counts[blockNumber] != 0;
+    }
+
+    // adds an owner to each of count allocated blocks (a clone now maps
+    // them too). Returns false, changing nothing, if the disk keeps no
+    // counts or a block is free or already has the most owners a count holds
+    public synchronized boolean shareBlocks(int blocks[], int count){
+    	if(refs == null){
+    		return false;
+    	}
+    	for(int i = 0; i < count; i++){
+    		int block = blocks[i];
+    		if(block < 0 || block >= totalBlocks || isReserved(block) || 
+    				!isAllocated(block) || (refs[block] & 0xFF) == 0xFF){
+    			return false;
+    		}
+    	}
+    	for(int i = 0; i < count; i++){
+    		addReference(blocks[i], 1);
+    	}
+    	return true;
+    }
+
+    // removes an owner of a shared block. Returns false if the block has a
+    // single owner, which is the one freeing it
+    private boolean dropReference(int blockNumber){
+    	if(refs == null || refs[blockNumber] == 0){
+    		return false;
+    	}
+    	addReference(blockNumber, -1);
     	return true;
     }
+    
+    // adds delta to the count of a block in memory and in its cached count
+    // block, in the calling thread's transaction
+    private void addReference(int blockNumber, int delta){
+    	refs[blockNumber] += delta;
+    	int index = blockNumber / Disk.blockSize;
+    	initLazy(refReady, refPending, refMapOffset, index, refStart + index);
+    	BlockCache.getCache().addByte(refStart + index, blockNumber % Disk.blockSize, delta);
+    }
+
+    // true if the block is marked allocated in the bitmap
+    public synchronized boolean isAllocated(int blockNumber){
+    	return (bitmap[blockNumber >> 3] & (1 << (blockNumber & 7))) != 0;
+    }
+
+    // returns the first block of a run of count clear bits in [from, to),
+    // -1 if there is none
+    private int findRun(int from, int to, int count){
+    	int run = 0;
+    	for(int i = from; i < to; i++){
+    		// skip whole bytes of allocated blocks
+    		if((i & 7) == 0 && bitmap[i >> 3] == (byte) 0xFF){
+    			run = 0;
+    			i += 7;
+    			continue;
+    		}
+    		if(isAllocated(i)){
+    			run = 0;
+    		} else if(++run == count){
+    			return i - count + 1;
+    		}
+    	}
+    	return -1;
+    }
+
+    private void setBit(int blockNumber){
+    	bitmap[blockNumber >> 3] |= (1 << (blockNumber & 7));
+    	bitChanged(blockNumber);
+    	freeBlocks--;
+    }
+
+    private void clearBit(int blockNumber){
+    	bitmap[blockNumber >> 3] &= ~(1 << (blockNumber & 7));
+    	bitChanged(blockNumber);
+    	freeBlocks++;
+    }
+    
+    // flips a changed bit in the cached bitmap block, in the calling
+    // thread's transaction. While the disk is being formatted or converted,
+    // the group is only marked to be written whole
+    private void bitChanged(int blockNumber){
+    	int group = blockNumber / bitsPerBlock;
+    	if(!journaled){
+    		bitmapDirty[group] = true;
+    		groupReady[group] = true;
+    		return;
+    	}
+    	initLazy(groupReady, groupPending, groupMapOffset, group, bitmapStart + group);
+    	BlockCache.getCache().toggleBits(bitmapStart + group, 
+    			(blockNumber >> 3) % Disk.blockSize, 1 << (blockNumber & 7));
+    }
+    
+    // initializes a lazily written block (a bitmap group or a count block)
+    // before its first change: it is zeroed on the disk and its bit in
+    // block 0, from mapOffset, is set in the calling thread's transaction.
+    // Until that commits, every transaction changing the block sets the bit
+    // too, as it may commit first
+    private void initLazy(final boolean ready[], final boolean pending[], 
+    		int mapOffset, final int index, int blockId){
+    	BlockCache cache = BlockCache.getCache();
+    	if(!ready[index]){
+    		ready[index] = true;
+    		cache.zeroBlock(blockId);
+    		pending[index] = Journal.afterCommit(new Runnable(){
+    			public void run(){
+    				synchronized(SuperBlock.this){
+    					pending[index] = false;
+    				}
+    			}
+    		});
+    		cache.setBits(0, mapOffset + (index >> 3), 1 << (index & 7));
+    	} else if(pending[index]){
+    		cache.setBits(0, mapOffset + (index >> 3), 1 << (index & 7));
+    	}
+    }
+
+    // reads the initialized bitmap blocks into memory (the others are all
+    // free) and counts the free blocks
+    private void loadBitmap(){
+    	bitmap = new byte[bitmapBlocks * Disk.blockSize];
+    	bitmapDirty = new boolean[bitmapBlocks];
+    	int allocated = 0;
+    	for(int i = 0; i < bitmapBlocks; i++){
+    		if(!groupReady[i]){
+    			continue;
+    		}
+    		BlockCache.getCache().readBytes(bitmapStart + i, 0, bitmap, 
+    				i * Disk.blockSize, Disk.blockSize);
+    		for(int j = i * Disk.blockSize; j < (i + 1) * Disk.blockSize; j += 4){
+    			allocated += Integer.bitCount(DiskCodec.bytes2int(bitmap, j));
+    		}
+    	}
+    	// bits past the last block do not count
+    	for(int i = totalBlocks; i < bitmapBlocks * bitsPerBlock; i++){
+    		if(isAllocated(i)){
+    			allocated--;
+    		}
+    	}
+    	freeBlocks = totalBlocks - allocated;
+    }
+
+    // writes the bitmap blocks marked while formatting or converting
+    private void writeBitmap(){
+    	for(int i = 0; i < bitmapBlocks; i++){
+    		if(bitmapDirty[i]){
+    			BlockCache.getCache().patch(bitmapStart + i, 0, bitmap, 
+    					i * Disk.blockSize, Disk.blockSize);
+    			bitmapDirty[i] = false;
+    		}
+    	}
+    }
+
+    // reads the reference counts of a version 6 or later disk. Version 6
+    // wrote every count block; later versions only read the initialized
+    // ones (the others are all zero)
+    private void loadRefs(byte[] superBlock){
+    	refs = null;
+    	dropping.clear();
+    	freeOnceDropped.clear();
+    	if(version < 6 || refBlocks <= 0){
+    		refStart = 0;
+    		refBlocks = 0;
+    		return;
+    	}
+    	refs = new byte[refBlocks * Disk.blockSize];
+    	refReady = new boolean[refBlocks];
+    	refPending = new boolean[refBlocks];
+    	for(int i = 0; i < refBlocks; i++){
+    		refReady[i] = version < 7 ||
+    			(superBlock[refMapOffset + (i >> 3)] & (1 << (i & 7))) != 0;
+    		if(refReady[i]){
+    			BlockCache.getCache().readBytes(refStart + i, 0, refs, 
+    					i * Disk.blockSize, Disk.blockSize);
+    		}
+    	}
+    }
+
+    // builds the bitmap of an image that still uses the linked free list:
+    // walks the list once, then stores the bitmap in the first free run
+    // long enough to hold it. Nothing is written if there is no such run;
+    // the mount fails with IllegalStateException and the image is left as
+    // it was, on its free list. Block 0 is written last: a crash before it
+    // leaves the free list, cut short where the bitmap overwrote it
+    private void convertFreeList(){
+    	journaled = false;
+    	bitmapBlocks = (totalBlocks + bitsPerBlock - 1) / bitsPerBlock;
+    	bitmapStart = 0;
+    	bitmap = new byte[bitmapBlocks * Disk.blockSize];
+    	bitmapDirty = new boolean[bitmapBlocks];
+    	groupReady = new boolean[bitmapBlocks];
+    	groupPending = new boolean[bitmapBlocks];
+    	Arrays.fill(groupReady, true);
+
+    	// everything is allocated except what is on the free list
+    	Arrays.fill(bitmap, (byte) 0xFF);
+    	freeBlocks = 0;
+    	byte[] block = new byte[Disk.blockSize];
+    	int visited = 0;
+    	for(int b = freeList; b > 0 && b < totalBlocks && visited < totalBlocks; visited++){
+    		clearBit(b);
+    		BlockCache.read(b, block);
+    		b = DiskCodec.bytes2int(block, 0);
+    	}
+
+    	// claim blocks for the bitmap itself
+    	int start = findRun(firstDataBlock(), totalBlocks, bitmapBlocks);
+    	if(start < 0){
+    		// not enough contiguous room; the files are kept, not formatted
+    		SysLib.cout("free list conversion failed: no run of " + bitmapBlocks + 
+    				" free blocks for the bitmap, disk not mounted\n");
+    		throw new IllegalStateException("no room to convert the free list");
+    	}
+    	for(int i = start; i < start + bitmapBlocks; i++){
+    		setBit(i);
+    	}
+    	bitmapStart = start;
+    	Arrays.fill(bitmapDirty, true);
+    	freeList = firstDataBlock();
+    	// the bitmap reaches the disk before block 0 points at it
+    	writeBitmap();
+    	BlockCache.flush();
+    	writeSuperBlock();
+    	BlockCache.flush();
+    	journaled = true;
+    }
 }
@@ -0,0 +1,69 @@
+/** ThreadOSDisk.java
+*
+* BlockDevice over the ThreadOS simulated disk. Every transfer is a
+* SysLib.rawread/rawwrite of one whole block, so runs are moved one block
+* at a time and a staging block is used when the caller's buffer is not a
+* bare block-sized array.
+*
+* @version 10/18/2026
+*/
+
+import java.nio.*;
+
+public class ThreadOSDisk implements BlockDevice {
+    private int totalBlocks;    // blocks on the disk
+    private byte staging[];     // block for transfers at a buffer offset
+
+    // constructor
+    // diskSize is only reported by blockCount(); it may be 0 when the
+    // size is not known yet
+    public ThreadOSDisk( int diskSize ) {
+        totalBlocks = diskSize;
+        staging = new byte[Disk.blockSize];
+    }
+
+    public int blockCount( ) {
+        return totalBlocks;
+    }
+
+    public synchronized void read( int blockId, byte buffer[], int offset ) {
+        if ( offset == 0 && buffer.length == Disk.blockSize ) {
+            SysLib.rawread( blockId, buffer );
+        } else {
+            SysLib.rawread( blockId, staging );
+            System.arraycopy( staging, 0, buffer, offset, Disk.blockSize );
+        }
+    }
+
+    public synchronized void write( int blockId, byte buffer[], int offset ) {
+        if ( offset == 0 && buffer.length == Disk.blockSize ) {
+            SysLib.rawwrite( blockId, buffer );
+        } else {
+            System.arraycopy( buffer, offset, staging, 0, Disk.blockSize );
+            SysLib.rawwrite( blockId, staging );
+        }
+    }
+
+    public void readRun( int blockId, int count, byte buffer[], int offset ) {
+        for ( int i = 0; i < count; i++, offset += Disk.blockSize ) {
+            read( blockId + i, buffer, offset );
+        }
+    }
+
+    public void writeRun( int blockId, int count, byte buffer[], int offset ) {
+        for ( int i = 0; i < count; i++, offset += Disk.blockSize ) {
+            write( blockId + i, buffer, offset );
+        }
+    }
+
+    // the simulated disk's storage is not reachable from here
+    public ByteBuffer slice( int blockId ) {
+        return null;
+    }
+
+    // rawwrite already hands the block to the simulated disk. SysLib.sync()
+    // must not be called here: the kernel's SYNC ends up in
+    // SuperBlock.sync(), which flushes the cache into this method
+    public void sync( ) {
+    }
+}
@@ -0,0 +1,318 @@
+/** Benchmarks.java
+*
+* Micro-benchmarks of the file system hot paths, run on a MemoryDisk so
+* they measure the code and not the disk:
+*   Directory.namei / ialloc+ifree at several directory sizes
+*   FileTable.falloc+ffree from 1 to 8 threads
+*   Inode.findTargetBlock at direct, indirect and double indirect offsets
+*   Inode.toDisk
+*   SuperBlock.getFreeBlock+returnBlock
+*   SuperBlock.format at several disk sizes
+*
+* Each benchmark is warmed up, then timed over several rounds; the best
+* round is reported in nanoseconds per operation. Results can be saved as
+* a baseline and later runs compared against it, failing (exit status 1)
+* when any benchmark got slower than the baseline by more than the
+* tolerance, so the suite can gate changes.
+*
+* Compile it together with the file system and the ThreadOS classes and
+* run it on the host JVM (not under ThreadOS, whose file system it would
+* disturb):
+*   java Benchmarks [name filter] [-save file] [-baseline file] [-tolerance 0.2]
+*
+* @version 10/18/2026
+*/
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+public class Benchmarks {
+    private final static long warmupNanos = 300000000L;  // per benchmark
+    private final static long roundNanos = 200000000L;   // per timed round
+    private final static int rounds = 5;
+
+    // one timed operation; i counts the calls
+    private interface Op {
+        void run( int i );
+    }
+
+    private String filter;
+    private LinkedHashMap<String, Double> results = new LinkedHashMap<String, Double>( );
+
+    // the file system under test
+    private SuperBlock superblock;
+    private Directory directory;
+    private FileTable filetable;
+
+    public Benchmarks( String nameFilter ) {
+        filter = nameFilter;
+    }
+
+    public static void main( String[] args ) throws IOException {
+        String nameFilter = null;
+        String save = null;
+        String baseline = null;
+        double tolerance = 0.2;
+        for ( int i = 0; i < args.length; i++ ) {
+            if ( args[i].equals( "-save" ) && i + 1 < args.length ) {
+                save = args[++i];
+            } else if ( args[i].equals( "-baseline" ) && i + 1 < args.length ) {
+                baseline = args[++i];
+            } else if ( args[i].equals( "-tolerance" ) && i + 1 < args.length ) {
+                tolerance = Double.parseDouble( args[++i] );
+            } else {
+                nameFilter = args[i];
+            }
+        }
+
+        Benchmarks b = new Benchmarks( nameFilter );
+        b.directoryBenchmarks( );
+        b.fileTableBenchmarks( );
+        b.inodeBenchmarks( );
+        b.superBlockBenchmarks( );
+
+        if ( save != null ) {
+            b.save( save );
+        }
+        if ( baseline != null && !b.compare( baseline, tolerance ) ) {
+            System.exit( 1 );
+        }
+    }
+
+    // creates a fresh file system of diskBlocks blocks and numInodes inodes
+    private void mount( int diskBlocks, int numInodes ) {
+        BlockCache.setup( new MemoryDisk( diskBlocks ), 64 );
+        superblock = new SuperBlock( diskBlocks );
+        superblock.format( numInodes );
+        directory = new Directory( superblock.totalInodes );
+        filetable = new FileTable( directory, superblock.getInodes( ) );
+    }
+
+    private void directoryBenchmarks( ) {
+        final int sizes[] = { 64, 1024, 16384 };
+        for ( final int size : sizes ) {
+            mount( 32767, size );
+            final String names[] = new String[size - 1];
+            for ( int i = 0; i < names.length; i++ ) {
+                names[i] = "file" + i;
+                directory.ialloc( names[i] );
+            }
+            run( "Directory.namei.hit/" + size, new Op( ) {
+                public void run( int i ) {
+                    directory.namei( names[i % names.length] );
+                }
+            } );
+            run( "Directory.namei.miss/" + size, new Op( ) {
+                public void run( int i ) {
+                    directory.namei( "missing" );
+                }
+            } );
+            directory.ifree( directory.namei( names[0] ) );
+            run( "Directory.ialloc+ifree/" + size, new Op( ) {
+                public void run( int i ) {
+                    directory.ifree( directory.ialloc( "new" ) );
+                }
+            } );
+        }
+
+        final DentryCache dentries = new DentryCache( 1024 );
+        final String names[] = new String[1024];
+        for ( int i = 0; i < names.length; i++ ) {
+            names[i] = "File" + i; // mixed case, so lookups fold it
+            dentries.put( (short) 0, names[i], (short) ( i + 1 ) );
+        }
+        run( "DentryCache.get.hit", new Op( ) {
+            public void run( int i ) {
+                dentries.get( (short) 0, names[i % names.length] );
+            }
+        } );
+    }
+
+    private void fileTableBenchmarks( ) {
+        mount( 8192, 1024 );
+        final int files = 256;
+        for ( int i = 0; i < files; i++ ) {
+            filetable.ffree( filetable.falloc( "file" + i, "w" ) );
+        }
+        final int threads[] = { 1, 2, 4, 8 };
+        for ( int t : threads ) {
+            runThreads( "FileTable.falloc+ffree/" + t + "threads", t, new Op( ) {
+                public void run( int i ) {
+                    filetable.ffree( filetable.falloc( "file" + ( i % files ), "r" ) );
+                }
+            } );
+        }
+    }
+
+    private void inodeBenchmarks( ) {
+        mount( 32767, 64 );
+        byte[] data = new byte[Disk.blockSize];
+
+        final Inode small, large;
+        final int largeBlocks = 9 + 256 + 512;
+        // the mounted disk's format is put back for the benchmarks after these
+        short format = Inode.getNewFormat( );
+        try {
+            // original format: 11 direct + 1 single indirect
+            Inode.setNewFormat( Inode.FORMAT_DIRECT );
+            small = FileTable.inodeTable.create( (short) 1 );
+            for ( int b = 0; b < 11 + 256; b++ ) {
+                small.write( superblock, b * Disk.blockSize, data, 0, data.length );
+            }
+
+            // multi-level format, reaching into the double indirect range
+            Inode.setNewFormat( Inode.FORMAT_INDIRECT3 );
+            large = FileTable.inodeTable.create( (short) 2 );
+            for ( int b = 0; b < largeBlocks; b++ ) {
+                large.write( superblock, b * Disk.blockSize, data, 0, data.length );
+            }
+        } finally {
+            Inode.setNewFormat( format );
+        }
+
+        run( "Inode.findTargetBlock.direct", new Op( ) {
+            public void run( int i ) {
+                small.findTargetBlock( ( i % 11 ) * Disk.blockSize );
+            }
+        } );
+        run( "Inode.findTargetBlock.indirect", new Op( ) {
+            public void run( int i ) {
+                small.findTargetBlock( ( 11 + i % 256 ) * Disk.blockSize );
+            }
+        } );
+        run( "Inode.findTargetBlock.doubleIndirect", new Op( ) {
+            public void run( int i ) {
+                large.findTargetBlock( ( 9 + 256 + i % 512 ) * Disk.blockSize );
+            }
+        } );
+        run( "Inode.toDisk", new Op( ) {
+            public void run( int i ) {
+                small.toDisk( 1 );
+            }
+        } );
+    }
+
+    private void superBlockBenchmarks( ) {
+        mount( 32767, 1024 );
+        run( "SuperBlock.getFreeBlock+returnBlock", new Op( ) {
+            public void run( int i ) {
+                superblock.returnBlock( superblock.getFreeBlock( ) );
+            }
+        } );
+
+        final int disks[] = { 1000, 8192, 32767 };
+        for ( final int blocks : disks ) {
+            mount( blocks, 64 );
+            run( "SuperBlock.format/" + blocks, new Op( ) {
+                public void run( int i ) {
+                    superblock.format( 64 );
+                }
+            } );
+        }
+    }
+
+    // times op on the calling thread
+    private void run( String name, Op op ) {
+        runThreads( name, 1, op );
+    }
+
+    // times op on threads threads at once. ns/op is the round's wall time
+    // divided by the operations completed by all threads together
+    private void runThreads( String name, final int threads, final Op op ) {
+        if ( filter != null && !name.contains( filter ) ) {
+            return;
+        }
+        timedRound( threads, op, warmupNanos );
+        double best = Double.MAX_VALUE;
+        for ( int r = 0; r < rounds; r++ ) {
+            best = Math.min( best, timedRound( threads, op, roundNanos ) );
+        }
+        results.put( name, best );
+        System.out.printf( "%-45s %12.1f ns/op%n", name, best );
+    }
+
+    // runs op on threads threads for about duration ns; returns ns/op
+    private double timedRound( int threads, final Op op, final long duration ) {
+        final AtomicLong ops = new AtomicLong( );
+        final CountDownLatch start = new CountDownLatch( 1 );
+        Thread[] workers = new Thread[threads];
+        for ( int t = 0; t < threads; t++ ) {
+            final int seed = t * 7919;
+            workers[t] = new Thread( new Runnable( ) {
+                public void run( ) {
+                    try {
+                        start.await( );
+                    } catch ( InterruptedException e ) {
+                        return;
+                    }
+                    long end = System.nanoTime( ) + duration;
+                    int i = seed;
+                    long done = 0;
+                    while ( System.nanoTime( ) < end ) {
+                        // check the clock every 64 calls
+                        for ( int k = 0; k < 64; k++ ) {
+                            op.run( i++ & Integer.MAX_VALUE );
+                        }
+                        done += 64;
+                    }
+                    ops.addAndGet( done );
+                }
+            } );
+            workers[t].start( );
+        }
+        long began = System.nanoTime( );
+        start.countDown( );
+        for ( Thread w : workers ) {
+            try {
+                w.join( );
+            } catch ( InterruptedException e ) {
+                Thread.currentThread( ).interrupt( );
+            }
+        }
+        return (double) ( System.nanoTime( ) - began ) / Math.max( 1, ops.get( ) );
+    }
+
+    // writes "name ns/op" lines
+    private void save( String file ) throws IOException {
+        PrintWriter out = new PrintWriter( new FileWriter( file ) );
+        try {
+            for ( Map.Entry<String, Double> e : results.entrySet( ) ) {
+                out.println( e.getKey( ) + " " + e.getValue( ) );
+            }
+        } finally {
+            out.close( );
+        }
+    }
+
+    // compares the results with a saved baseline. Returns false if any
+    // benchmark is slower than its baseline by more than tolerance
+    private boolean compare( String file, double tolerance ) throws IOException {
+        boolean ok = true;
+        BufferedReader in = new BufferedReader( new FileReader( file ) );
+        try {
+            String line;
+            while ( ( line = in.readLine( ) ) != null ) {
+                int space = line.lastIndexOf( ' ' );
+                if ( space < 0 ) {
+                    continue;
+                }
+                String name = line.substring( 0, space );
+                double before = Double.parseDouble( line.substring( space + 1 ) );
+                Double now = results.get( name );
+                if ( now == null ) {
+                    continue;
+                }
+                if ( now > before * ( 1 + tolerance ) ) {
+                    System.out.printf( "REGRESSION %-34s %10.1f -> %10.1f ns/op%n",
+                                       name, before, now );
+                    ok = false;
+                }
+            }
+        } finally {
+            in.close( );
+        }
+        return ok;
+    }
+}
@@ -0,0 +1,97 @@
+/** AsyncOrderTest.java
+*
+* Queues writes, seeks, reads and a close on one file through
+* AsyncFileSystem without waiting for any of them, and checks that they
+* ran in the order they were made: the writes land one after the other,
+* each seek sees the writes before it, and the reads return the bytes in
+* order. Then reads the same block through many open entries at once and
+* checks that every (coalesced) read gets the right bytes.
+*
+* Run it on the host JVM with the file system and ThreadOS classes:
+*   java AsyncOrderTest
+* It exits with status 1 on the first failure.
+*
+* @version 10/18/2026
+*/
+
+import java.util.*;
+import java.util.concurrent.*;
+
+public class AsyncOrderTest {
+    private final static int chunks = 200;
+    private final static int chunkSize = 37;    // chunks cross block boundaries
+    private final static int readers = 32;
+
+    public static void main( String[] args ) {
+        try {
+            TestFs fs = new TestFs( new MemoryDisk( 2048 ), 64 );
+            AsyncFileSystem async = new AsyncFileSystem( fs.filetable, fs.superblock );
+            try {
+                byte contents[] = new byte[chunks * chunkSize];
+                new Random( 13 ).nextBytes( contents );
+                ordered( async, contents );
+                coalesced( async, contents );
+            } finally {
+                async.shutdown( );
+            }
+            System.out.println( "AsyncOrderTest: passed" );
+        } catch ( AssertionError e ) {
+            System.out.println( "AsyncOrderTest FAILED: " + e.getMessage( ) );
+            System.exit( 1 );
+        }
+    }
+
+    private static void ordered( AsyncFileSystem async, byte contents[] ) {
+        FileTableEntry file = async.open( "ordered", "w+" ).join( );
+        TestFs.check( file != null, "ordered not opened" );
+        List<CompletableFuture<Integer>> writes = new ArrayList<CompletableFuture<Integer>>( );
+        for ( int i = 0; i < chunks; i++ ) {
+            writes.add( async.write( file, Arrays.copyOfRange( contents, i * chunkSize,
+                                                               ( i + 1 ) * chunkSize ) ) );
+        }
+        CompletableFuture<Integer> end = async.seek( file, 0, AsyncFileSystem.SEEK_CUR );
+        CompletableFuture<Integer> rewound = async.seek( file, 0, AsyncFileSystem.SEEK_SET );
+        List<CompletableFuture<Integer>> reads = new ArrayList<CompletableFuture<Integer>>( );
+        byte read[][] = new byte[chunks][chunkSize];
+        for ( int i = 0; i < chunks; i++ ) {
+            reads.add( async.read( file, read[i] ) );
+        }
+        CompletableFuture<Integer> atEnd = async.read( file, new byte[1] );
+        CompletableFuture<Boolean> closed = async.close( file );
+
+        for ( int i = 0; i < chunks; i++ ) {
+            TestFs.check( writes.get( i ).join( ) == chunkSize, "write " + i + " was short" );
+        }
+        TestFs.check( end.join( ) == contents.length, "seek after the writes at " + end.join( ) );
+        TestFs.check( rewound.join( ) == 0, "rewind at " + rewound.join( ) );
+        for ( int i = 0; i < chunks; i++ ) {
+            TestFs.check( reads.get( i ).join( ) == chunkSize, "read " + i + " was short" );
+            TestFs.check( Arrays.equals( read[i], Arrays.copyOfRange( contents, i * chunkSize,
+                                                                      ( i + 1 ) * chunkSize ) ),
+                          "read " + i + " out of order" );
+        }
+        TestFs.check( atEnd.join( ) == 0, "read past the end got " + atEnd.join( ) );
+        TestFs.check( closed.join( ), "ordered not closed" );
+    }
+
+    // every reader reads the first block at once through its own entry
+    private static void coalesced( AsyncFileSystem async, byte contents[] ) {
+        List<FileTableEntry> files = new ArrayList<FileTableEntry>( );
+        List<CompletableFuture<Integer>> reads = new ArrayList<CompletableFuture<Integer>>( );
+        byte read[][] = new byte[readers][Disk.blockSize];
+        for ( int i = 0; i < readers; i++ ) {
+            FileTableEntry file = async.open( "ordered", "r" ).join( );
+            TestFs.check( file != null, "reader " + i + " not opened" );
+            files.add( file );
+        }
+        for ( int i = 0; i < readers; i++ ) {
+            reads.add( async.read( files.get( i ), read[i] ) );
+        }
+        for ( int i = 0; i < readers; i++ ) {
+            TestFs.check( reads.get( i ).join( ) == Disk.blockSize, "reader " + i + " was short" );
+            TestFs.check( Arrays.equals( read[i], Arrays.copyOf( contents, Disk.blockSize ) ),
+                          "reader " + i + " read different data" );
+            TestFs.check( async.close( files.get( i ) ).join( ), "reader " + i + " not closed" );
+        }
+    }
+}
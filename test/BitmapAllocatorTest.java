@@ -0,0 +1,98 @@
+/** BitmapAllocatorTest.java
+*
+* Allocates and frees random runs of blocks on a disk large enough for
+* lazily initialized bitmap groups, checking every step against a model
+* of which blocks are in use: no block is handed out twice, frees and
+* reservations given back show up in the free count, and blocks the file
+* system keeps for itself cannot be freed. Then mounts the disk again and
+* checks that the bitmap read back matches the model.
+*
+* Run it on the host JVM with the file system and ThreadOS classes:
+*   java BitmapAllocatorTest
+* It exits with status 1 on the first failure.
+*
+* @version 10/18/2026
+*/
+
+import java.util.*;
+
+public class BitmapAllocatorTest {
+    private final static int diskBlocks = SuperBlock.maxBlocks;
+    private final static int steps = 3000;
+
+    public static void main( String[] args ) {
+        try {
+            run( );
+            System.out.println( "BitmapAllocatorTest: passed" );
+        } catch ( AssertionError e ) {
+            System.out.println( "BitmapAllocatorTest FAILED: " + e.getMessage( ) );
+            System.exit( 1 );
+        }
+    }
+
+    private static void run( ) {
+        CrashDisk disk = new CrashDisk( diskBlocks );
+        TestFs fs = new TestFs( disk, 64 );
+        SuperBlock sb = fs.superblock;
+        int first = sb.firstDataBlock( );
+        boolean used[] = new boolean[diskBlocks];
+        for ( int b = first; b < diskBlocks; b++ ) {
+            used[b] = sb.isAllocated( b );   // the root directory's blocks, if any
+        }
+        List<Integer> allocated = new ArrayList<Integer>( );
+        int free = sb.freeBlockCount( );
+        Random random = new Random( 17 );
+
+        TestFs.check( !sb.returnBlock( 0 ), "block 0 was freed" );
+        TestFs.check( !sb.returnBlock( first - 1 ), "block " + ( first - 1 ) + " was freed" );
+        for ( int step = 0; step < steps; step++ ) {
+            int op = random.nextInt( 4 );
+            if ( op < 2 || allocated.isEmpty( ) ) {
+                int count = 1 + random.nextInt( 16 );
+                int hint = first + random.nextInt( diskBlocks - first );
+                int start = sb.getFreeBlocks( count, hint );
+                TestFs.check( start >= first, "no run of " + count + " at step " + step );
+                for ( int b = start; b < start + count; b++ ) {
+                    TestFs.check( !used[b], "block " + b + " handed out twice" );
+                    TestFs.check( sb.isAllocated( b ), "block " + b + " not marked allocated" );
+                    used[b] = true;
+                    allocated.add( b );
+                }
+                free -= count;
+            } else if ( op == 2 ) {
+                int b = allocated.remove( random.nextInt( allocated.size( ) ) );
+                TestFs.check( sb.returnBlock( b ), "block " + b + " not freed" );
+                TestFs.check( !sb.returnBlock( b ), "block " + b + " freed twice" );
+                used[b] = false;
+                free++;
+            } else {
+                int count = Math.min( allocated.size( ), 1 + random.nextInt( 32 ) );
+                int blocks[] = new int[count];
+                for ( int i = 0; i < count; i++ ) {
+                    blocks[i] = allocated.remove( random.nextInt( allocated.size( ) ) );
+                    used[blocks[i]] = false;
+                }
+                TestFs.check( sb.returnBlocks( blocks, count ) == count, "batch not freed" );
+                free += count;
+            }
+            if ( step % 100 == 0 ) {
+                int start = sb.getFreeBlocks( 2, first, 6 );
+                TestFs.check( sb.freeBlockCount( ) == free - 8, "reservation not counted" );
+                sb.unreserveBlocks( start + 2, 6 );
+                TestFs.check( sb.returnBlocks( new int[] { start, start + 1 }, 2 ) == 2,
+                              "reserving run not freed" );
+            }
+            TestFs.check( sb.freeBlockCount( ) == free, "step " + step + ": free count " +
+                          sb.freeBlockCount( ) + ", not " + free );
+        }
+        fs.sync( );
+
+        TestFs mounted = new TestFs( new CrashDisk( disk.image( ) ), 64 );
+        TestFs.check( mounted.superblock.freeBlockCount( ) == free, "remounted free count " +
+                      mounted.superblock.freeBlockCount( ) + ", not " + free );
+        for ( int b = first; b < diskBlocks; b++ ) {
+            TestFs.check( mounted.superblock.isAllocated( b ) == used[b],
+                          "block " + b + ( used[b] ? " lost" : " leaked" ) + " after mount" );
+        }
+    }
+}
@@ -0,0 +1,110 @@
+/** CloneReplayTest.java
+*
+* Clones a file (Inode.cloneTo shares its blocks), then writes into the
+* clone and into the original, which gives each its own copy of the
+* blocks written (ownBlock). Crashes after each possible number of block
+* writes, mounts what is left and checks that neither file sees the
+* other's writes (a write may be torn between blocks, each holding the
+* old or the new bytes), that every block they map is allocated, and
+* that freeing both gives back every block, shared or not.
+*
+* Run it on the host JVM with the file system and ThreadOS classes:
+*   java CloneReplayTest
+* It exits with status 1 on the first failure.
+*
+* @version 10/18/2026
+*/
+
+import java.util.*;
+
+public class CloneReplayTest {
+    private final static int diskBlocks = 2048;
+    private final static int length = 40 * Disk.blockSize + 100;
+    private final static int patchAt = 5 * Disk.blockSize - 30;  // straddles two blocks
+    private final static int patchLength = 60;
+
+    public static void main( String[] args ) {
+        try {
+            long total = run( Long.MAX_VALUE );
+            for ( long budget = 0; budget < total; budget++ ) {
+                run( budget );
+            }
+            System.out.println( "CloneReplayTest: " + total + " crashes replayed" );
+        } catch ( AssertionError e ) {
+            System.out.println( "CloneReplayTest FAILED: " + e.getMessage( ) );
+            System.exit( 1 );
+        }
+    }
+
+    // writes a file, clones it and writes into both, crashing after budget
+    // writes, and checks the disk left behind. Returns the number of writes
+    // cloning and writing made
+    private static long run( long budget ) {
+        CrashDisk disk = new CrashDisk( diskBlocks );
+        TestFs fs = new TestFs( disk, 32 );
+        Random random = new Random( 11 );
+        byte contents[] = new byte[length];
+        byte clonePatch[] = new byte[patchLength];
+        byte originalPatch[] = new byte[patchLength];
+        random.nextBytes( contents );
+        random.nextBytes( clonePatch );
+        random.nextBytes( originalPatch );
+        TestFs.check( fs.superblock.supportsClones( ), "disk cannot clone" );
+        Inode original = fs.create( 1 );
+        Inode clone = fs.create( 2 );
+        int free = fs.superblock.freeBlockCount( );
+        original.write( fs.superblock, 0, contents, 0, length );
+        original.releaseReservation( );
+        fs.sync( );
+        long start = disk.writes( );
+
+        disk.crashAfter( budget );
+        try {
+            TestFs.check( original.cloneTo( fs.superblock, clone ) > 0, "file was not cloned" );
+            fs.sync( );
+            clone.write( fs.superblock, patchAt, clonePatch, 0, patchLength );
+            original.write( fs.superblock, patchAt, originalPatch, 0, patchLength );
+            fs.sync( );
+        } catch ( CrashDisk.Crash crash ) {
+        }
+        long writes = disk.writes( ) - start;
+
+        String at = "crash after " + budget + " writes: ";
+        TestFs mounted = new TestFs( new CrashDisk( disk.image( ) ), 32 );
+        checkFile( mounted, 1, contents, originalPatch, at + "original: " );
+        Inode copy = mounted.inode( 2 );
+        TestFs.check( copy.length == 0 || copy.length == length, at + "clone has length " + copy.length );
+        if ( copy.length > 0 ) {
+            checkFile( mounted, 2, contents, clonePatch, at + "clone: " );
+        }
+        mounted.inode( 1 ).releaseBlocks( mounted.superblock );
+        copy.releaseBlocks( mounted.superblock );
+        mounted.sync( );
+        TestFs.check( mounted.superblock.freeBlockCount( ) == free, at +
+                      ( free - mounted.superblock.freeBlockCount( ) ) + " blocks leaked" );
+        return writes;
+    }
+
+    // checks that iNumber maps allocated blocks and reads back contents,
+    // each block with or without its own patch
+    private static void checkFile( TestFs fs, int iNumber, byte contents[], byte patch[],
+                                   String at ) {
+        Inode inode = fs.inode( iNumber );
+        TestFs.check( inode.length == length, at + "length " + inode.length );
+        for ( int offset = 0; offset < length; offset += Disk.blockSize ) {
+            int block = inode.findTargetBlock( offset );
+            TestFs.check( block >= 0 && fs.superblock.isAllocated( block ),
+                          at + "maps block " + block );
+        }
+        byte read[] = new byte[length];
+        inode.read( 0, read, 0, length );
+        byte patched[] = contents.clone( );
+        System.arraycopy( patch, 0, patched, patchAt, patchLength );
+        for ( int from = 0; from < length; from += Disk.blockSize ) {
+            int to = Math.min( from + Disk.blockSize, length );
+            TestFs.check( Arrays.equals( read, from, to, contents, from, to ) ||
+                          Arrays.equals( read, from, to, patched, from, to ),
+                          at + "block at " + from + " reads back different data" );
+        }
+    }
+}
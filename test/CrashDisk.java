@@ -0,0 +1,96 @@
+/** CrashDisk.java
+*
+* BlockDevice kept in a byte array, like MemoryDisk, that stops taking
+* writes after a given number of them: the write that would exceed the
+* budget throws Crash and changes nothing, as if the power went out just
+* before it, and every write after it is dropped. image() then returns
+* what a crash at that point leaves on the disk, and a new CrashDisk over
+* that image mounts it again.
+*
+* @version 10/18/2026
+*/
+
+import java.nio.*;
+
+public class CrashDisk implements BlockDevice {
+    // thrown by the first write past the budget
+    public static class Crash extends RuntimeException {
+        public Crash( ) {
+            super( "disk crashed" );
+        }
+    }
+
+    private int totalBlocks;    // blocks on the disk
+    private byte storage[];     // every block, back to back
+    private long budget = Long.MAX_VALUE;   // writes left before the crash
+    private long writes;                    // block writes taken so far
+    private boolean crashed;                // budget ran out
+
+    // creates a zero-filled disk of diskSize blocks
+    public CrashDisk( int diskSize ) {
+        this( new byte[diskSize * Disk.blockSize] );
+    }
+
+    // mounts a copy of an image returned by image()
+    public CrashDisk( byte image[] ) {
+        totalBlocks = image.length / Disk.blockSize;
+        storage = image.clone( );
+    }
+
+    // lets count more block writes through, then crashes
+    public synchronized void crashAfter( long count ) {
+        budget = count;
+    }
+
+    // number of block writes taken so far
+    public synchronized long writes( ) {
+        return writes;
+    }
+
+    // copy of the disk as it is now
+    public synchronized byte[] image( ) {
+        return storage.clone( );
+    }
+
+    public int blockCount( ) {
+        return totalBlocks;
+    }
+
+    public void read( int blockId, byte buffer[], int offset ) {
+        readRun( blockId, 1, buffer, offset );
+    }
+
+    public void write( int blockId, byte buffer[], int offset ) {
+        writeRun( blockId, 1, buffer, offset );
+    }
+
+    public synchronized void readRun( int blockId, int count, byte buffer[], int offset ) {
+        System.arraycopy( storage, blockId * Disk.blockSize, buffer, offset,
+                          count * Disk.blockSize );
+    }
+
+    // a run is written block by block, so a crash can tear it
+    public synchronized void writeRun( int blockId, int count, byte buffer[], int offset ) {
+        for ( int i = 0; i < count; i++ ) {
+            if ( crashed ) {
+                return;
+            }
+            if ( budget <= 0 ) {
+                crashed = true;
+                throw new Crash( );
+            }
+            budget--;
+            writes++;
+            System.arraycopy( buffer, offset + i * Disk.blockSize, storage,
+                              ( blockId + i ) * Disk.blockSize, Disk.blockSize );
+        }
+    }
+
+    // no views: every read copies, so reads see the writes made so far
+    public ByteBuffer slice( int blockId ) {
+        return null;
+    }
+
+    public void sync( ) {
+    }
+}
@@ -0,0 +1,58 @@
+/** DentryCacheTest.java
+*
+* Checks DentryCache lookups: names found in any case, negative entries,
+* parents kept apart, names that differ only past a common prefix, and
+* eviction keeping the cache near its capacity while recently used
+* entries stay.
+*
+* Run it on the host JVM with the file system and ThreadOS classes:
+*   java DentryCacheTest
+* It exits with status 1 on the first failure.
+*
+* @version 10/18/2026
+*/
+
+public class DentryCacheTest {
+    public static void main( String[] args ) {
+        try {
+            lookups( );
+            eviction( );
+            System.out.println( "DentryCacheTest: passed" );
+        } catch ( AssertionError e ) {
+            System.out.println( "DentryCacheTest FAILED: " + e.getMessage( ) );
+            System.exit( 1 );
+        }
+    }
+
+    private static void lookups( ) {
+        DentryCache cache = new DentryCache( 64 );
+        TestFs.check( cache.get( (short) 0, "a" ) == -2, "empty cache has a" );
+        cache.put( (short) 0, "ReadMe", (short) 3 );
+        cache.put( (short) 0, "missing", (short) -1 );
+        cache.put( (short) 5, "readme", (short) 7 );
+        TestFs.check( cache.get( (short) 0, "ReadMe" ) == 3, "ReadMe not found" );
+        TestFs.check( cache.get( (short) 0, "README" ) == 3, "README not found as ReadMe" );
+        TestFs.check( cache.get( (short) 0, "readme" ) == 3, "readme not found as ReadMe" );
+        TestFs.check( cache.get( (short) 5, "README" ) == 7, "readme of parent 5 mixed up" );
+        TestFs.check( cache.get( (short) 0, "MISSING" ) == -1, "negative entry lost" );
+        TestFs.check( cache.get( (short) 0, "ReadM" ) == -2, "prefix of ReadMe found" );
+        TestFs.check( cache.get( (short) 0, "ReadMe2" ) == -2, "ReadMe2 found" );
+        TestFs.check( cache.get( (short) 1, "ReadMe" ) == -2, "ReadMe found in parent 1" );
+
+        // the same name in another case replaces the entry
+        cache.put( (short) 0, "README", (short) -1 );
+        TestFs.check( cache.get( (short) 0, "ReadMe" ) == -1, "ReadMe not replaced" );
+        TestFs.check( cache.size( ) == 3, "cache holds " + cache.size( ) + " entries" );
+    }
+
+    private static void eviction( ) {
+        DentryCache cache = new DentryCache( 64 );
+        for ( int i = 0; i < 1000; i++ ) {
+            cache.put( (short) 0, "f" + i, (short) i );
+            cache.get( (short) 0, "F0" ); // keep f0 in use
+        }
+        TestFs.check( cache.size( ) <= 64, "cache grew to " + cache.size( ) );
+        TestFs.check( cache.get( (short) 0, "f0" ) == 0, "recently used f0 evicted" );
+        TestFs.check( cache.get( (short) 0, "f999" ) == 999, "newest entry evicted" );
+    }
+}
@@ -0,0 +1,86 @@
+/** DirectoryIndexTest.java
+*
+* Adds and removes random names in a Directory, checking every name of
+* the pool against a model after each step, so removals from the middle
+* of a probe run (backward shift deletion) are exercised. Names are short
+* and differ only in case or a character, so probe runs get long. Also
+* checks that a full directory refuses new names and that the index is
+* rebuilt when the directory is loaded from its bytes.
+*
+* Run it on the host JVM with the file system and ThreadOS classes:
+*   java DirectoryIndexTest
+* It exits with status 1 on the first failure.
+*
+* @version 10/18/2026
+*/
+
+import java.util.*;
+
+public class DirectoryIndexTest {
+    private final static int entries = 256;
+    private final static int steps = 4000;
+
+    public static void main( String[] args ) {
+        try {
+            run( );
+            System.out.println( "DirectoryIndexTest: passed" );
+        } catch ( AssertionError e ) {
+            System.out.println( "DirectoryIndexTest FAILED: " + e.getMessage( ) );
+            System.exit( 1 );
+        }
+    }
+
+    private static void run( ) {
+        Directory directory = new Directory( entries );
+        Map<String, Short> model = new HashMap<String, Short>( );    // lower-cased names
+        List<String> pool = new ArrayList<String>( );
+        for ( char a = 'a'; a <= 'z'; a++ ) {
+            for ( int n = 0; n < 12; n++ ) {
+                pool.add( "" + a + n );
+            }
+        }
+        Random random = new Random( 19 );
+        for ( int step = 0; step < steps; step++ ) {
+            String name = pool.get( random.nextInt( pool.size( ) ) );
+            if ( random.nextBoolean( ) ) {
+                name = name.toUpperCase( );
+            }
+            String key = name.toLowerCase( );
+            if ( model.containsKey( key ) ) {
+                TestFs.check( directory.ifree( model.remove( key ) ), name + " not freed" );
+            } else if ( model.size( ) < entries - 1 ) {
+                short iNumber = directory.ialloc( name );
+                TestFs.check( iNumber > 0, name + " not allocated at step " + step );
+                model.put( key, iNumber );
+            }
+            check( directory, model, pool, "step " + step + ": " );
+        }
+
+        // fill it up
+        for ( int n = 0; model.size( ) < entries - 1; n++ ) {
+            String name = "fill" + n;
+            model.put( name, directory.ialloc( name ) );
+        }
+        TestFs.check( directory.ialloc( "one too many" ) == -1, "full directory took a name" );
+
+        Directory loaded = new Directory( entries );
+        loaded.bytes2directory( directory.directory2bytes( ) );
+        check( loaded, model, pool, "loaded: " );
+    }
+
+    // every name of the pool, and every name in the model, is found in
+    // either case exactly when the model has it
+    private static void check( Directory directory, Map<String, Short> model,
+                               List<String> pool, String at ) {
+        for ( String name : pool ) {
+            Short iNumber = model.get( name );
+            short expected = ( iNumber == null ) ? -1 : iNumber;
+            TestFs.check( directory.namei( name ) == expected &&
+                          directory.namei( name.toUpperCase( ) ) == expected,
+                          at + name + " maps " + directory.namei( name ) + ", not " + expected );
+        }
+        for ( Map.Entry<String, Short> e : model.entrySet( ) ) {
+            TestFs.check( directory.namei( e.getKey( ) ) == e.getValue( ), at + e.getKey( ) + " lost" );
+        }
+    }
+}
@@ -0,0 +1,89 @@
+/** DirectoryPersistenceTest.java
+*
+* Fills the root directory with names, frees some and reuses their slots,
+* mounts the disk again and checks that every name maps the same inumber,
+* found in any case, and that no freed name comes back. Also checks that
+* adding one name writes as many blocks to a large directory as to a small
+* one: only the changed record block, not the whole directory.
+*
+* Run it on the host JVM with the file system and ThreadOS classes:
+*   java DirectoryPersistenceTest
+* It exits with status 1 on the first failure.
+*
+* @version 10/18/2026
+*/
+
+import java.util.*;
+
+public class DirectoryPersistenceTest {
+    private final static int diskBlocks = 2048;
+    private final static int names = 120;  // the default inode count is 128
+
+    public static void main( String[] args ) {
+        try {
+            roundTrip( );
+            long small = writesForOneName( 10 );
+            long large = writesForOneName( names );
+            TestFs.check( large == small, "one name wrote " + large + " blocks to a " + names +
+                          "-entry directory but " + small + " to a 10-entry one" );
+            System.out.println( "DirectoryPersistenceTest: passed" );
+        } catch ( AssertionError e ) {
+            System.out.println( "DirectoryPersistenceTest FAILED: " + e.getMessage( ) );
+            System.exit( 1 );
+        }
+    }
+
+    private static void roundTrip( ) {
+        CrashDisk disk = new CrashDisk( diskBlocks );
+        TestFs fs = new TestFs( disk, 32 );
+        Map<String, Short> live = new HashMap<String, Short>( );
+        for ( int i = 0; i < names; i++ ) {
+            String name = "File" + i;
+            short iNumber = fs.directory.ialloc( name );
+            TestFs.check( iNumber > 0, name + " not allocated" );
+            live.put( name, iNumber );
+        }
+        List<String> freed = new ArrayList<String>( );
+        for ( int i = 0; i < names; i += 3 ) {
+            String name = "File" + i;
+            TestFs.check( fs.directory.ifree( live.remove( name ) ), name + " not freed" );
+            freed.add( name );
+        }
+        for ( int i = 0; i < names / 6; i++ ) {
+            String name = "new" + i;
+            short iNumber = fs.directory.ialloc( name );
+            TestFs.check( iNumber > 0, name + " not allocated" );
+            live.put( name, iNumber );
+        }
+        fs.sync( );
+
+        TestFs mounted = new TestFs( new CrashDisk( disk.image( ) ), 32 );
+        for ( Map.Entry<String, Short> e : live.entrySet( ) ) {
+            String name = e.getKey( );
+            TestFs.check( mounted.directory.namei( name ) == e.getValue( ),
+                          name + " maps " + mounted.directory.namei( name ) + ", not " + e.getValue( ) );
+            TestFs.check( mounted.directory.namei( name.toUpperCase( ) ) == e.getValue( ),
+                          name.toUpperCase( ) + " not found" );
+        }
+        for ( String name : freed ) {
+            TestFs.check( mounted.directory.namei( name ) == -1, "freed " + name + " came back" );
+        }
+        TestFs.check( mounted.directory.list( ).length == live.size( ),
+                      mounted.directory.list( ).length + " names listed, not " + live.size( ) );
+    }
+
+    // fills a directory with size names, then returns the blocks written to
+    // add one more and write everything back
+    private static long writesForOneName( int size ) {
+        CrashDisk disk = new CrashDisk( diskBlocks );
+        TestFs fs = new TestFs( disk, 32 );
+        for ( int i = 0; i < size; i++ ) {
+            fs.directory.ialloc( "file" + i );
+        }
+        fs.sync( );
+        long start = disk.writes( );
+        TestFs.check( fs.directory.ialloc( "one more" ) > 0, "one more not allocated" );
+        fs.sync( );
+        return disk.writes( ) - start;
+    }
+}
@@ -0,0 +1,129 @@
+/** DirectoryReplayTest.java
+*
+* Crashes a workload of mkdir, create, write and unlink, over the root
+* directory and subdirectories, after a spread of write counts, mounts
+* what is left and checks that the names and the inodes agree:
+*   every name leads to an inode that was written (one never written maps
+*     block 0, the superblock), whose blocks are all allocated
+*   every name found to be a subdirectory reads as one
+*   every inumber in use has a name
+*
+* Run it on the host JVM with the file system and ThreadOS classes:
+*   java DirectoryReplayTest
+* It exits with status 1 on the first failure.
+*
+* @version 10/18/2026
+*/
+
+import java.util.*;
+
+public class DirectoryReplayTest {
+    private final static int diskBlocks = 2048;
+    private final static int operations = 80;
+    private final static int crashPoints = 300;
+    private final static String dirs[] = { "/a", "/b", "/a/c" };
+
+    public static void main( String[] args ) {
+        try {
+            long total = run( Long.MAX_VALUE );
+            long step = Math.max( 1, total / crashPoints );
+            int runs = 0;
+            for ( long budget = 0; budget < total; budget += step ) {
+                run( budget );
+                runs++;
+            }
+            System.out.println( "DirectoryReplayTest: " + runs + " crashes of " +
+                                total + " writes replayed" );
+        } catch ( AssertionError e ) {
+            System.out.println( "DirectoryReplayTest FAILED: " + e.getMessage( ) );
+            System.exit( 1 );
+        }
+    }
+
+    // runs the workload, crashing after budget writes, and checks the disk
+    // left behind. Returns the number of writes the workload made
+    private static long run( long budget ) {
+        CrashDisk disk = new CrashDisk( diskBlocks );
+        TestFs fs = new TestFs( disk, 32 );
+        DirectoryTree tree = new DirectoryTree( fs.directory, fs.superblock );
+        fs.filetable.setTree( tree );
+        fs.sync( );
+        long start = disk.writes( );
+
+        disk.crashAfter( budget );
+        Random random = new Random( 7 );
+        byte data[] = new byte[3000];
+        try {
+            for ( String dir : dirs ) {
+                tree.mkdir( dir );
+            }
+            for ( int n = 0; n < operations; n++ ) {
+                String path = pathOf( random.nextInt( dirs.length + 1 ),
+                                      "f" + random.nextInt( 12 ) );
+                if ( random.nextInt( 4 ) == 0 ) {
+                    short iNumber = tree.unlink( path );
+                    if ( iNumber > 0 ) {
+                        fs.inode( iNumber ).releaseBlocks( fs.superblock );
+                    }
+                } else {
+                    FileTableEntry file = fs.filetable.falloc( path, "w" );
+                    if ( file != null ) {
+                        file.inode.write( fs.superblock, 0, data, 0,
+                                          1 + random.nextInt( data.length ) );
+                        fs.filetable.ffree( file );
+                    }
+                }
+            }
+            fs.sync( );
+        } catch ( CrashDisk.Crash crash ) {
+        }
+        long writes = disk.writes( ) - start;
+
+        String at = "crash after " + budget + " writes: ";
+        TestFs mounted = new TestFs( new CrashDisk( disk.image( ) ), 32 );
+        DirectoryTree mountedTree = new DirectoryTree( mounted.directory, mounted.superblock );
+        BitSet named = new BitSet( );
+        walk( mounted, mountedTree, "/", named, at );
+        for ( int i = mounted.directory.nextInUse( 1 ); i > 0;
+              i = mounted.directory.nextInUse( i + 1 ) ) {
+            TestFs.check( named.get( i ), at + "inumber " + i + " is in use but has no name" );
+        }
+        return writes;
+    }
+
+    // checks every name below the directory path, recording their inumbers
+    private static void walk( TestFs fs, DirectoryTree tree, String path,
+                              BitSet named, String at ) {
+        for ( String name : tree.readdir( path ) ) {
+            String child = path.equals( "/" ) ? "/" + name : path + "/" + name;
+            short iNumber = tree.namei( child );
+            TestFs.check( iNumber > 0, at + child + " is listed but not found" );
+            TestFs.check( !named.get( iNumber ), at + "inumber " + iNumber + " has two names" );
+            named.set( iNumber );
+            Inode inode = fs.inode( iNumber );
+            for ( int offset = 0; offset < inode.length; offset += Disk.blockSize ) {
+                int block = inode.findTargetBlock( offset );
+                TestFs.check( block < 0 || ( !fs.superblock.isReserved( block ) &&
+                                             fs.superblock.isAllocated( block ) ),
+                              at + child + " maps block " + block );
+            }
+            TestFs.check( inode.length > 0 || inode.findTargetBlock( 0 ) != 0,
+                          at + child + " names an inode that was never written" );
+            if ( tree.isDirectory( iNumber ) ) {
+                walk( fs, tree, child, named, at );
+            }
+        }
+        if ( !path.equals( "/" ) ) {
+            return;
+        }
+        for ( String dir : dirs ) {
+            short iNumber = tree.namei( dir );
+            TestFs.check( iNumber < 0 || tree.isDirectory( iNumber ),
+                          at + dir + " is no longer a directory" );
+        }
+    }
+
+    private static String pathOf( int dir, String name ) {
+        return ( dir == dirs.length ) ? name : dirs[dir] + "/" + name;
+    }
+}
@@ -0,0 +1,138 @@
+/** FreeListConversionTest.java
+*
+* Mounts images that still keep free space on the linked free list of the
+* original file system and checks the conversion to a bitmap:
+*   the blocks on the list, less the bitmap's own, are the free ones; every
+*     other block stays allocated and keeps its contents
+*   the converted disk mounts again with the same free blocks
+*   an image with no run of free blocks long enough for the bitmap is
+*     refused and left exactly as it was
+*   a crash during the conversion never frees a block that is in use
+*
+* Run it on the host JVM with the file system and ThreadOS classes:
+*   java FreeListConversionTest
+* It exits with status 1 on the first failure.
+*
+* @version 10/18/2026
+*/
+
+import java.util.*;
+
+public class FreeListConversionTest {
+    private final static int listStart = 10;     // first block on the free list
+
+    public static void main( String[] args ) {
+        try {
+            roundTrip( );
+            refusal( );
+            int crashes = crashes( );
+            System.out.println( "FreeListConversionTest: passed, " + crashes + " crashes replayed" );
+        } catch ( AssertionError e ) {
+            System.out.println( "FreeListConversionTest FAILED: " + e.getMessage( ) );
+            System.exit( 1 );
+        }
+    }
+
+    // a free-list image of diskBlocks blocks whose list holds every step-th
+    // block from listStart; every other block holds its own number
+    private static byte[] image( int diskBlocks, int step ) {
+        CrashDisk disk = new CrashDisk( diskBlocks );
+        byte block[] = new byte[Disk.blockSize];
+        DiskCodec.int2bytes( diskBlocks, block, 0 );
+        DiskCodec.int2bytes( 64, block, 4 );
+        DiskCodec.int2bytes( listStart, block, 8 );
+        disk.write( 0, block, 0 );
+        for ( int b = 1; b < diskBlocks; b++ ) {
+            Arrays.fill( block, (byte) 0 );
+            if ( onList( b, step ) ) {
+                DiskCodec.int2bytes( b + step < diskBlocks ? b + step : -1, block, 0 );
+            } else if ( b >= listStart ) {
+                DiskCodec.int2bytes( b, block, 0 );
+            }
+            disk.write( b, block, 0 );
+        }
+        return disk.image( );
+    }
+
+    private static boolean onList( int b, int step ) {
+        return b >= listStart && ( b - listStart ) % step == 0;
+    }
+
+    private static SuperBlock mount( BlockDevice disk ) {
+        BlockCache.setup( disk, 64 );
+        return new SuperBlock( disk.blockCount( ) );
+    }
+
+    // checks that no block off the list is free and that each still holds
+    // its number. Returns the number of free blocks
+    private static int checkInUse( SuperBlock sb, BlockDevice disk, int step, String at ) {
+        byte block[] = new byte[Disk.blockSize];
+        int free = 0;
+        for ( int b = 1; b < disk.blockCount( ); b++ ) {
+            if ( !sb.isAllocated( b ) ) {
+                TestFs.check( onList( b, step ), at + "block " + b + " in use is free" );
+                free++;
+            } else if ( b >= listStart && !onList( b, step ) ) {
+                disk.read( b, block, 0 );
+                TestFs.check( DiskCodec.bytes2int( block, 0 ) == b, at + "block " + b + " was overwritten" );
+            }
+        }
+        TestFs.check( sb.freeBlockCount( ) == free, at + "free count " + sb.freeBlockCount( ) +
+                      " but " + free + " blocks free" );
+        return free;
+    }
+
+    private static void roundTrip( ) {
+        int diskBlocks = 4096, step = 3;
+        CrashDisk disk = new CrashDisk( image( diskBlocks, step ) );
+        SuperBlock sb = mount( disk );
+        int listed = ( diskBlocks - listStart + step - 1 ) / step;
+        int free = checkInUse( sb, disk, step, "converted: " );
+        TestFs.check( free == listed - sb.bitmapBlocks, free + " blocks free of " + listed + " listed" );
+        sb.sync( );
+
+        CrashDisk again = new CrashDisk( disk.image( ) );
+        sb = mount( again );
+        TestFs.check( sb.bitmapBlocks > 0, "remounted disk has no bitmap" );
+        TestFs.check( checkInUse( sb, again, step, "remounted: " ) == free, "free blocks changed" );
+        for ( int i = 0; i < free; i++ ) {
+            int b = sb.getFreeBlock( );
+            TestFs.check( b > 0 && onList( b, step ), "allocated block " + b + " is in use" );
+        }
+        TestFs.check( sb.getFreeBlock( ) < 0, "full disk gave out a block" );
+    }
+
+    private static void refusal( ) {
+        // every other block free: no two free blocks in a row for the bitmap
+        byte before[] = image( 8192, 2 );
+        CrashDisk disk = new CrashDisk( before );
+        try {
+            mount( disk );
+            TestFs.check( false, "image without room for the bitmap was mounted" );
+        } catch ( IllegalStateException e ) {
+        }
+        BlockCache.flush( );
+        TestFs.check( Arrays.equals( disk.image( ), before ), "refused image was changed" );
+    }
+
+    // crashes the conversion after each number of writes and mounts again.
+    // Returns the number of crashes
+    private static int crashes( ) {
+        int diskBlocks = 4096, step = 3;
+        byte original[] = image( diskBlocks, step );
+        CrashDisk disk = new CrashDisk( original );
+        mount( disk ).sync( );
+        long total = disk.writes( );
+        for ( long budget = 0; budget < total; budget++ ) {
+            disk = new CrashDisk( original );
+            disk.crashAfter( budget );
+            try {
+                mount( disk ).sync( );
+            } catch ( CrashDisk.Crash crash ) {
+            }
+            CrashDisk after = new CrashDisk( disk.image( ) );
+            checkInUse( mount( after ), after, step, "crash after " + budget + " writes: " );
+        }
+        return (int) total;
+    }
+}
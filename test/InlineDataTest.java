@@ -0,0 +1,104 @@
+/** InlineDataTest.java
+*
+* Checks that inline data stays off unless the disk is set up for it
+* (SuperBlock.FEATURE_INLINE), then grows an inline file past
+* Inode.inlineCapacity and truncates it again, crashing after each
+* possible number of block writes, mounts what is left and checks that
+* the setting survived, that the file reads back a prefix of what was
+* written, from blocks that are all allocated, and that freeing it gives
+* back every block.
+*
+* Run it on the host JVM with the file system and ThreadOS classes:
+*   java InlineDataTest
+* It exits with status 1 on the first failure.
+*
+* @version 10/18/2026
+*/
+
+import java.util.*;
+
+public class InlineDataTest {
+    private final static int diskBlocks = 1024;
+    private final static int small = Inode.inlineCapacity - 6;
+    private final static int grown = 3 * Disk.blockSize + 7;
+    private final static int truncated = 10;
+
+    public static void main( String[] args ) {
+        try {
+            checkDefault( );
+            long total = run( Long.MAX_VALUE );
+            for ( long budget = 0; budget < total; budget++ ) {
+                run( budget );
+            }
+            System.out.println( "InlineDataTest: " + total + " crashes replayed" );
+        } catch ( AssertionError e ) {
+            System.out.println( "InlineDataTest FAILED: " + e.getMessage( ) );
+            System.exit( 1 );
+        }
+    }
+
+    // a freshly formatted disk gives new files blocks, so findTargetBlock
+    // finds their data
+    private static void checkDefault( ) {
+        TestFs fs = new TestFs( new CrashDisk( diskBlocks ), 16 );
+        TestFs.check( ( fs.superblock.features & SuperBlock.FEATURE_INLINE ) == 0,
+                      "inline data is on after format" );
+        Inode inode = fs.create( 1 );
+        inode.write( fs.superblock, 0, new byte[small], 0, small );
+        TestFs.check( inode.getFormat( ) != Inode.FORMAT_INLINE, "new file is inline by default" );
+        TestFs.check( inode.findTargetBlock( 0 ) >= 0, "new file maps no block" );
+    }
+
+    // writes a small inline file and grows and truncates it, crashing after
+    // budget writes, and checks the disk left behind. Returns the number of
+    // writes growing and truncating made
+    private static long run( long budget ) {
+        CrashDisk disk = new CrashDisk( diskBlocks );
+        TestFs fs = new TestFs( disk, 16 );
+        byte contents[] = new byte[grown];
+        new Random( 7 ).nextBytes( contents );
+        TestFs.check( fs.superblock.setInlineData( true ), "inline data was refused" );
+        Inode inode = fs.create( 1 );
+        inode.write( fs.superblock, 0, contents, 0, small );
+        TestFs.check( inode.getFormat( ) == Inode.FORMAT_INLINE, "small file is not inline" );
+        TestFs.check( inode.findTargetBlock( 0 ) == -1, "inline file maps a block" );
+        fs.sync( );
+        int free = fs.superblock.freeBlockCount( );
+        long start = disk.writes( );
+
+        disk.crashAfter( budget );
+        try {
+            inode.write( fs.superblock, small, contents, small, grown - small );
+            inode.releaseReservation( );
+            TestFs.check( inode.getFormat( ) != Inode.FORMAT_INLINE, "grown file is still inline" );
+            fs.sync( );
+            inode.truncate( fs.superblock, truncated );
+            fs.sync( );
+        } catch ( CrashDisk.Crash crash ) {
+        }
+        long writes = disk.writes( ) - start;
+
+        String at = "crash after " + budget + " writes: ";
+        TestFs mounted = new TestFs( new CrashDisk( disk.image( ) ), 16 );
+        TestFs.check( ( mounted.superblock.features & SuperBlock.FEATURE_INLINE ) != 0,
+                      at + "inline data is off after mount" );
+        inode = mounted.inode( 1 );
+        TestFs.check( inode.length == small || inode.length == grown || inode.length == truncated,
+                      at + "file has length " + inode.length );
+        if ( inode.getFormat( ) != Inode.FORMAT_INLINE ) {
+            for ( int offset = 0; offset < inode.length; offset += Disk.blockSize ) {
+                int block = inode.findTargetBlock( offset );
+                TestFs.check( block >= 0 && mounted.superblock.isAllocated( block ),
+                              at + "file maps block " + block );
+            }
+        }
+        byte read[] = new byte[inode.length];
+        inode.read( 0, read, 0, read.length );
+        TestFs.check( Arrays.equals( read, Arrays.copyOf( contents, read.length ) ),
+                      at + "file of length " + inode.length + " format " + inode.getFormat( ) + " reads back different data" );
+        inode.releaseBlocks( mounted.superblock );
+        TestFs.check( mounted.superblock.freeBlockCount( ) == free, at +
+                      ( free - mounted.superblock.freeBlockCount( ) ) + " blocks leaked" );
+        return writes;
+    }
+}
@@ -0,0 +1,89 @@
+/** JournalReplayTest.java
+*
+* Crashes a workload of appends and truncates after every possible number
+* of block writes (or a spread of them on long runs), mounts what is left
+* on the disk, which replays the journal, and checks the block accounting
+* of the result:
+*   every block an inode points at is allocated in the bitmap
+*   freeing every file gives back every allocated block (nothing leaked)
+*
+* Run it on the host JVM with the file system and ThreadOS classes:
+*   java JournalReplayTest
+* It exits with status 1 on the first failure.
+*
+* @version 10/18/2026
+*/
+
+import java.util.*;
+
+public class JournalReplayTest {
+    private final static int diskBlocks = 2048;
+    private final static int files = 6;
+    private final static int operations = 60;
+    private final static int crashPoints = 300;
+
+    public static void main( String[] args ) {
+        try {
+            // a run without a crash counts the writes of the workload
+            long total = run( Long.MAX_VALUE );
+            long step = Math.max( 1, total / crashPoints );
+            int runs = 0;
+            for ( long budget = 0; budget < total; budget += step ) {
+                run( budget );
+                runs++;
+            }
+            System.out.println( "JournalReplayTest: " + runs + " crashes of " +
+                                total + " writes replayed" );
+        } catch ( AssertionError e ) {
+            System.out.println( "JournalReplayTest FAILED: " + e.getMessage( ) );
+            System.exit( 1 );
+        }
+    }
+
+    // runs the workload, crashing after budget writes, and checks the disk
+    // left behind. Returns the number of writes the workload made
+    private static long run( long budget ) {
+        CrashDisk disk = new CrashDisk( diskBlocks );
+        TestFs fs = new TestFs( disk, 32 );
+        for ( int i = 1; i <= files; i++ ) {
+            fs.create( i );
+        }
+        fs.sync( );
+        int free = fs.superblock.freeBlockCount( );
+        long start = disk.writes( );
+
+        disk.crashAfter( budget );
+        Random random = new Random( 11 );
+        byte data[] = new byte[8192];
+        random.nextBytes( data );
+        try {
+            for ( int n = 0; n < operations; n++ ) {
+                Inode inode = fs.inode( 1 + random.nextInt( files ) );
+                if ( random.nextInt( 5 ) == 0 ) {
+                    inode.truncate( fs.superblock, inode.length / 2 );
+                } else {
+                    inode.write( fs.superblock, inode.length, data, 0,
+                                 1 + random.nextInt( data.length ) );
+                }
+            }
+            fs.sync( );
+        } catch ( CrashDisk.Crash crash ) {
+        }
+        long writes = disk.writes( ) - start;
+
+        String at = "crash after " + budget + " writes: ";
+        TestFs mounted = new TestFs( new CrashDisk( disk.image( ) ), 32 );
+        for ( int i = 1; i <= files; i++ ) {
+            Inode inode = mounted.inode( i );
+            for ( int offset = 0; offset < inode.length; offset += Disk.blockSize ) {
+                int block = inode.findTargetBlock( offset );
+                TestFs.check( block < 0 || mounted.superblock.isAllocated( block ),
+                              at + "inode " + i + " points at free block " + block );
+            }
+            inode.releaseBlocks( mounted.superblock );
+        }
+        TestFs.check( mounted.superblock.freeBlockCount( ) == free, at +
+                      ( free - mounted.superblock.freeBlockCount( ) ) + " blocks leaked" );
+        return writes;
+    }
+}
@@ -0,0 +1,63 @@
+/** MetricsTest.java
+*
+* Checks the Metrics histogram arithmetic: every bucket's range follows
+* the one before it without gaps, every value falls in the bucket whose
+* range holds it, ranges are at most 1/16 of their values wide, and
+* percentiles of known values come out within that error.
+*
+* Run it on the host JVM with the file system and ThreadOS classes:
+*   java MetricsTest
+* It exits with status 1 on the first failure.
+*
+* @version 10/18/2026
+*/
+
+public class MetricsTest {
+    public static void main( String[] args ) {
+        try {
+            buckets( );
+            percentiles( );
+            System.out.println( "MetricsTest: passed" );
+        } catch ( AssertionError e ) {
+            System.out.println( "MetricsTest FAILED: " + e.getMessage( ) );
+            System.exit( 1 );
+        }
+    }
+
+    private static void buckets( ) {
+        TestFs.check( Metrics.lowestOf( 0 ) == 0, "bucket 0 starts at " + Metrics.lowestOf( 0 ) );
+        for ( int b = 0; b + 1 < Metrics.buckets; b++ ) {
+            long low = Metrics.lowestOf( b );
+            long high = Metrics.lowestOf( b + 1 ) - 1;
+            TestFs.check( high >= low, "bucket " + b + " is empty" );
+            TestFs.check( Metrics.bucketOf( low ) == b, low + " is not in bucket " + b );
+            TestFs.check( Metrics.bucketOf( high ) == b, high + " is not in bucket " + b );
+            TestFs.check( low < 32 ? high == low : ( high - low + 1 ) * 16 <= low,
+                          "bucket " + b + " spans " + low + ".." + high );
+        }
+        TestFs.check( Metrics.bucketOf( Long.MAX_VALUE ) == Metrics.buckets - 1,
+                      "Long.MAX_VALUE is not in the last bucket" );
+    }
+
+    // records 1..1000 ns (and no others) and checks the percentiles
+    private static void percentiles( ) {
+        long counts[] = new long[Metrics.buckets];
+        long total = 0;
+        for ( long ns = 1; ns <= 1000; ns++ ) {
+            counts[Metrics.bucketOf( ns )]++;
+            total += ns;
+        }
+        Metrics.Snapshot s = new Metrics.Snapshot( "test", 1000, total, 1000, counts );
+        double wanted[] = { 1, 10, 50, 90, 99, 99.9 };
+        for ( double p : wanted ) {
+            long value = s.percentile( p );
+            long exact = (long) Math.ceil( p * 10 );
+            TestFs.check( value >= exact && value - exact <= exact / 16 + 1,
+                          "p" + p + " is " + value + ", not about " + exact );
+        }
+        TestFs.check( s.percentile( 100 ) == 1000, "p100 is " + s.percentile( 100 ) );
+        TestFs.check( s.meanNanos( ) == 500.5, "mean is " + s.meanNanos( ) );
+        Metrics.Snapshot empty = new Metrics.Snapshot( "empty", 0, 0, 0, new long[Metrics.buckets] );
+        TestFs.check( empty.percentile( 50 ) == 0 && empty.meanNanos( ) == 0, "empty histogram" );
+    }
+}
@@ -0,0 +1,96 @@
+/** RelocateReplayTest.java
+*
+* Fragments files by appending to them in turn, then crashes
+* Inode.relocate (the defragmenter's move) after each possible number of
+* block writes, mounts what is left and checks that every file reads back
+* what was written, from blocks that are all allocated, and that freeing
+* the files gives back every block: a move is either all done or not done.
+*
+* Run it on the host JVM with the file system and ThreadOS classes:
+*   java RelocateReplayTest
+* It exits with status 1 on the first failure.
+*
+* @version 10/18/2026
+*/
+
+import java.util.*;
+
+public class RelocateReplayTest {
+    private final static int diskBlocks = 2048;
+    private final static int files = 3;
+    private final static int appends = 40;
+
+    public static void main( String[] args ) {
+        try {
+            long total = run( Long.MAX_VALUE );
+            for ( long budget = 0; budget < total; budget++ ) {
+                run( budget );
+            }
+            System.out.println( "RelocateReplayTest: " + total + " crashes replayed" );
+        } catch ( AssertionError e ) {
+            System.out.println( "RelocateReplayTest FAILED: " + e.getMessage( ) );
+            System.exit( 1 );
+        }
+    }
+
+    // fragments the files, moves them, crashing after budget writes, and
+    // checks the disk left behind. Returns the number of writes the moves made
+    private static long run( long budget ) {
+        CrashDisk disk = new CrashDisk( diskBlocks );
+        TestFs fs = new TestFs( disk, 32 );
+        byte contents[][] = new byte[files][appends * Disk.blockSize];
+        new Random( 5 ).nextBytes( contents[0] );
+        for ( int i = 1; i < files; i++ ) {
+            contents[i] = contents[0].clone( );
+            contents[i][0] = (byte) i;
+        }
+        for ( int i = 1; i <= files; i++ ) {
+            fs.create( i );
+        }
+        int free = fs.superblock.freeBlockCount( );
+        for ( int n = 0; n < appends; n++ ) {
+            for ( int i = 1; i <= files; i++ ) {
+                fs.inode( i ).write( fs.superblock, n * Disk.blockSize, contents[i - 1],
+                                     n * Disk.blockSize, Disk.blockSize );
+            }
+        }
+        for ( int i = 1; i <= files; i++ ) {
+            fs.inode( i ).releaseReservation( );
+            TestFs.check( fs.inode( i ).fragments( ) > 1, "file " + i + " is not fragmented" );
+        }
+        fs.sync( );
+        long start = disk.writes( );
+
+        disk.crashAfter( budget );
+        try {
+            for ( int i = 1; i <= files; i++ ) {
+                TestFs.check( fs.inode( i ).relocate( fs.superblock ) > 0,
+                              "file " + i + " was not moved" );
+            }
+            fs.sync( );
+        } catch ( CrashDisk.Crash crash ) {
+        }
+        long writes = disk.writes( ) - start;
+
+        String at = "crash after " + budget + " writes: ";
+        TestFs mounted = new TestFs( new CrashDisk( disk.image( ) ), 32 );
+        byte read[] = new byte[appends * Disk.blockSize];
+        for ( int i = 1; i <= files; i++ ) {
+            Inode inode = mounted.inode( i );
+            TestFs.check( inode.length == read.length, at + "file " + i + " has length " +
+                          inode.length );
+            for ( int offset = 0; offset < inode.length; offset += Disk.blockSize ) {
+                int block = inode.findTargetBlock( offset );
+                TestFs.check( block >= 0 && mounted.superblock.isAllocated( block ),
+                              at + "file " + i + " maps block " + block );
+            }
+            inode.read( 0, read, 0, read.length );
+            TestFs.check( Arrays.equals( read, contents[i - 1] ), at + "file " + i +
+                          " reads back different data" );
+            inode.releaseBlocks( mounted.superblock );
+        }
+        TestFs.check( mounted.superblock.freeBlockCount( ) == free, at +
+                      ( free - mounted.superblock.freeBlockCount( ) ) + " blocks leaked" );
+        return writes;
+    }
+}
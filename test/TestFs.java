@@ -0,0 +1,48 @@
+/** TestFs.java
+*
+* A file system mounted on a BlockDevice for the tests: the block cache,
+* superblock (formatting a blank disk, replaying the journal of a used
+* one), file table and root directory, loaded from and attached to the
+* root inode. Also holds the check every test reports failures with.
+*
+* @version 10/18/2026
+*/
+
+public class TestFs {
+    public SuperBlock superblock;
+    public Directory directory;
+    public FileTable filetable;
+
+    // mounts disk with a cache of frames blocks
+    public TestFs( BlockDevice disk, int frames ) {
+        BlockCache.setup( disk, frames );
+        superblock = new SuperBlock( disk.blockCount( ) );
+        directory = new Directory( superblock.totalInodes );
+        filetable = new FileTable( directory, superblock.getInodes( ) );
+        directory.attach( inode( 0 ), superblock );
+    }
+
+    // the in-core Inode of iNumber
+    public Inode inode( int iNumber ) {
+        return FileTable.inodeTable.get( (short) iNumber );
+    }
+
+    // installs and writes an empty Inode for iNumber, as creating a file does
+    public Inode create( int iNumber ) {
+        Inode inode = FileTable.inodeTable.create( (short) iNumber );
+        inode.toDisk( iNumber );
+        return inode;
+    }
+
+    // writes everything back, as unmounting does
+    public void sync( ) {
+        superblock.sync( );
+    }
+
+    // fails the test with what went wrong unless ok
+    public static void check( boolean ok, String what ) {
+        if ( !ok ) {
+            throw new AssertionError( what );
+        }
+    }
+}